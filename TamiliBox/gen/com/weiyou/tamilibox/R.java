@@ -29,6 +29,9 @@ public final class R {
     public static final class id {
         public static final int action_settings=0x7f08000a;
         public static final int button=0x7f080000;
+        public static final int button_images=0x7f08000c;
+        public static final int button_pdfs=0x7f08000d;
+        public static final int button_videos=0x7f08000b;
         public static final int drawview=0x7f080008;
         public static final int imageView=0x7f080003;
         public static final int img=0x7f080006;
@@ -60,6 +63,9 @@ public final class R {
         public static final int dialog_read_from_dir=0x7f050007;
         public static final int explorer=0x7f050006;
         public static final int hello_world=0x7f050001;
+        public static final int media_all_images=0x7f050009;
+        public static final int media_all_pdfs=0x7f05000a;
+        public static final int media_all_videos=0x7f050008;
         public static final int title_activity_picture_viewer=0x7f050005;
         public static final int title_activity_power_point_viewer=0x7f050003;
         public static final int title_activity_video_player=0x7f050004;
@@ -0,0 +1,104 @@
+package com.shockwave.pdfium;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Opens a one page PDF with a blue square in its middle on a plain JVM and
+ * renders it into a PdfBufferBitmap, see host/Makefile. Exits non zero on
+ * a failure.
+ */
+public class PdfBufferRenderTest {
+    //Page of 100 x 100 points with the square from (25, 25) to (75, 75)
+    private static final String CONTENT = "0 0 1 rg 25 25 50 50 re f\n";
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int BLUE = 0xFF0000FF;
+    private static final int BACKGROUND = 0xFF808080;
+
+    public static void main(String[] args) throws IOException {
+        File file = File.createTempFile("render", ".pdf");
+        try{
+            writePdf(file);
+            run(file);
+        }finally{
+            file.delete();
+        }
+        System.out.println("PdfBufferRenderTest passed");
+    }
+
+    private static void run(File file) throws IOException {
+        PdfiumEngine engine = new PdfiumEngine(72);
+        FileInputStream stream = new FileInputStream(file);
+        try{
+            PdfDocument doc = engine.newDocument(stream.getFD());
+            check(doc.mNativeDocPtr > 0, "document opened");
+            check(engine.getPageCount(doc) == 1, "one page");
+
+            float[] sizes = engine.getPageSizes(doc);
+            check(sizes.length == 2 && sizes[0] == 100 && sizes[1] == 100, "page of 100 x 100 points");
+
+            //Twice the page size, the right half is left to the background
+            int width = 400;
+            int height = 200;
+            int[] pixels = new int[width * height];
+            PdfBufferBitmap bitmap = PdfBufferBitmap.wrap(pixels, width, height, width,
+                                                          PdfBufferBitmap.FORMAT_BGRA);
+            try{
+                check(engine.renderPageBuffer(doc, bitmap, 0, 2f, PdfiumEngine.RENDER_FLAGS_FULL, BACKGROUND),
+                      "page rendered");
+            }finally{
+                bitmap.recycle();
+            }
+
+            //PDF y grows upwards, the square is in the middle either way
+            checkPixel(pixels, width, 100, 100, BLUE);
+            checkPixel(pixels, width, 10, 10, WHITE);
+            checkPixel(pixels, width, 190, 190, WHITE);
+            checkPixel(pixels, width, 300, 100, BACKGROUND);
+
+            engine.closeDocument(doc);
+        }finally{
+            stream.close();
+        }
+    }
+
+    private static void checkPixel(int[] pixels, int width, int x, int y, int expected){
+        int actual = pixels[y * width + x];
+        check(actual == expected, String.format("pixel (%d, %d) is %08X, not %08X", x, y, actual, expected));
+    }
+
+    private static void check(boolean condition, String what){
+        if(condition) return;
+        System.err.println("PdfBufferRenderTest failed: " + what);
+        System.exit(1);
+    }
+
+    private static void writePdf(File file) throws IOException {
+        String[] objects = {
+            "<< /Type /Catalog /Pages 2 0 R >>",
+            "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+            "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 100 100] /Contents 4 0 R >>",
+            "<< /Length " + CONTENT.length() + " >>\nstream\n" + CONTENT + "endstream",
+        };
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        int[] offsets = new int[objects.length];
+        for(int i = 0; i < objects.length; i++){
+            offsets[i] = pdf.length();
+            pdf.append(i + 1).append(" 0 obj\n").append(objects[i]).append("\nendobj\n");
+        }
+        int xref = pdf.length();
+        pdf.append("xref\n0 ").append(objects.length + 1).append("\n0000000000 65535 f \n");
+        for(int offset : offsets) pdf.append(String.format("%010d 00000 n \n", offset));
+        pdf.append("trailer\n<< /Size ").append(objects.length + 1).append(" /Root 1 0 R >>\n")
+           .append("startxref\n").append(xref).append("\n%%EOF\n");
+
+        FileOutputStream out = new FileOutputStream(file);
+        try{
+            out.write(pdf.toString().getBytes("US-ASCII"));
+        }finally{
+            out.close();
+        }
+    }
+}
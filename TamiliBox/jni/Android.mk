@@ -25,8 +25,10 @@ LOCAL_MODULE := jniPdfium
 LOCAL_CFLAGS += -DHAVE_PTHREADS
 LOCAL_C_INCLUDES += $(LOCAL_PATH)/include
 LOCAL_SHARED_LIBRARIES += aospPdfium
-LOCAL_LDLIBS += -llog -landroid
+LOCAL_LDLIBS += -llog -landroid -ljnigraphics
 
-LOCAL_SRC_FILES :=  src/mainJNILib.cpp
+LOCAL_SRC_FILES :=  src/mainJNILib.cpp \
+                    src/document.cpp \
+                    src/renderBuffer.cpp
 
 include $(BUILD_SHARED_LIBRARY)
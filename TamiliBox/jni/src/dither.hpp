@@ -0,0 +1,45 @@
+#ifndef _DITHER_HPP_
+#define _DITHER_HPP_
+
+extern "C" {
+    #include <stdint.h>
+}
+
+//4x4 Bayer matrix, thresholds 0 to 15
+static const unsigned char sBayer4[4][4] = {
+    {  0,  8,  2, 10 },
+    { 12,  4, 14,  6 },
+    {  3, 11,  1,  9 },
+    { 15,  7, 13,  5 }
+};
+
+/**
+ * Convert RGBA bytes to RGB565 with ordered dithering, so gradients and
+ * anti-aliased text edges don't band. The pattern is anchored at
+ * (originX, originY) of the whole image, tiles and clips converted apart
+ * line up without seams.
+ */
+static inline void ditherRgbaToRgb565(const unsigned char *src, int srcStride,
+                                      unsigned char *dst, int dstStride,
+                                      int width, int height, int originX, int originY){
+    int x, y;
+    for(y = 0; y < height; y++){
+        const unsigned char *in = src + (size_t)y * srcStride;
+        uint16_t *out = reinterpret_cast<uint16_t*>(dst + (size_t)y * dstStride);
+        const unsigned char *row = sBayer4[(originY + y) & 3];
+        for(x = 0; x < width; x++){
+            int threshold = row[(originX + x) & 3];
+            //Half a 5 bit step is 4, half a 6 bit step is 2
+            int r = in[0] + (threshold >> 1);
+            int g = in[1] + (threshold >> 2);
+            int b = in[2] + (threshold >> 1);
+            if(r > 255) r = 255;
+            if(g > 255) g = 255;
+            if(b > 255) b = 255;
+            out[x] = (uint16_t)(((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3));
+            in += 4;
+        }
+    }
+}
+
+#endif
@@ -0,0 +1,410 @@
+#include "util.hpp"
+#include "document.hpp"
+
+extern "C" {
+    #include <unistd.h>
+    #include <sys/mman.h>
+    #include <sys/stat.h>
+    #include <string.h>
+    #include <pthread.h>
+}
+
+/**
+ * Opening documents and loading pages for PdfiumEngine. Only POSIX, JNI
+ * and PDFium are used here, so the host build can open documents too.
+ */
+
+//Scoped lock of a pthread mutex, Android's utils/Mutex isn't on the host
+class AutoLock {
+    pthread_mutex_t *mutex;
+    public:
+    AutoLock(pthread_mutex_t *m) : mutex(m) { pthread_mutex_lock(mutex); }
+    ~AutoLock() { pthread_mutex_unlock(mutex); }
+};
+
+static pthread_mutex_t sLibraryLock = PTHREAD_MUTEX_INITIALIZER;
+
+static int sLibraryReferenceCount = 0;
+
+void initLibraryIfNeed(){
+    AutoLock lock(&sLibraryLock);
+    if(sLibraryReferenceCount == 0){
+        LOGD("Init FPDF library");
+        FPDF_InitLibrary(NULL);
+    }
+    sLibraryReferenceCount++;
+}
+
+void destroyLibraryIfNeed(){
+    AutoLock lock(&sLibraryLock);
+    sLibraryReferenceCount--;
+    if(sLibraryReferenceCount == 0){
+        LOGD("Destroy FPDF library");
+        FPDF_DestroyLibrary();
+    }
+}
+
+//Per stage: count, total us, max us, then the count of durations below 2^i us in bucket i
+#define STAGE_BUCKETS 32
+#define STAGE_STATS_SIZE (3 + STAGE_BUCKETS)
+
+static pthread_mutex_t sStatsLock = PTHREAD_MUTEX_INITIALIZER;
+static long long sStageStats[STAGE_COUNT * STAGE_STATS_SIZE];
+
+void recordStageDuration(int stage, long long micros){
+    if(micros < 0) micros = 0;
+    int bucket = 0;
+    while(bucket < STAGE_BUCKETS - 1 && (1LL << bucket) <= micros) bucket++;
+
+    AutoLock lock(&sStatsLock);
+    long long *stats = sStageStats + stage * STAGE_STATS_SIZE;
+    stats[0]++;
+    stats[1] += micros;
+    if(micros > stats[2]) stats[2] = micros;
+    stats[3 + bucket]++;
+}
+
+void DocumentFile::setFile(int fd, void *buffer, size_t fileLength){
+    fileFd = fd;
+    fileSize = fileLength;
+    fileMappedBuffer = buffer;
+    LOGD("File Size: %d", (int)fileSize);
+}
+
+DocumentFile::~DocumentFile(){
+    if(pdfDocument != NULL){
+        FPDF_CloseDocument(pdfDocument);
+    }
+    if(pdfAvail != NULL){
+        FPDFAvail_Destroy(pdfAvail);
+    }
+
+    if(fileMappedBuffer != NULL){
+        munmap(fileMappedBuffer, fileSize);
+        //Leave the file closing work to Java
+        //close(fileFd);
+    }
+
+    destroyLibraryIfNeed();
+}
+
+inline long getFileSize(int fd){
+    struct stat file_state;
+
+    if(fstat(fd, &file_state) >= 0){
+        return (long)(file_state.st_size);
+    }else{
+        LOGE("Error getting file size");
+        return 0;
+    }
+}
+
+static bool isDataAvailCallback(FX_FILEAVAIL *pThis, size_t offset, size_t size){
+    return static_cast<FileAvail*>(pThis)->docFile->isDataAvail(offset, size);
+}
+static int getBlockCallback(void *param, unsigned long position, unsigned char *pBuf, unsigned long size){
+    return static_cast<DocumentFile*>(param)->readBlock(position, pBuf, size);
+}
+//The file is local, missing data shows up once the writer gets to it, nothing to request
+static void addSegmentCallback(FX_DOWNLOADHINTS *pThis, size_t offset, size_t size){}
+
+/**
+ * Read the file on demand instead of mapping it. fileLength is the final
+ * length, the file may be shorter while it is still being written.
+ */
+void DocumentFile::setStreamFile(int fd, size_t fileLength){
+    fileFd = fd;
+    fileSize = fileLength;
+    LOGD("Stream File Size: %d", (int)fileSize);
+
+    fileAccess.m_FileLen = (unsigned long)fileLength;
+    fileAccess.m_GetBlock = getBlockCallback;
+    fileAccess.m_Param = this;
+
+    fileAvail.version = 1;
+    fileAvail.IsDataAvail = isDataAvailCallback;
+    fileAvail.docFile = this;
+    pdfAvail = FPDFAvail_Create(&fileAvail, &fileAccess);
+}
+
+bool DocumentFile::isDataAvail(size_t offset, size_t size){
+    if(offset + size <= availableSize) return true;
+    //Only hit the file system again when asking past what is known to be written
+    long currentSize = getFileSize(fileFd);
+    if(currentSize > 0) availableSize = (size_t)currentSize;
+    return offset + size <= availableSize;
+}
+
+int DocumentFile::readBlock(unsigned long position, unsigned char *buffer, unsigned long size){
+    unsigned long done = 0;
+    while(done < size){
+        ssize_t result = pread(fileFd, buffer + done, size - done, (off_t)(position + done));
+        if(result < 0){
+            LOGE("Error reading %lu bytes at %lu", size, position);
+            return 0;
+        }
+        //Not written yet
+        if(result == 0) return 0;
+        done += (unsigned long)result;
+    }
+    return 1;
+}
+
+static void initDownloadHints(FX_DOWNLOADHINTS *hints){
+    hints->version = 1;
+    hints->AddSegment = addSegmentCallback;
+}
+
+extern "C" { //For JNI support
+
+JNI_FUNC(jlong, PdfiumEngine, nativeOpenDocument)(JNI_ARGS, jint fd){
+
+    size_t fileLength = (size_t)getFileSize(fd);
+    if(fileLength <= 0) return -1;
+
+    DocumentFile *docFile = new DocumentFile();
+    long long startMicros = monotonicMicros();
+
+    try{
+        //PDFium never writes to the buffer, a shared read-only mapping stays clean page cache
+        void *map;
+        if( (map = mmap( NULL, fileLength, PROT_READ, MAP_SHARED, fd, 0 )) == MAP_FAILED){
+            throw "Error mapping file";
+        }
+        docFile->setFile(fd, map, fileLength);
+
+        if( (docFile->pdfDocument = FPDF_LoadMemDocument( reinterpret_cast<const void*>(docFile->getFileMap()),
+                                                          (int)docFile->fileSize, NULL)) == NULL) {
+            throw "Error loading document from file map";
+        }
+
+        recordStage(STAGE_DOCUMENT_OPEN, startMicros);
+        return reinterpret_cast<jlong>(docFile);
+
+    }catch(const char* msg){
+        delete docFile;
+        LOGE("%s", msg);
+        LOGE("Last Error: %ld", FPDF_GetLastError());
+
+        return -1;
+    }
+}
+
+/**
+ * Open a document without mapping it. Nothing is parsed yet, poll
+ * nativeIsDocumentAvail until the document is ready.
+ * @param fileLength final file length, 0 to use the current length
+ */
+JNI_FUNC(jlong, PdfiumEngine, nativeOpenDocumentIncremental)(JNI_ARGS, jint fd, jlong fileLength){
+    size_t length = (fileLength > 0)? (size_t)fileLength : (size_t)getFileSize(fd);
+    if(length <= 0) return -1;
+
+    DocumentFile *docFile = new DocumentFile();
+    docFile->setStreamFile(fd, length);
+    if(docFile->pdfAvail == NULL){
+        LOGE("Error creating availability provider");
+        delete docFile;
+        return -1;
+    }
+    return reinterpret_cast<jlong>(docFile);
+}
+
+/**
+ * @return 1 when the document is loaded, 0 when still waiting for data, -1 on error
+ */
+JNI_FUNC(jint, PdfiumEngine, nativeIsDocumentAvail)(JNI_ARGS, jlong documentPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
+    if(doc->pdfDocument != NULL) return 1;
+    if(doc->pdfAvail == NULL) return -1;
+
+    FX_DOWNLOADHINTS hints;
+    initDownloadHints(&hints);
+    if(!FPDFAvail_IsDocAvail(doc->pdfAvail, &hints)) return 0;
+
+    long long startMicros = monotonicMicros();
+    if( (doc->pdfDocument = FPDFAvail_GetDocument(doc->pdfAvail, NULL)) == NULL ){
+        LOGE("Error loading document from stream");
+        LOGE("Last Error: %ld", FPDF_GetLastError());
+        return -1;
+    }
+    recordStage(STAGE_DOCUMENT_OPEN, startMicros);
+    LOGD("Document available, linearized %d", (int)FPDFAvail_IsLinearized(doc->pdfAvail));
+    return 1;
+}
+
+JNI_FUNC(jboolean, PdfiumEngine, nativeIsPageAvail)(JNI_ARGS, jlong documentPtr, jint pageIndex){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
+    //Mapped documents are always complete
+    if(doc->pdfAvail == NULL) return JNI_TRUE;
+    if(doc->pdfDocument == NULL) return JNI_FALSE;
+
+    FX_DOWNLOADHINTS hints;
+    initDownloadHints(&hints);
+    return FPDFAvail_IsPageAvail(doc->pdfAvail, (int)pageIndex, &hints)? JNI_TRUE : JNI_FALSE;
+}
+
+JNI_FUNC(jboolean, PdfiumEngine, nativeIsLinearized)(JNI_ARGS, jlong documentPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
+    if(doc->pdfAvail == NULL) return JNI_FALSE;
+    return FPDFAvail_IsLinearized(doc->pdfAvail)? JNI_TRUE : JNI_FALSE;
+}
+
+JNI_FUNC(jint, PdfiumEngine, nativeGetFirstAvailablePage)(JNI_ARGS, jlong documentPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
+    if(doc->pdfDocument == NULL) return 0;
+    return (jint)FPDFAvail_GetFirstPageNum(doc->pdfDocument);
+}
+
+/**
+ * Identity of an open file as (device, inode, modification time in ms, size)
+ */
+JNI_FUNC(jlongArray, PdfiumEngine, nativeGetFileIdentity)(JNI_ARGS, jint fd){
+    struct stat file_state;
+    if(fstat(fd, &file_state) < 0){
+        LOGE("Error getting file state");
+        return NULL;
+    }
+
+    jlong identity[4];
+    identity[0] = (jlong)file_state.st_dev;
+    identity[1] = (jlong)file_state.st_ino;
+    identity[2] = (jlong)file_state.st_mtime * 1000;
+    identity[3] = (jlong)file_state.st_size;
+
+    jlongArray javaIdentity = env -> NewLongArray(4);
+    if(javaIdentity != NULL){
+        env -> SetLongArrayRegion(javaIdentity, 0, 4, identity);
+    }
+    return javaIdentity;
+}
+
+JNI_FUNC(jint, PdfiumEngine, nativeGetPageCount)(JNI_ARGS, jlong documentPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
+    if(doc->pdfDocument == NULL) return 0;
+    return (jint)FPDF_GetPageCount(doc->pdfDocument);
+}
+
+JNI_FUNC(void, PdfiumEngine, nativeCloseDocument)(JNI_ARGS, jlong documentPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
+    delete doc;
+}
+
+static jlong loadPageInternal(DocumentFile *doc, int pageIndex){
+    try{
+        if(doc == NULL) throw "Get page document null";
+
+        FPDF_DOCUMENT pdfDoc = doc->pdfDocument;
+        if(pdfDoc != NULL){
+            long long startMicros = monotonicMicros();
+            FPDF_PAGE page = FPDF_LoadPage(pdfDoc, pageIndex);
+            recordStage(STAGE_PAGE_LOAD, startMicros);
+            return reinterpret_cast<jlong>(page);
+        }else{
+            throw "Get page pdf document null";
+        }
+
+    }catch(const char *msg){
+        LOGE("%s", msg);
+        return -1;
+    }
+}
+static void closePageInternal(jlong pagePtr) { FPDF_ClosePage(reinterpret_cast<FPDF_PAGE>(pagePtr)); }
+
+JNI_FUNC(jlong, PdfiumEngine, nativeLoadPage)(JNI_ARGS, jlong docPtr, jint pageIndex){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    return loadPageInternal(doc, (int)pageIndex);
+}
+JNI_FUNC(jlongArray, PdfiumEngine, nativeLoadPages)(JNI_ARGS, jlong docPtr, jint fromIndex, jint toIndex){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+
+    if(toIndex < fromIndex) return NULL;
+    jlong pages[ toIndex - fromIndex + 1 ];
+
+    int i;
+    for(i = 0; i <= (toIndex - fromIndex); i++){
+        pages[i] = loadPageInternal(doc, (int)(i + fromIndex));
+    }
+
+    jlongArray javaPages = env -> NewLongArray( (jsize)(toIndex - fromIndex + 1) );
+    env -> SetLongArrayRegion(javaPages, 0, (jsize)(toIndex - fromIndex + 1), (const jlong*)pages);
+
+    return javaPages;
+}
+
+JNI_FUNC(void, PdfiumEngine, nativeClosePage)(JNI_ARGS, jlong pagePtr){ closePageInternal(pagePtr); }
+JNI_FUNC(void, PdfiumEngine, nativeClosePages)(JNI_ARGS, jlongArray pagesPtr){
+    int length = (int)(env -> GetArrayLength(pagesPtr));
+    jlong *pages = env -> GetLongArrayElements(pagesPtr, NULL);
+
+    int i;
+    for(i = 0; i < length; i++){ closePageInternal(pages[i]); }
+    env -> ReleaseLongArrayElements(pagesPtr, pages, JNI_ABORT);
+}
+
+JNI_FUNC(jint, PdfiumEngine, nativeGetPageWidthPixel)(JNI_ARGS, jlong pagePtr, jint dpi){
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    return (jint)(FPDF_GetPageWidth(page) * dpi / 72);
+}
+JNI_FUNC(jint, PdfiumEngine, nativeGetPageHeightPixel)(JNI_ARGS, jlong pagePtr, jint dpi){
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    return (jint)(FPDF_GetPageHeight(page) * dpi / 72);
+}
+
+/**
+ * Sizes of all pages in points as (width, height) pairs, read without loading
+ * the pages. Pages whose size can't be read are reported as 0 x 0.
+ */
+JNI_FUNC(jfloatArray, PdfiumEngine, nativeGetPageSizes)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    if(doc == NULL || doc->pdfDocument == NULL) return NULL;
+
+    int pageCount = FPDF_GetPageCount(doc->pdfDocument);
+    if(pageCount < 0) pageCount = 0;
+
+    jfloat *sizes = new jfloat[pageCount * 2];
+    int i;
+    for(i = 0; i < pageCount; i++){
+        double width, height;
+        if(FPDF_GetPageSizeByIndex(doc->pdfDocument, i, &width, &height)){
+            sizes[i * 2] = (jfloat)width;
+            sizes[i * 2 + 1] = (jfloat)height;
+        }else{
+            LOGE("Error getting size of page %d", i);
+            sizes[i * 2] = 0;
+            sizes[i * 2 + 1] = 0;
+        }
+    }
+
+    jfloatArray javaSizes = env -> NewFloatArray( (jsize)(pageCount * 2) );
+    if(javaSizes != NULL){
+        env -> SetFloatArrayRegion(javaSizes, 0, (jsize)(pageCount * 2), sizes);
+    }
+    delete[] sizes;
+
+    return javaSizes;
+}
+
+/**
+ * Stage statistics as STAGE_COUNT runs of (count, total us, max us, 32 log2 buckets)
+ */
+JNI_FUNC(jlongArray, PdfiumEngine, nativeGetStageStats)(JNI_ARGS){
+    jlong stats[STAGE_COUNT * STAGE_STATS_SIZE];
+    {
+        AutoLock lock(&sStatsLock);
+        int i;
+        for(i = 0; i < STAGE_COUNT * STAGE_STATS_SIZE; i++) stats[i] = (jlong)sStageStats[i];
+    }
+
+    jlongArray javaStats = env -> NewLongArray(STAGE_COUNT * STAGE_STATS_SIZE);
+    if(javaStats != NULL){
+        env -> SetLongArrayRegion(javaStats, 0, STAGE_COUNT * STAGE_STATS_SIZE, stats);
+    }
+    return javaStats;
+}
+
+JNI_FUNC(void, PdfiumEngine, nativeResetStageStats)(JNI_ARGS){
+    AutoLock lock(&sStatsLock);
+    memset(sStageStats, 0, sizeof(sStageStats));
+}
+
+}//extern C
@@ -0,0 +1,76 @@
+#ifndef _DOCUMENT_HPP_
+#define _DOCUMENT_HPP_
+
+/**
+ * Documents and the render stage statistics, free of Android dependencies
+ * so document.cpp and renderBuffer.cpp also build for the host. The Surface
+ * and Bitmap renderers of mainJNILib.cpp share them.
+ */
+
+extern "C" {
+    #include <stddef.h>
+    #include <time.h>
+}
+
+#include <fpdfview.h>
+#include <fpdf_dataavail.h>
+
+//Stages of the render pipeline timed for PdfMetrics, in the order of nativeGetStageStats
+enum RenderStage {
+    STAGE_DOCUMENT_OPEN = 0,
+    STAGE_PAGE_LOAD,
+    STAGE_BITMAP_LOCK,
+    STAGE_RASTERIZE,
+    STAGE_POST,
+    STAGE_COUNT
+};
+
+static inline long long monotonicMicros(){
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (long long)now.tv_sec * 1000000 + now.tv_nsec / 1000;
+}
+
+void recordStageDuration(int stage, long long micros);
+
+static inline void recordStage(int stage, long long startMicros){
+    recordStageDuration(stage, monotonicMicros() - startMicros);
+}
+
+void initLibraryIfNeed();
+void destroyLibraryIfNeed();
+
+class DocumentFile;
+
+struct FileAvail : public FX_FILEAVAIL {
+    DocumentFile *docFile;
+};
+
+class DocumentFile {
+    private:
+    void *fileMappedBuffer;
+    int fileFd;
+    //Bytes known to be written, the file may still be growing
+    size_t availableSize;
+    FileAvail fileAvail;
+
+    public:
+    FPDF_DOCUMENT pdfDocument;
+    size_t fileSize;
+    //Only for documents opened incrementally, NULL otherwise
+    FPDF_AVAIL pdfAvail;
+    FPDF_FILEACCESS fileAccess;
+    void setFile(int fd, void *buffer, size_t fileLength);
+    void setStreamFile(int fd, size_t fileLength);
+    bool isDataAvail(size_t offset, size_t size);
+    int readBlock(unsigned long position, unsigned char *buffer, unsigned long size);
+    void* getFileMap() { return fileMappedBuffer; }
+
+    DocumentFile() :  fileMappedBuffer(NULL),
+                      availableSize(0),
+                      pdfDocument(NULL),
+                      pdfAvail(NULL) { initLibraryIfNeed(); }
+    ~DocumentFile();
+};
+
+#endif
@@ -1,203 +1,280 @@
 #include "util.hpp"
+#include "dither.hpp"
+#include "document.hpp"
 
 extern "C" {
-    #include <unistd.h>
-    #include <sys/mman.h>
-    #include <sys/stat.h>
     #include <string.h>
+    #include <time.h>
 }
 
 #include <android/native_window.h>
 #include <android/native_window_jni.h>
-#include <utils/Mutex.h>
-using namespace android;
+#include <android/bitmap.h>
 
 #include <fpdfview.h>
+#include <fpdf_progressive.h>
+#include <fpdftext.h>
+#include <fpdfdoc.h>
 
+#include <vector>
 
-static Mutex sLibraryLock;
-
-static int sLibraryReferenceCount = 0;
-
-static void initLibraryIfNeed(){
-    Mutex::Autolock lock(sLibraryLock);
-    if(sLibraryReferenceCount == 0){
-        LOGD("Init FPDF library");
-        FPDF_InitLibrary(NULL);
-    }
-    sLibraryReferenceCount++;
-}
-
-static void destroyLibraryIfNeed(){
-    Mutex::Autolock lock(sLibraryLock);
-    sLibraryReferenceCount--;
-    if(sLibraryReferenceCount == 0){
-        LOGD("Destroy FPDF library");
-        FPDF_DestroyLibrary();
-    }
+/**
+ * Outline traversal is not declared by the bundled fpdfdoc.h, newer PDFium
+ * builds export it. Weak references resolve to NULL when the prebuilt
+ * library lacks them, documents then have an empty outline.
+ */
+extern "C" {
+    DLLEXPORT FPDF_BOOKMARK STDCALL FPDFBookmark_GetFirstChild(FPDF_DOCUMENT document,
+                                                               FPDF_BOOKMARK bookmark) __attribute__((weak));
+    DLLEXPORT FPDF_BOOKMARK STDCALL FPDFBookmark_GetNextSibling(FPDF_DOCUMENT document,
+                                                                FPDF_BOOKMARK bookmark) __attribute__((weak));
+    DLLEXPORT unsigned long STDCALL FPDFBookmark_GetTitle(FPDF_BOOKMARK bookmark,
+                                                          void *buffer, unsigned long buflen) __attribute__((weak));
 }
 
-class DocumentFile {
-    private:
-    void *fileMappedBuffer;
-    int fileFd;
-
-    public:
-    FPDF_DOCUMENT pdfDocument;
-    size_t fileSize;
-    void setFile(int fd, void *buffer, size_t fileLength){
-        fileFd = fd;
-        fileSize = fileLength;
-        fileMappedBuffer = buffer;
-        LOGD("File Size: %d", (int)fileSize);
-    }
-    void* getFileMap() { return fileMappedBuffer; }
-
-    DocumentFile() :  pdfDocument(NULL),
-                      fileMappedBuffer(NULL) { initLibraryIfNeed(); }
-    ~DocumentFile();
-};
-DocumentFile::~DocumentFile(){
-    if(pdfDocument != NULL){
-        FPDF_CloseDocument(pdfDocument);
-    }
+extern "C" { //For JNI support
 
-    if(fileMappedBuffer != NULL){
-        munmap(fileMappedBuffer, fileSize);
-        //Leave the file closing work to Java
-        //close(fileFd);
+//Fields of a node in the array of nativeGetOutline, in the order of PdfOutline
+#define OUTLINE_NODE_INTS 4
+//Bounds for malformed outlines, which may be cyclic
+#define MAX_OUTLINE_NODES 4096
+#define MAX_OUTLINE_DEPTH 32
+#define MAX_OUTLINE_TITLE 256
+
+/**
+ * Page of a bookmark, from its destination or else its go-to action
+ * @return -1 if it goes nowhere in the document
+ */
+static int getBookmarkPageIndex(FPDF_DOCUMENT document, FPDF_BOOKMARK bookmark, int pageCount){
+    FPDF_DEST dest = FPDFBookmark_GetDest(document, bookmark);
+    if(dest == NULL){
+        FPDF_ACTION action = FPDFBookmark_GetAction(bookmark);
+        if(action != NULL && FPDFAction_GetType(action) == PDFACTION_GOTO){
+            dest = FPDFAction_GetDest(document, action);
+        }
     }
-
-    destroyLibraryIfNeed();
+    if(dest == NULL) return -1;
+    unsigned long pageIndex = FPDFDest_GetPageIndex(document, dest);
+    return (pageIndex < (unsigned long)pageCount)? (int)pageIndex : -1;
 }
 
-inline long getFileSize(int fd){
-    struct stat file_state;
+/**
+ * Whole bookmark tree in one walk, flattened depth first so a document with
+ * hundreds of bookmarks costs one array and no object per node. Laid out as
+ * the node count, then per node its depth, page index or -1, start and
+ * length of its title, then the UTF-16 chars of all titles.
+ * @return an empty outline if the library can't walk bookmarks
+ */
+JNI_FUNC(jintArray, PdfiumCore, nativeGetOutline)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    if(doc == NULL || doc->pdfDocument == NULL) return NULL;
 
-    if(fstat(fd, &file_state) >= 0){
-        return (long)(file_state.st_size);
+    std::vector<jint> nodes;
+    std::vector<jint> titles;
+    if(FPDFBookmark_GetFirstChild == NULL || FPDFBookmark_GetNextSibling == NULL){
+        LOGD("Bookmark traversal not in this PDFium, outline is empty");
     }else{
-        LOGE("Error getting file size");
-        return 0;
+        FPDF_DOCUMENT document = doc->pdfDocument;
+        int pageCount = FPDF_GetPageCount(document);
+        unsigned short title[MAX_OUTLINE_TITLE];
+        //Next bookmark to visit at each depth
+        FPDF_BOOKMARK stack[MAX_OUTLINE_DEPTH];
+        int depth = 0;
+        int nodeCount = 0;
+        stack[0] = FPDFBookmark_GetFirstChild(document, NULL);
+
+        while(depth >= 0 && nodeCount < MAX_OUTLINE_NODES){
+            FPDF_BOOKMARK bookmark = stack[depth];
+            if(bookmark == NULL){
+                depth--;
+                continue;
+            }
+            stack[depth] = FPDFBookmark_GetNextSibling(document, bookmark);
+
+            int titleLength = 0;
+            if(FPDFBookmark_GetTitle != NULL){
+                //Bytes of UTF-16LE including the terminator
+                unsigned long bytes = FPDFBookmark_GetTitle(bookmark, title, sizeof(title));
+                if(bytes > sizeof(title)) bytes = sizeof(title);
+                titleLength = (bytes >= 2)? (int)(bytes / 2) - 1 : 0;
+            }
+            nodes.push_back(depth);
+            nodes.push_back(getBookmarkPageIndex(document, bookmark, pageCount));
+            nodes.push_back((jint)titles.size());
+            nodes.push_back(titleLength);
+            int i;
+            for(i = 0; i < titleLength; i++) titles.push_back(title[i]);
+            nodeCount++;
+
+            if(depth + 1 < MAX_OUTLINE_DEPTH){
+                FPDF_BOOKMARK child = FPDFBookmark_GetFirstChild(document, bookmark);
+                if(child != NULL) stack[++depth] = child;
+            }
+        }
+        if(nodeCount == MAX_OUTLINE_NODES) LOGE("Outline cut at %d bookmarks", nodeCount);
     }
-}
-
-extern "C" { //For JNI support
-
-JNI_FUNC(jlong, PdfiumCore, nativeOpenDocument)(JNI_ARGS, jint fd){
-
-    size_t fileLength = (size_t)getFileSize(fd);
-    if(fileLength <= 0) return -1;
 
-    DocumentFile *docFile = new DocumentFile();
-
-    try{
-        void *map;
-        if( (map = mmap( docFile->getFileMap(), fileLength, PROT_READ|PROT_WRITE, MAP_PRIVATE, fd, 0 )) == NULL){
-            throw "Error mapping file";
+    jsize length = (jsize)(1 + nodes.size() + titles.size());
+    jintArray javaOutline = env -> NewIntArray(length);
+    if(javaOutline != NULL){
+        jint nodeCount = (jint)(nodes.size() / OUTLINE_NODE_INTS);
+        env -> SetIntArrayRegion(javaOutline, 0, 1, &nodeCount);
+        if(!nodes.empty()){
+            env -> SetIntArrayRegion(javaOutline, 1, (jsize)nodes.size(), &nodes[0]);
         }
-        docFile->setFile(fd, map, fileLength);
-
-        if( (docFile->pdfDocument = FPDF_LoadMemDocument( reinterpret_cast<const void*>(docFile->getFileMap()),
-                                                          (int)docFile->fileSize, NULL)) == NULL) {
-            throw "Error loading document from file map";
+        if(!titles.empty()){
+            env -> SetIntArrayRegion(javaOutline, (jsize)(1 + nodes.size()), (jsize)titles.size(), &titles[0]);
         }
-
-        return reinterpret_cast<jlong>(docFile);
-
-    }catch(const char* msg){
-        delete docFile;
-        LOGE("%s", msg);
-        LOGE("Last Error: %ld", FPDF_GetLastError());
-
-        return -1;
     }
+    return javaOutline;
 }
 
-JNI_FUNC(jint, PdfiumCore, nativeGetPageCount)(JNI_ARGS, jlong documentPtr){
-    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
-    return (jint)FPDF_GetPageCount(doc->pdfDocument);
-}
+/**
+ * Page a named destination points to, as in a #nameddest= link
+ * @return -1 if the name is unknown
+ */
+JNI_FUNC(jint, PdfiumCore, nativeGetNamedDestPageIndex)(JNI_ARGS, jlong docPtr, jstring name){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    if(doc == NULL || doc->pdfDocument == NULL || name == NULL) return -1;
 
-JNI_FUNC(void, PdfiumCore, nativeCloseDocument)(JNI_ARGS, jlong documentPtr){
-    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
-    delete doc;
+    const char *cName = env->GetStringUTFChars(name, NULL);
+    if(cName == NULL) return -1;
+    FPDF_DEST dest = FPDF_GetNamedDestByName(doc->pdfDocument, cName);
+    env->ReleaseStringUTFChars(name, cName);
+    if(dest == NULL) return -1;
+
+    unsigned long pageIndex = FPDFDest_GetPageIndex(doc->pdfDocument, dest);
+    int pageCount = FPDF_GetPageCount(doc->pdfDocument);
+    return (pageIndex < (unsigned long)pageCount)? (jint)pageIndex : -1;
 }
 
-static jlong loadPageInternal(DocumentFile *doc, int pageIndex){
-    try{
-        if(doc == NULL) throw "Get page document null";
+/**
+ * Text of a page with exactly one char per PDFium char index, so offsets in
+ * the string are char indices. Chars without unicode become spaces, chars
+ * outside the BMP become U+FFFD.
+ */
+JNI_FUNC(jstring, PdfiumCore, nativeGetPageText)(JNI_ARGS, jlong pagePtr){
+    FPDF_TEXTPAGE textPage = FPDFText_LoadPage(reinterpret_cast<FPDF_PAGE>(pagePtr));
+    if(textPage == NULL){
+        LOGE("Error loading text page");
+        return NULL;
+    }
 
-        FPDF_DOCUMENT pdfDoc = doc->pdfDocument;
-        if(pdfDoc != NULL){
-            return reinterpret_cast<jlong>( FPDF_LoadPage(pdfDoc, pageIndex) );
-        }else{
-            throw "Get page pdf document null";
-        }
+    int charCount = FPDFText_CountChars(textPage);
+    if(charCount < 0) charCount = 0;
 
-    }catch(const char *msg){
-        LOGE("%s", msg);
-        return -1;
+    jchar *chars = new jchar[charCount + 1];
+    int i;
+    for(i = 0; i < charCount; i++){
+        unsigned int unicode = FPDFText_GetUnicode(textPage, i);
+        if(unicode == 0) chars[i] = ' ';
+        else if(unicode > 0xFFFF) chars[i] = 0xFFFD;
+        else chars[i] = (jchar)unicode;
     }
-}
-static void closePageInternal(jlong pagePtr) { FPDF_ClosePage(reinterpret_cast<FPDF_PAGE>(pagePtr)); }
+    jstring text = env -> NewString(chars, (jsize)charCount);
 
-JNI_FUNC(jlong, PdfiumCore, nativeLoadPage)(JNI_ARGS, jlong docPtr, jint pageIndex){
-    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
-    return loadPageInternal(doc, (int)pageIndex);
+    delete[] chars;
+    FPDFText_ClosePage(textPage);
+    return text;
 }
-JNI_FUNC(jlongArray, PdfiumCore, nativeLoadPages)(JNI_ARGS, jlong docPtr, jint fromIndex, jint toIndex){
-    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
 
-    if(toIndex < fromIndex) return NULL;
-    jlong pages[ toIndex - fromIndex + 1 ];
+/**
+ * Rects covered by a run of chars as (left, top, right, bottom) quadruples
+ * in page points, the origin is the bottom left of the page
+ */
+JNI_FUNC(jdoubleArray, PdfiumCore, nativeGetTextRects)(JNI_ARGS, jlong pagePtr, jint startIndex, jint count){
+    FPDF_TEXTPAGE textPage = FPDFText_LoadPage(reinterpret_cast<FPDF_PAGE>(pagePtr));
+    if(textPage == NULL){
+        LOGE("Error loading text page");
+        return NULL;
+    }
 
+    int rectCount = FPDFText_CountRects(textPage, (int)startIndex, (int)count);
+    if(rectCount < 0) rectCount = 0;
+
+    jdouble *rects = new jdouble[rectCount * 4 + 1];
     int i;
-    for(i = 0; i <= (toIndex - fromIndex); i++){
-        pages[i] = loadPageInternal(doc, (int)(i + fromIndex));
+    for(i = 0; i < rectCount; i++){
+        double left, top, right, bottom;
+        FPDFText_GetRect(textPage, i, &left, &top, &right, &bottom);
+        rects[i * 4] = left;
+        rects[i * 4 + 1] = top;
+        rects[i * 4 + 2] = right;
+        rects[i * 4 + 3] = bottom;
     }
 
-    jlongArray javaPages = env -> NewLongArray( (jsize)(toIndex - fromIndex + 1) );
-    env -> SetLongArrayRegion(javaPages, 0, (jsize)(toIndex - fromIndex + 1), (const jlong*)pages);
+    jdoubleArray javaRects = env -> NewDoubleArray( (jsize)(rectCount * 4) );
+    if(javaRects != NULL){
+        env -> SetDoubleArrayRegion(javaRects, 0, (jsize)(rectCount * 4), rects);
+    }
 
-    return javaPages;
+    delete[] rects;
+    FPDFText_ClosePage(textPage);
+    return javaRects;
 }
 
-JNI_FUNC(void, PdfiumCore, nativeClosePage)(JNI_ARGS, jlong pagePtr){ closePageInternal(pagePtr); }
-JNI_FUNC(void, PdfiumCore, nativeClosePages)(JNI_ARGS, jlongArray pagesPtr){
-    int length = (int)(env -> GetArrayLength(pagesPtr));
-    jlong *pages = env -> GetLongArrayElements(pagesPtr, NULL);
-
-    int i;
-    for(i = 0; i < length; i++){ closePageInternal(pages[i]); }
+static inline long long monotonicMillis(){
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (long long)now.tv_sec * 1000 + now.tv_nsec / 1000000;
 }
 
-JNI_FUNC(jint, PdfiumCore, nativeGetPageWidthPixel)(JNI_ARGS, jlong pagePtr, jint dpi){
-    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
-    return (jint)(FPDF_GetPageWidth(page) * dpi / 72);
-}
-JNI_FUNC(jint, PdfiumCore, nativeGetPageHeightPixel)(JNI_ARGS, jlong pagePtr, jint dpi){
-    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
-    return (jint)(FPDF_GetPageHeight(page) * dpi / 72);
-}
+//Longest a progressive render step runs before handing the document lock back to Java
+#define RENDER_SLICE_MS 8
+
+/**
+ * Pause handler for progressive rendering. Pauses when the Java cancellation
+ * token has been cancelled or the current time slice is used up.
+ */
+struct RenderPause : public IFSDK_PAUSE {
+    JNIEnv *env;
+    jobject token;
+    jmethodID isCancelledMethod;
+    long long sliceStart;
+    bool cancelled;
+
+    RenderPause() : env(NULL), token(NULL), isCancelledMethod(NULL),
+                    sliceStart(0), cancelled(false) {
+        version = 1;
+        user = NULL;
+        NeedToPauseNow = needToPauseNow;
+    }
 
-static void renderPageInternal( FPDF_PAGE page,
-                                ANativeWindow_Buffer *windowBuffer,
-                                int startX, int startY,
-                                int canvasHorSize, int canvasVerSize,
-                                int drawSizeHor, int drawSizeVer){
+    //env and token are only valid during the current JNI call, so refresh them every step
+    void beginSlice(JNIEnv *env, jobject token){
+        this->env = env;
+        this->token = token;
+        if(isCancelledMethod == NULL){
+            jclass tokenClass = env->GetObjectClass(token);
+            isCancelledMethod = env->GetMethodID(tokenClass, "isCancelled", "()Z");
+            env->DeleteLocalRef(tokenClass);
+        }
+        sliceStart = monotonicMillis();
+    }
+
+    static FPDF_BOOL needToPauseNow(IFSDK_PAUSE *pThis){
+        RenderPause *pause = static_cast<RenderPause*>(pThis);
+        if(pause->env->CallBooleanMethod(pause->token, pause->isCancelledMethod)){
+            pause->cancelled = true;
+            return true;
+        }
+        return (monotonicMillis() - pause->sliceStart) >= RENDER_SLICE_MS;
+    }
+};
+
+/**
+ * Wrap the buffer as a PDFium bitmap and paint the gray background and the
+ * white page area, ready for the page content to be rendered on top
+ */
+static FPDF_BITMAP prepareRenderBitmap( ANativeWindow_Buffer *windowBuffer,
+                                        int startX, int startY,
+                                        int canvasHorSize, int canvasVerSize,
+                                        int drawSizeHor, int drawSizeVer){
 
     FPDF_BITMAP pdfBitmap = FPDFBitmap_CreateEx( canvasHorSize, canvasVerSize,
                                                  FPDFBitmap_BGRA,
                                                  windowBuffer->bits, (int)(windowBuffer->stride) * 4);
 
-    LOGD("Start X: %d", startX);
-    LOGD("Start Y: %d", startY);
-    LOGD("Canvas Hor: %d", canvasHorSize);
-    LOGD("Canvas Ver: %d", canvasVerSize);
-    LOGD("Draw Hor: %d", drawSizeHor);
-    LOGD("Draw Ver: %d", drawSizeVer);
-
     if(drawSizeHor < canvasHorSize || drawSizeVer < canvasVerSize){
         FPDFBitmap_FillRect( pdfBitmap, 0, 0, canvasHorSize, canvasVerSize,
                              0x84, 0x84, 0x84, 255); //Gray
@@ -210,15 +287,78 @@ static void renderPageInternal( FPDF_PAGE page,
     FPDFBitmap_FillRect( pdfBitmap, baseX, baseY, baseHorSize, baseVerSize,
                          255, 255, 255, 255); //White
 
+    return pdfBitmap;
+}
+
+/**
+ * PDFium only renders 32 bit pixels. For an RGB_565 target describe an RGBA
+ * scratch buffer of its size to render into, to be dithered into the target
+ * with finishScratchBuffer.
+ * @return false if out of memory
+ */
+static bool allocScratchBuffer(ANativeWindow_Buffer *target, ANativeWindow_Buffer *scratch){
+    scratch->width = target->width;
+    scratch->height = target->height;
+    scratch->stride = target->width;
+    scratch->format = WINDOW_FORMAT_RGBA_8888;
+    scratch->bits = malloc((size_t)target->width * target->height * 4);
+    if(scratch->bits == NULL){
+        LOGE("No memory for a %dx%d scratch buffer", target->width, target->height);
+        return false;
+    }
+    return true;
+}
+
+static void finishScratchBuffer(ANativeWindow_Buffer *target, ANativeWindow_Buffer *scratch, bool convert){
+    if(convert){
+        ditherRgbaToRgb565( reinterpret_cast<unsigned char*>(scratch->bits), scratch->stride * 4,
+                            reinterpret_cast<unsigned char*>(target->bits), target->stride * 2,
+                            target->width, target->height, 0, 0 );
+    }
+    free(scratch->bits);
+    scratch->bits = NULL;
+}
+
+/**
+ * Renders page into the buffer in one blocking call, RGBA_8888 or RGB_565.
+ * flags are FPDF_ANNOT, FPDF_LCD_TEXT etc, byte order is always reversed.
+ */
+static void renderPageInternal( FPDF_PAGE page,
+                                ANativeWindow_Buffer *targetBuffer,
+                                int startX, int startY,
+                                int canvasHorSize, int canvasVerSize,
+                                int drawSizeHor, int drawSizeVer,
+                                int flags){
+
+    ANativeWindow_Buffer scratch;
+    ANativeWindow_Buffer *windowBuffer = targetBuffer;
+    if(targetBuffer->format == WINDOW_FORMAT_RGB_565){
+        if(!allocScratchBuffer(targetBuffer, &scratch)) return;
+        windowBuffer = &scratch;
+    }
+
+    FPDF_BITMAP pdfBitmap = prepareRenderBitmap( windowBuffer, startX, startY,
+                                                 canvasHorSize, canvasVerSize,
+                                                 drawSizeHor, drawSizeVer );
+
+    long long startMicros = monotonicMicros();
     FPDF_RenderPageBitmap( pdfBitmap, page,
                            startX, startY,
                            drawSizeHor, drawSizeVer,
-                           0, FPDF_REVERSE_BYTE_ORDER );
+                           0, flags | FPDF_REVERSE_BYTE_ORDER );
+    recordStage(STAGE_RASTERIZE, startMicros);
+
+    FPDFBitmap_Destroy(pdfBitmap);
+    if(windowBuffer != targetBuffer) finishScratchBuffer(targetBuffer, &scratch, true);
 }
 
+/**
+ * @param format WINDOW_FORMAT_RGBA_8888 or WINDOW_FORMAT_RGB_565, the window
+ *               is switched to it if needed
+ */
 JNI_FUNC(void, PdfiumCore, nativeRenderPage)(JNI_ARGS, jlong pagePtr, jobject objSurface,
                                              jint dpi, jint startX, jint startY,
-                                             jint drawSizeHor, jint drawSizeVer){
+                                             jint drawSizeHor, jint drawSizeVer, jint format){
     ANativeWindow *nativeWindow = ANativeWindow_fromSurface(env, objSurface);
     if(nativeWindow == NULL){
         LOGE("native window pointer null");
@@ -231,28 +371,190 @@ JNI_FUNC(void, PdfiumCore, nativeRenderPage)(JNI_ARGS, jlong pagePtr, jobject ob
         return;
     }
 
-    if(ANativeWindow_getFormat(nativeWindow) != WINDOW_FORMAT_RGBA_8888){
-        LOGD("Set format to RGBA_8888");
+    if(format != WINDOW_FORMAT_RGB_565) format = WINDOW_FORMAT_RGBA_8888;
+    if(ANativeWindow_getFormat(nativeWindow) != format){
+        LOGD("Set format to %d", (int)format);
         ANativeWindow_setBuffersGeometry( nativeWindow,
                                           ANativeWindow_getWidth(nativeWindow),
                                           ANativeWindow_getHeight(nativeWindow),
-                                          WINDOW_FORMAT_RGBA_8888 );
+                                          (int)format );
     }
 
     ANativeWindow_Buffer buffer;
     int ret;
+    long long startMicros = monotonicMicros();
     if( (ret = ANativeWindow_lock(nativeWindow, &buffer, NULL)) != 0 ){
         LOGE("Locking native window failed: %s", strerror(ret * -1));
+        ANativeWindow_release(nativeWindow);
         return;
     }
+    recordStage(STAGE_BITMAP_LOCK, startMicros);
 
     renderPageInternal(page, &buffer,
                        (int)startX, (int)startY,
                        buffer.width, buffer.height,
-                       (int)drawSizeHor, (int)drawSizeVer);
+                       (int)drawSizeHor, (int)drawSizeVer, 0);
 
+    startMicros = monotonicMicros();
     ANativeWindow_unlockAndPost(nativeWindow);
+    recordStage(STAGE_POST, startMicros);
     ANativeWindow_release(nativeWindow);
 }
 
+/**
+ * Lock the pixels of an RGBA_8888 or RGB_565 bitmap and describe them as a
+ * window buffer, which has the same layout, so the window render path can
+ * be reused
+ */
+static bool lockBitmapBuffer(JNIEnv *env, jobject bitmap, ANativeWindow_Buffer *buffer){
+    AndroidBitmapInfo info;
+    int ret;
+    if( (ret = AndroidBitmap_getInfo(env, bitmap, &info)) != ANDROID_BITMAP_RESULT_SUCCESS ){
+        LOGE("Fetching bitmap info failed: %d", ret);
+        return false;
+    }
+
+    if(info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 && info.format != ANDROID_BITMAP_FORMAT_RGB_565){
+        LOGE("Bitmap format must be RGBA_8888 or RGB_565");
+        return false;
+    }
+
+    void *pixels;
+    long long startMicros = monotonicMicros();
+    if( (ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) != ANDROID_BITMAP_RESULT_SUCCESS ){
+        LOGE("Locking bitmap failed: %d", ret);
+        return false;
+    }
+    recordStage(STAGE_BITMAP_LOCK, startMicros);
+
+    buffer->width = (int32_t)info.width;
+    buffer->height = (int32_t)info.height;
+    if(info.format == ANDROID_BITMAP_FORMAT_RGB_565){
+        buffer->stride = (int32_t)(info.stride / 2);
+        buffer->format = WINDOW_FORMAT_RGB_565;
+    }else{
+        buffer->stride = (int32_t)(info.stride / 4);
+        buffer->format = WINDOW_FORMAT_RGBA_8888;
+    }
+    buffer->bits = pixels;
+    return true;
+}
+
+JNI_FUNC(void, PdfiumCore, nativeRenderPageBitmap)(JNI_ARGS, jlong pagePtr, jobject bitmap,
+                                                   jint dpi, jint startX, jint startY,
+                                                   jint drawSizeHor, jint drawSizeVer,
+                                                   jint flags){
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+
+    if(page == NULL || bitmap == NULL){
+        LOGE("Render page pointers invalid");
+        return;
+    }
+
+    ANativeWindow_Buffer buffer;
+    if(!lockBitmapBuffer(env, bitmap, &buffer)) return;
+
+    renderPageInternal(page, &buffer,
+                       (int)startX, (int)startY,
+                       buffer.width, buffer.height,
+                       (int)drawSizeHor, (int)drawSizeVer, (int)flags);
+
+    long long startMicros = monotonicMicros();
+    AndroidBitmap_unlockPixels(env, bitmap);
+    recordStage(STAGE_POST, startMicros);
+}
+
+/**
+ * State of a progressive render that is driven step by step from Java.
+ * Bitmap pixels stay locked from start to close. RGB_565 bitmaps are
+ * rendered into a scratch buffer, dithered into the bitmap once done.
+ */
+struct RenderContext {
+    FPDF_PAGE page;
+    FPDF_BITMAP pdfBitmap;
+    jobject bitmap;
+    ANativeWindow_Buffer target;
+    ANativeWindow_Buffer scratch;
+    RenderPause pause;
+    int status;
+    //Time spent rasterizing over all steps
+    long long rasterizeMicros;
+};
+
+JNI_FUNC(jlong, PdfiumCore, nativeRenderPageBitmapStart)(JNI_ARGS, jlong pagePtr, jobject bitmap,
+                                                         jint dpi, jint startX, jint startY,
+                                                         jint drawSizeHor, jint drawSizeVer,
+                                                         jint flags, jobject cancelToken){
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+
+    if(page == NULL || bitmap == NULL || cancelToken == NULL){
+        LOGE("Render page pointers invalid");
+        return 0;
+    }
+
+    ANativeWindow_Buffer buffer;
+    if(!lockBitmapBuffer(env, bitmap, &buffer)) return 0;
+
+    RenderContext *context = new RenderContext();
+    context->target = buffer;
+    context->scratch.bits = NULL;
+    if(buffer.format == WINDOW_FORMAT_RGB_565){
+        if(!allocScratchBuffer(&buffer, &context->scratch)){
+            AndroidBitmap_unlockPixels(env, bitmap);
+            delete context;
+            return 0;
+        }
+        buffer = context->scratch;
+    }
+    context->page = page;
+    context->bitmap = env->NewGlobalRef(bitmap);
+    context->pdfBitmap = prepareRenderBitmap( &buffer, (int)startX, (int)startY,
+                                              buffer.width, buffer.height,
+                                              (int)drawSizeHor, (int)drawSizeVer );
+
+    context->pause.beginSlice(env, cancelToken);
+    long long startMicros = monotonicMicros();
+    context->status = FPDF_RenderPageBitmap_Start( context->pdfBitmap, page,
+                                                   (int)startX, (int)startY,
+                                                   (int)drawSizeHor, (int)drawSizeVer,
+                                                   0, (int)flags | FPDF_REVERSE_BYTE_ORDER,
+                                                   &context->pause );
+    context->rasterizeMicros = monotonicMicros() - startMicros;
+
+    return reinterpret_cast<jlong>(context);
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeRenderPageBitmapContinue)(JNI_ARGS, jlong contextPtr,
+                                                           jobject cancelToken){
+    RenderContext *context = reinterpret_cast<RenderContext*>(contextPtr);
+
+    if(context->status == FPDF_RENDER_TOBECOUNTINUED && !context->pause.cancelled){
+        context->pause.beginSlice(env, cancelToken);
+        long long startMicros = monotonicMicros();
+        context->status = FPDF_RenderPage_Continue(context->page, &context->pause);
+        context->rasterizeMicros += monotonicMicros() - startMicros;
+    }
+    return (jint)context->status;
+}
+
+JNI_FUNC(jboolean, PdfiumCore, nativeRenderPageBitmapClose)(JNI_ARGS, jlong contextPtr){
+    RenderContext *context = reinterpret_cast<RenderContext*>(contextPtr);
+    bool completed = (context->status == FPDF_RENDER_DONE);
+    if(context->pause.cancelled) LOGD("Render cancelled");
+    //Cancelled renders would only skew the rasterize times down
+    if(completed) recordStageDuration(STAGE_RASTERIZE, context->rasterizeMicros);
+
+    FPDF_RenderPage_Close(context->page);
+    FPDFBitmap_Destroy(context->pdfBitmap);
+    //A cancelled render leaves the bitmap as it was
+    if(context->scratch.bits != NULL) finishScratchBuffer(&context->target, &context->scratch, completed);
+    long long startMicros = monotonicMicros();
+    AndroidBitmap_unlockPixels(env, context->bitmap);
+    recordStage(STAGE_POST, startMicros);
+    env->DeleteGlobalRef(context->bitmap);
+    delete context;
+
+    return completed ? JNI_TRUE : JNI_FALSE;
+}
+
 }//extern C
@@ -0,0 +1,233 @@
+#include "util.hpp"
+#include "dither.hpp"
+#include "document.hpp"
+
+/**
+ * Rendering into caller owned memory, a direct ByteBuffer or an int[],
+ * instead of a Surface or an Android Bitmap. Only JNI and PDFium are used
+ * here, so this file also builds for the host against a host PDFium to run
+ * the renderer from a plain JVM.
+ */
+
+//Pixel formats of PdfBufferBitmap.FORMAT_*
+#define BUFFER_FORMAT_BGRA 0
+#define BUFFER_FORMAT_RGBA 1
+#define BUFFER_FORMAT_RGB565 2
+
+static inline int bytesPerPixel(int format){
+    return (format == BUFFER_FORMAT_RGB565)? 2 : 4;
+}
+
+/**
+ * Layout of the caller's pixels. PDFium bitmaps are only wrappers of memory,
+ * the one of the last clip rendered is kept so rendering the same clip of
+ * the same memory again creates nothing. RGB565 clips and clips of an array
+ * are rendered into a scratch buffer kept for the next render, then dithered
+ * or copied into the pixels. An array is never pinned during a render, that
+ * would hold off the GC for as long as the render takes.
+ */
+struct BufferBitmap {
+    //Address of a direct buffer, NULL for an array which may move between calls
+    unsigned char *pixels;
+    int width;
+    int height;
+    int stride;
+    int format;
+
+    FPDF_BITMAP clipBitmap;
+    unsigned char *clipFirstScan;
+    int clipWidth;
+    int clipHeight;
+
+    unsigned char *scratch;
+    size_t scratchSize;
+
+    BufferBitmap() : pixels(NULL), width(0), height(0), stride(0), format(0),
+                     clipBitmap(NULL), clipFirstScan(NULL), clipWidth(0), clipHeight(0),
+                     scratch(NULL), scratchSize(0) {}
+
+    ~BufferBitmap(){
+        if(clipBitmap != NULL) FPDFBitmap_Destroy(clipBitmap);
+        free(scratch);
+    }
+
+    bool usesScratch(){ return format == BUFFER_FORMAT_RGB565 || pixels == NULL; }
+
+    /**
+     * @return NULL if out of memory for the scratch buffer
+     */
+    FPDF_BITMAP getClipBitmap(int left, int top, int right, int bottom){
+        int w = right - left;
+        int h = bottom - top;
+        unsigned char *firstScan;
+        int scanStride;
+        if(usesScratch()){
+            size_t size = (size_t)w * h * 4;
+            if(size > scratchSize){
+                unsigned char *grown = reinterpret_cast<unsigned char*>(realloc(scratch, size));
+                if(grown == NULL){
+                    LOGE("No memory for a %dx%d scratch buffer", w, h);
+                    return NULL;
+                }
+                scratch = grown;
+                scratchSize = size;
+                //The wrapper may point to the freed scratch buffer
+                clipFirstScan = NULL;
+            }
+            firstScan = scratch;
+            scanStride = w * 4;
+        }else{
+            firstScan = pixels + (size_t)top * stride + (size_t)left * 4;
+            scanStride = stride;
+        }
+        if(clipBitmap != NULL && clipFirstScan == firstScan && clipWidth == w && clipHeight == h){
+            return clipBitmap;
+        }
+        if(clipBitmap != NULL) FPDFBitmap_Destroy(clipBitmap);
+        clipBitmap = FPDFBitmap_CreateEx(w, h, FPDFBitmap_BGRA, firstScan, scanStride);
+        clipFirstScan = firstScan;
+        clipWidth = w;
+        clipHeight = h;
+        return clipBitmap;
+    }
+};
+
+//Bytes from the first pixel to past the last one
+static inline size_t requiredBytes(int width, int height, int stride, int format){
+    return (size_t)stride * (height - 1) + (size_t)width * bytesPerPixel(format);
+}
+
+//Fill in the byte order rendered, PDFium fills in BGRA
+static void fillRect(FPDF_BITMAP bitmap, int format, int left, int top, int right, int bottom, unsigned int argb){
+    if(right <= left || bottom <= top) return;
+    int a = (argb >> 24) & 0xff;
+    int r = (argb >> 16) & 0xff;
+    int g = (argb >> 8) & 0xff;
+    int b = argb & 0xff;
+    if(format != BUFFER_FORMAT_BGRA){
+        int swap = r;
+        r = b;
+        b = swap;
+    }
+    FPDFBitmap_FillRect(bitmap, left, top, right - left, bottom - top, r, g, b, a);
+}
+
+extern "C" { //For JNI support
+
+/**
+ * @param buffer direct buffer holding the pixels, NULL when they are passed
+ *               as an array on every render
+ * @param stride bytes from a row to the next
+ * @return 0 if the buffer is too small
+ */
+JNI_FUNC(jlong, PdfBufferBitmap, nativeCreate)(JNI_ARGS, jobject buffer, jint width, jint height,
+                                                jint stride, jint format){
+    BufferBitmap *bitmap = new BufferBitmap();
+    bitmap->width = (int)width;
+    bitmap->height = (int)height;
+    bitmap->stride = (int)stride;
+    bitmap->format = (int)format;
+
+    if(buffer != NULL){
+        bitmap->pixels = reinterpret_cast<unsigned char*>(env->GetDirectBufferAddress(buffer));
+        jlong capacity = env->GetDirectBufferCapacity(buffer);
+        if(bitmap->pixels == NULL || capacity < 0
+                || (size_t)capacity < requiredBytes(bitmap->width, bitmap->height, bitmap->stride, bitmap->format)){
+            LOGE("Buffer too small or not direct");
+            delete bitmap;
+            return 0;
+        }
+    }
+    return reinterpret_cast<jlong>(bitmap);
+}
+
+JNI_FUNC(void, PdfBufferBitmap, nativeDestroy)(JNI_ARGS, jlong bitmapPtr){
+    delete reinterpret_cast<BufferBitmap*>(bitmapPtr);
+}
+
+/**
+ * Render a page into the clip of a buffer bitmap. The clip is filled with
+ * the background, the page area within it with white, then the page is
+ * drawn at (startX, startY) of the bitmap scaled to drawSizeHor x drawSizeVer.
+ * @param pixels the pixels of an array backed bitmap, NULL for a buffer
+ * @param background ARGB color, not drawn if fully transparent
+ * @return false if the pixels don't fit the bitmap
+ */
+JNI_FUNC(jboolean, PdfiumEngine, nativeRenderPageBuffer)(JNI_ARGS, jlong pagePtr, jlong bitmapPtr,
+                                                       jintArray pixels,
+                                                       jint clipLeft, jint clipTop,
+                                                       jint clipRight, jint clipBottom,
+                                                       jint startX, jint startY,
+                                                       jint drawSizeHor, jint drawSizeVer,
+                                                       jint flags, jint background){
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    BufferBitmap *bitmap = reinterpret_cast<BufferBitmap*>(bitmapPtr);
+    if(page == NULL || bitmap == NULL){
+        LOGE("Render page pointers invalid");
+        return JNI_FALSE;
+    }
+
+    int left = (clipLeft < 0)? 0 : (int)clipLeft;
+    int top = (clipTop < 0)? 0 : (int)clipTop;
+    int right = (clipRight > bitmap->width)? bitmap->width : (int)clipRight;
+    int bottom = (clipBottom > bitmap->height)? bitmap->height : (int)clipBottom;
+    if(right <= left || bottom <= top) return JNI_TRUE;
+
+    if(pixels != NULL){
+        size_t length = (size_t)env->GetArrayLength(pixels) * 4;
+        if(length < requiredBytes(bitmap->width, bitmap->height, bitmap->stride, bitmap->format)){
+            LOGE("Pixel array too small");
+            return JNI_FALSE;
+        }
+    }else if(bitmap->pixels == NULL){
+        LOGE("Buffer bitmap without pixels");
+        return JNI_FALSE;
+    }
+
+    FPDF_BITMAP pdfBitmap = bitmap->getClipBitmap(left, top, right, bottom);
+    if(pdfBitmap == NULL) return JNI_FALSE;
+    int clipWidth = right - left;
+    int clipHeight = bottom - top;
+    //Ints from a row of the array to the next
+    int strideInts = bitmap->stride / 4;
+    //Page position relative to the clip
+    int pageX = (int)startX - left;
+    int pageY = (int)startY - top;
+
+    //RGB565 has no alpha, a transparent background would leave the scratch buffer's old pixels
+    if(bitmap->format == BUFFER_FORMAT_RGB565) background |= 0xff000000;
+    if(pixels != NULL && (unsigned int)background >> 24 == 0){
+        //Pixels outside the page are left as they are, start from them
+        for(int row = 0; row < clipHeight; row++){
+            env->GetIntArrayRegion(pixels, (top + row) * strideInts + left, clipWidth,
+                                   reinterpret_cast<jint*>(bitmap->scratch + (size_t)row * clipWidth * 4));
+        }
+    }
+    if((unsigned int)background >> 24 != 0){
+        fillRect(pdfBitmap, bitmap->format, 0, 0, clipWidth, clipHeight, (unsigned int)background);
+    }
+    fillRect(pdfBitmap, bitmap->format,
+             (pageX < 0)? 0 : pageX, (pageY < 0)? 0 : pageY,
+             (pageX + drawSizeHor > clipWidth)? clipWidth : pageX + (int)drawSizeHor,
+             (pageY + drawSizeVer > clipHeight)? clipHeight : pageY + (int)drawSizeVer,
+             0xffffffff);
+
+    int renderFlags = (int)flags;
+    if(bitmap->format != BUFFER_FORMAT_BGRA) renderFlags |= FPDF_REVERSE_BYTE_ORDER;
+    FPDF_RenderPageBitmap(pdfBitmap, page, pageX, pageY, (int)drawSizeHor, (int)drawSizeVer, 0, renderFlags);
+
+    if(pixels != NULL){
+        //Rows of the clip are apart in the array
+        for(int row = 0; row < clipHeight; row++){
+            env->SetIntArrayRegion(pixels, (top + row) * strideInts + left, clipWidth,
+                                   reinterpret_cast<const jint*>(bitmap->scratch + (size_t)row * clipWidth * 4));
+        }
+    }else if(bitmap->format == BUFFER_FORMAT_RGB565){
+        ditherRgbaToRgb565( bitmap->scratch, clipWidth * 4,
+                            bitmap->pixels + (size_t)top * bitmap->stride + (size_t)left * 2, bitmap->stride,
+                            clipWidth, clipHeight, left, top );
+    }
+    return JNI_TRUE;
+}
+
+}//extern C
@@ -0,0 +1,14 @@
+package com.shockwave.pdfium;
+
+/**
+ * Cancellation flag for a progressive render. Native render code polls
+ * isCancelled() from the PDFium pause callback, so a superseded render is
+ * abandoned at the next pause point instead of running to completion.
+ */
+public class CancellationToken {
+    private volatile boolean mCancelled = false;
+
+    public void cancel(){ mCancelled = true; }
+
+    public boolean isCancelled(){ return mCancelled; }
+}
@@ -0,0 +1,100 @@
+package com.shockwave.pdfium;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * LRU cache of rendered page bitmaps, bounded by bytes rather than entries.
+ * Entries are keyed by (document, page index, target size, DPI) so a bitmap
+ * is only reused for exactly the render it came from.
+ */
+public class PageBitmapCache {
+    private static final String TAG = PageBitmapCache.class.getName();
+
+    private final LruCache<Key, Bitmap> mCache;
+
+    public PageBitmapCache(int maxBytes){
+        mCache = new LruCache<Key, Bitmap>(maxBytes){
+            @Override
+            protected int sizeOf(Key key, Bitmap value){
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    public Bitmap get(PdfDocument doc, int pageIndex, int width, int height, int dpi){
+        return mCache.get(new Key(doc.mNativeDocPtr, pageIndex, width, height, dpi));
+    }
+
+    public void put(PdfDocument doc, int pageIndex, int width, int height, int dpi, Bitmap bitmap){
+        mCache.put(new Key(doc.mNativeDocPtr, pageIndex, width, height, dpi), bitmap);
+    }
+
+    public int getHitCount(){ return mCache.hitCount(); }
+    public int getMissCount(){ return mCache.missCount(); }
+    public int getEvictionCount(){ return mCache.evictionCount(); }
+    public int getSizeBytes(){ return mCache.size(); }
+    public int getMaxSizeBytes(){ return mCache.maxSize(); }
+
+    public void evictAll(){ mCache.evictAll(); }
+
+    /**
+     * Shrink in response to ComponentCallbacks2.onTrimMemory, the harder the
+     * system presses the less we keep
+     */
+    public void onTrimMemory(int level){
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE){
+            mCache.evictAll();
+        }else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL){
+            mCache.trimToSize(mCache.maxSize() / 4);
+        }else{
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+        Log.d(TAG, "Trim level " + level + ", cache now " + mCache.size() + " bytes");
+    }
+
+    @Override
+    public String toString(){
+        return "PageBitmapCache[hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount()
+                + ", size=" + getSizeBytes() + "/" + getMaxSizeBytes() + "]";
+    }
+
+    private static final class Key {
+        final long docPtr;
+        final int pageIndex;
+        final int width;
+        final int height;
+        final int dpi;
+
+        Key(long docPtr, int pageIndex, int width, int height, int dpi){
+            this.docPtr = docPtr;
+            this.pageIndex = pageIndex;
+            this.width = width;
+            this.height = height;
+            this.dpi = dpi;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this == o) return true;
+            if(!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return docPtr == k.docPtr && pageIndex == k.pageIndex
+                    && width == k.width && height == k.height && dpi == k.dpi;
+        }
+
+        @Override
+        public int hashCode(){
+            int result = (int)(docPtr ^ (docPtr >>> 32));
+            result = 31 * result + pageIndex;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + dpi;
+            return result;
+        }
+    }
+}
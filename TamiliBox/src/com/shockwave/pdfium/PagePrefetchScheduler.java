@@ -0,0 +1,170 @@
+package com.shockwave.pdfium;
+
+import android.util.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetches and pre-renders a window of pages around the current page.
+ *
+ * The direction of travel is predicted from the recent navigation history,
+ * the window extends lookAhead pages in that direction and lookBehind pages
+ * against it. Work is ordered next > previous > further ahead > further
+ * behind, and everything queued for an earlier position is cancelled when
+ * the current page changes.
+ *
+ * After a jump to a section of the outline the pages of the section are
+ * read in order, so while the current page is within it the window looks
+ * forward to the section end instead, up to a page limit.
+ */
+public class PagePrefetchScheduler {
+    private static final String TAG = PagePrefetchScheduler.class.getName();
+
+    /** Number of recent page changes used to predict the direction */
+    private static final int HISTORY_SIZE = 4;
+
+    /** Does the actual work for one page, typically load and render into a cache */
+    public interface PagePrefetcher {
+        /**
+         * @return false if cancelled before the page was ready
+         */
+        boolean prefetch(int pageIndex, CancellationToken token);
+    }
+
+    private final PagePrefetcher mPrefetcher;
+    private final ThreadPoolExecutor mExecutor;
+    private int mLookAhead;
+    private int mLookBehind;
+
+    private final int[] mHistory = new int[HISTORY_SIZE];
+    private int mHistoryCount = 0;
+    private int mLastPageIndex = -1;
+    private CancellationToken mToken = null;
+    private long mSequence = 0;
+    private int mSectionFirst = -1;
+    private int mSectionLast = -1;
+    private int mSectionLookAhead = 0;
+
+    public PagePrefetchScheduler(PagePrefetcher prefetcher, int threads, int lookAhead, int lookBehind){
+        mPrefetcher = prefetcher;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                           new PriorityBlockingQueue<Runnable>());
+        setWindow(lookAhead, lookBehind);
+    }
+
+    public synchronized void setWindow(int lookAhead, int lookBehind){
+        mLookAhead = Math.max(0, lookAhead);
+        mLookBehind = Math.max(0, lookBehind);
+    }
+
+    /**
+     * Prefetch the section a jump goes to, from the page change of the jump
+     * on until the current page leaves it
+     * @param lastPage last page of the section
+     * @param maxLookAhead most pages to prefetch ahead, typically what fits the cache
+     */
+    public synchronized void setSection(int firstPage, int lastPage, int maxLookAhead){
+        mSectionFirst = firstPage;
+        mSectionLast = lastPage;
+        mSectionLookAhead = Math.max(0, maxLookAhead);
+    }
+
+    /**
+     * Record a page change and reschedule the prefetch window around it.
+     * Prefetch work for the previous position is cancelled.
+     */
+    public synchronized void onPageChanged(int pageIndex, int pageCount){
+        if(mLastPageIndex >= 0 && pageIndex != mLastPageIndex){
+            mHistory[mHistoryCount % HISTORY_SIZE] = (pageIndex > mLastPageIndex)? 1 : -1;
+            mHistoryCount++;
+        }
+        mLastPageIndex = pageIndex;
+
+        PdfMetrics.PREFETCH_QUEUE_DEPTH.record(mExecutor.getQueue().size());
+        cancel();
+        final CancellationToken token = new CancellationToken();
+        mToken = token;
+
+        int direction = predictDirection();
+        int ahead = mLookAhead;
+        int behind = mLookBehind;
+        if(pageIndex >= mSectionFirst && pageIndex <= mSectionLast){
+            //Reading through the section, the jump there says nothing of the direction
+            direction = 1;
+            ahead = Math.max(ahead, Math.min(mSectionLast - pageIndex, mSectionLookAhead));
+        }else{
+            mSectionFirst = mSectionLast = -1;
+        }
+        int priority = 0;
+
+        //Next and previous first, then the rest of the window outward
+        if(ahead > 0) schedule(pageIndex + direction, pageCount, priority++, token);
+        if(behind > 0) schedule(pageIndex - direction, pageCount, priority++, token);
+        for(int i = 2; i <= ahead; i++){
+            schedule(pageIndex + i * direction, pageCount, priority++, token);
+        }
+        for(int i = 2; i <= behind; i++){
+            schedule(pageIndex - i * direction, pageCount, priority++, token);
+        }
+    }
+
+    /**
+     * @return 1 when moving forward, -1 when moving backward, forward when unsure
+     */
+    private int predictDirection(){
+        int count = Math.min(mHistoryCount, HISTORY_SIZE);
+        int sum = 0;
+        for(int i = 0; i < count; i++) sum += mHistory[i];
+        return (sum < 0)? -1 : 1;
+    }
+
+    private void schedule(int pageIndex, int pageCount, int priority, CancellationToken token){
+        if(pageIndex < 0 || pageIndex >= pageCount) return;
+        mExecutor.execute(new PrefetchTask(pageIndex, priority, mSequence++, token));
+    }
+
+    /**
+     * Cancel all queued and running prefetch work
+     */
+    public synchronized void cancel(){
+        if(mToken != null) mToken.cancel();
+        mExecutor.getQueue().clear();
+    }
+
+    public void shutdown(){
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    public int getQueueDepth(){ return mExecutor.getQueue().size(); }
+
+    private class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+        final int pageIndex;
+        final int priority;
+        final long sequence;
+        final CancellationToken token;
+
+        PrefetchTask(int pageIndex, int priority, long sequence, CancellationToken token){
+            this.pageIndex = pageIndex;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.token = token;
+        }
+
+        @Override
+        public void run(){
+            if(token.isCancelled()) return;
+            if(!mPrefetcher.prefetch(pageIndex, token)){
+                Log.d(TAG, "Prefetch of page " + pageIndex + " abandoned");
+            }
+        }
+
+        @Override
+        public int compareTo(PrefetchTask other){
+            if(priority != other.priority) return (priority < other.priority)? -1 : 1;
+            return (sequence < other.sequence)? -1 : (sequence > other.sequence)? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.shockwave.pdfium;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Renders zoomed pages as a grid of fixed-size tiles. Only tiles intersecting
+ * the visible part of the page are rendered, and rendered tiles are kept in a
+ * byte-bounded LRU so panning only pays for newly exposed area.
+ *
+ * A zoom level is identified by the scaled page size in pixels, so tiles of
+ * the same page at another zoom never collide.
+ */
+public class PageTileRenderer {
+    private static final String TAG = PageTileRenderer.class.getName();
+
+    public static final int TILE_SIZE = 256;
+
+    private final PdfiumCore mPdfCore;
+    private final Bitmap.Config mConfig;
+    private final LruCache<TileKey, Bitmap> mTileCache;
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+
+    public PageTileRenderer(PdfiumCore core, int maxBytes){
+        this(core, maxBytes, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @param config ARGB_8888, or RGB_565 for half the memory per tile
+     */
+    public PageTileRenderer(PdfiumCore core, int maxBytes, Bitmap.Config config){
+        mPdfCore = core;
+        mConfig = config;
+        mTileCache = new LruCache<TileKey, Bitmap>(maxBytes){
+            @Override
+            protected int sizeOf(TileKey key, Bitmap value){
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Render every tile intersecting the visible rect that is not cached yet.
+     * @param pageWidth scaled page width in pixels
+     * @param pageHeight scaled page height in pixels
+     * @param visible visible part of the page, in scaled page pixels
+     * @return false if cancelled before all visible tiles were rendered
+     */
+    public boolean renderTiles(PdfDocument doc, int pageIndex, int pageWidth, int pageHeight,
+                               Rect visible, CancellationToken token){
+        int firstX = Math.max(0, visible.left / TILE_SIZE);
+        int firstY = Math.max(0, visible.top / TILE_SIZE);
+        int lastX = Math.min((pageWidth - 1) / TILE_SIZE, (visible.right - 1) / TILE_SIZE);
+        int lastY = Math.min((pageHeight - 1) / TILE_SIZE, (visible.bottom - 1) / TILE_SIZE);
+
+        for(int ty = firstY; ty <= lastY; ty++){
+            for(int tx = firstX; tx <= lastX; tx++){
+                if(token != null && token.isCancelled()) return false;
+
+                TileKey key = new TileKey(doc.mNativeDocPtr, pageIndex, pageWidth, pageHeight, tx, ty);
+                if(mTileCache.get(key) != null) continue;
+
+                Bitmap tile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, mConfig);
+                if(!mPdfCore.renderPageBitmap(doc, tile, pageIndex,
+                        -tx * TILE_SIZE, -ty * TILE_SIZE, pageWidth, pageHeight, token)){
+                    return false;
+                }
+                mTileCache.put(key, tile);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draw the cached tiles intersecting the visible rect. Tiles missing from
+     * the cache are skipped, leaving whatever the canvas already holds.
+     * @param offsetX screen x of the page origin
+     * @param offsetY screen y of the page origin
+     */
+    public void drawTiles(Canvas canvas, PdfDocument doc, int pageIndex, int pageWidth, int pageHeight,
+                          Rect visible, int offsetX, int offsetY){
+        int firstX = Math.max(0, visible.left / TILE_SIZE);
+        int firstY = Math.max(0, visible.top / TILE_SIZE);
+        int lastX = Math.min((pageWidth - 1) / TILE_SIZE, (visible.right - 1) / TILE_SIZE);
+        int lastY = Math.min((pageHeight - 1) / TILE_SIZE, (visible.bottom - 1) / TILE_SIZE);
+
+        for(int ty = firstY; ty <= lastY; ty++){
+            for(int tx = firstX; tx <= lastX; tx++){
+                Bitmap tile = mTileCache.get(
+                        new TileKey(doc.mNativeDocPtr, pageIndex, pageWidth, pageHeight, tx, ty));
+                if(tile == null) continue;
+
+                //Edge tiles are partly outside the page, only draw the page part
+                int left = tx * TILE_SIZE;
+                int top = ty * TILE_SIZE;
+                int width = Math.min(TILE_SIZE, pageWidth - left);
+                int height = Math.min(TILE_SIZE, pageHeight - top);
+                mSrcRect.set(0, 0, width, height);
+                mDstRect.set(offsetX + left, offsetY + top,
+                             offsetX + left + width, offsetY + top + height);
+                canvas.drawBitmap(tile, mSrcRect, mDstRect, null);
+            }
+        }
+    }
+
+    public int getHitCount(){ return mTileCache.hitCount(); }
+    public int getMissCount(){ return mTileCache.missCount(); }
+    public int getEvictionCount(){ return mTileCache.evictionCount(); }
+
+    public void evictAll(){ mTileCache.evictAll(); }
+
+    public void onTrimMemory(int level){
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE){
+            mTileCache.evictAll();
+        }else{
+            mTileCache.trimToSize(mTileCache.maxSize() / 2);
+        }
+        Log.d(TAG, "Trim level " + level + ", tiles now " + mTileCache.size() + " bytes");
+    }
+
+    @Override
+    public String toString(){
+        return "PageTileRenderer[hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount()
+                + ", size=" + mTileCache.size() + "/" + mTileCache.maxSize() + "]";
+    }
+
+    private static final class TileKey {
+        final long docPtr;
+        final int pageIndex;
+        final int pageWidth;
+        final int pageHeight;
+        final int tileX;
+        final int tileY;
+
+        TileKey(long docPtr, int pageIndex, int pageWidth, int pageHeight, int tileX, int tileY){
+            this.docPtr = docPtr;
+            this.pageIndex = pageIndex;
+            this.pageWidth = pageWidth;
+            this.pageHeight = pageHeight;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this == o) return true;
+            if(!(o instanceof TileKey)) return false;
+            TileKey k = (TileKey)o;
+            return docPtr == k.docPtr && pageIndex == k.pageIndex
+                    && pageWidth == k.pageWidth && pageHeight == k.pageHeight
+                    && tileX == k.tileX && tileY == k.tileY;
+        }
+
+        @Override
+        public int hashCode(){
+            int result = (int)(docPtr ^ (docPtr >>> 32));
+            result = 31 * result + pageIndex;
+            result = 31 * result + pageWidth;
+            result = 31 * result + pageHeight;
+            result = 31 * result + tileX;
+            result = 31 * result + tileY;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.shockwave.pdfium;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Caller owned pixels PdfiumEngine.renderPageBuffer renders into, a direct
+ * ByteBuffer or an int[] with any stride. The native wrapper is
+ * made once, so rendering again into the same bitmap allocates nothing.
+ * Not to be rendered into from two threads at once.
+ */
+public class PdfBufferBitmap {
+    static{
+        System.loadLibrary("jniPdfium");
+    }
+
+    /** Bytes blue, green, red, alpha, so an int[] holds ARGB ints on little endian CPUs */
+    public static final int FORMAT_BGRA = 0;
+    /** Bytes red, green, blue, alpha as in an ARGB_8888 Bitmap, see Bitmap.copyPixelsFromBuffer */
+    public static final int FORMAT_RGBA = 1;
+    /** 16 bit RGB_565 as in an RGB_565 Bitmap, dithered, direct buffers only */
+    public static final int FORMAT_RGB565 = 2;
+
+    private static native long nativeCreate(ByteBuffer buffer, int width, int height, int stride, int format);
+    private static native void nativeDestroy(long bitmapPtr);
+
+    private final ByteBuffer mBuffer;
+    private final int[] mPixels;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    long mNativePtr;
+
+    private PdfBufferBitmap(ByteBuffer buffer, int[] pixels, int width, int height, int strideBytes, int format){
+        if(format != FORMAT_BGRA && format != FORMAT_RGBA && format != FORMAT_RGB565){
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        if(width <= 0 || height <= 0 || strideBytes < width * getBytesPerPixel(format)){
+            throw new IllegalArgumentException("Bad size " + width + "x" + height + ", stride " + strideBytes);
+        }
+        mBuffer = buffer;
+        mPixels = pixels;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        synchronized (PdfiumEngine.sNativeLock){
+            mNativePtr = nativeCreate(buffer, width, height, strideBytes, format);
+        }
+        if(mNativePtr == 0) throw new IllegalArgumentException("Buffer not direct or too small");
+    }
+
+    /**
+     * @param buffer direct buffer, rows start strideBytes apart from its address
+     */
+    public static PdfBufferBitmap wrap(ByteBuffer buffer, int width, int height, int strideBytes, int format){
+        if(!buffer.isDirect()) throw new IllegalArgumentException("Buffer must be direct");
+        return new PdfBufferBitmap(buffer, null, width, height, strideBytes, format);
+    }
+
+    /**
+     * A direct buffer is rendered into in place, an int[] through a native
+     * buffer of the clip copied into it after the render.
+     * @param stride pixels from a row to the next
+     */
+    public static PdfBufferBitmap wrap(int[] pixels, int width, int height, int stride, int format){
+        if(format == FORMAT_RGB565) throw new IllegalArgumentException("An int[] holds 32 bit pixels");
+        if((long)stride * (height - 1) + width > pixels.length){
+            throw new IllegalArgumentException("Array too small");
+        }
+        return new PdfBufferBitmap(null, pixels, width, height, stride * 4, format);
+    }
+
+    public ByteBuffer getBuffer(){ return mBuffer; }
+    public int[] getPixels(){ return mPixels; }
+    public int getWidth(){ return mWidth; }
+    public int getHeight(){ return mHeight; }
+    public int getFormat(){ return mFormat; }
+
+    public static int getBytesPerPixel(int format){
+        return (format == FORMAT_RGB565)? 2 : 4;
+    }
+
+    public synchronized boolean isRecycled(){ return mNativePtr == 0; }
+
+    /**
+     * Free the native wrapper, the pixels stay the caller's
+     */
+    public synchronized void recycle(){
+        if(mNativePtr == 0) return;
+        synchronized (PdfiumEngine.sNativeLock){
+            nativeDestroy(mNativePtr);
+        }
+        mNativePtr = 0;
+    }
+}
@@ -1,14 +1,60 @@
 package com.shockwave.pdfium;
 
-import android.support.v4.util.ArrayMap;
-
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 public class PdfDocument {
+    public static final int DEFAULT_MAX_OPEN_PAGES = 16;
+
     public final Object Lock = new Object();
     PdfDocument(){}
     public long mNativeDocPtr;
-    final Map<Integer, Long> mNativePagesPtr = new ArrayMap<Integer, Long>();
-    public boolean hasPage(int index){ return mNativePagesPtr.containsKey(index);
+    /** Open page handles in access order, eldest first, so the LRU is evicted first */
+    final LinkedHashMap<Integer, Long> mNativePagesPtr = new LinkedHashMap<Integer, Long>(16, 0.75f, true);
+    /** Pages with a progressive render in flight, guarded by Lock */
+    final Set<Integer> mRenderingPages = new HashSet<Integer>();
+    /** Pin counts of pages that may not be evicted, guarded by Lock */
+    final Map<Integer, Integer> mPinnedPages = new HashMap<Integer, Integer>();
+    /** Opened with newDocumentIncremental, pages are read from the file on demand */
+    boolean mIncremental = false;
+    /** Page sizes in points, read once on first use, guarded by Lock */
+    float[] mPageSizes = null;
+    /** PdfDocumentLayout of PdfiumCore, typed loosely to keep documents free of Android */
+    Object mLayout = null;
+    /** Bookmark tree, read once on first use, guarded by Lock */
+    PdfOutline mOutline = null;
+    /** Pages of the named destinations looked up, -1 for unknown names, guarded by Lock */
+    final Map<String, Integer> mNamedDestPages = new HashMap<String, Integer>();
+    int mMaxOpenPages = DEFAULT_MAX_OPEN_PAGES;
+    int mOpenedPageCount = 0;
+    int mEvictedPageCount = 0;
+
+    public boolean isIncremental(){ return mIncremental; }
+
+    public boolean hasPage(int index){
+        synchronized (Lock){ return mNativePagesPtr.containsKey(index); }
+    }
+
+    boolean isPinned(int index){
+        return mPinnedPages.containsKey(index) || mRenderingPages.contains(index);
+    }
+
+    /** Number of page handles currently open */
+    public int getOpenPageCount(){
+        synchronized (Lock){ return mNativePagesPtr.size(); }
+    }
+    /** Number of page handles opened since the document was opened */
+    public int getOpenedPageCount(){
+        synchronized (Lock){ return mOpenedPageCount; }
+    }
+    /** Number of page handles closed to stay within the open page limit */
+    public int getEvictedPageCount(){
+        synchronized (Lock){ return mEvictedPageCount; }
+    }
+    public int getMaxOpenPages(){
+        synchronized (Lock){ return mMaxOpenPages; }
     }
 }
@@ -0,0 +1,194 @@
+package com.shockwave.pdfium;
+
+import android.graphics.Rect;
+
+/**
+ * Layout index of a document computed once from the page sizes, so layout
+ * work never needs a page to be loaded.
+ *
+ * Holds the cumulative page offsets of a continuous vertical layout, in units
+ * of the view width, and the fit-to-screen rect of every page, cached per
+ * orientation so rotating back and forth doesn't recompute them.
+ */
+public class PdfDocumentLayout {
+    /** Gap between pages of the continuous layout, relative to the view width */
+    public static final float DEFAULT_PAGE_SPACING = 0.02f;
+
+    private final int mPageCount;
+    /** Page sizes in points, (width, height) pairs */
+    private final float[] mPageSizes;
+    /** Top of each page in a continuous layout scaled to a width of 1, mPageCount + 1 entries */
+    private final float[] mPageOffsets;
+
+    private final FitRects mPortraitFits;
+    private final FitRects mLandscapeFits;
+
+    /**
+     * @param pageSizes page sizes in points as (width, height) pairs
+     * @param pageSpacing gap between pages in the continuous layout, relative to the view width
+     */
+    PdfDocumentLayout(float[] pageSizes, float pageSpacing){
+        mPageSizes = pageSizes;
+        mPageCount = pageSizes.length / 2;
+
+        mPageOffsets = new float[mPageCount + 1];
+        float offset = 0;
+        for(int i = 0; i < mPageCount; i++){
+            mPageOffsets[i] = offset;
+            offset += getAspectHeight(i) + (i < mPageCount - 1? pageSpacing : 0);
+        }
+        mPageOffsets[mPageCount] = offset;
+
+        mPortraitFits = new FitRects(mPageCount);
+        mLandscapeFits = new FitRects(mPageCount);
+    }
+
+    public int getPageCount(){ return mPageCount; }
+
+    /** Page width in points, 0 if unknown */
+    public float getPageWidthPoint(int pageIndex){
+        return (pageIndex >= 0 && pageIndex < mPageCount)? mPageSizes[pageIndex * 2] : 0;
+    }
+    /** Page height in points, 0 if unknown */
+    public float getPageHeightPoint(int pageIndex){
+        return (pageIndex >= 0 && pageIndex < mPageCount)? mPageSizes[pageIndex * 2 + 1] : 0;
+    }
+
+    /** Height of the page when its width is 1, pages of unknown size are square */
+    private float getAspectHeight(int pageIndex){
+        float width = getPageWidthPoint(pageIndex);
+        float height = getPageHeightPoint(pageIndex);
+        return (width > 0 && height > 0)? height / width : 1f;
+    }
+
+    /**
+     * Top of a page in a continuous vertical layout of the given width
+     */
+    public int getPageOffset(int pageIndex, int viewWidth){
+        return Math.round(mPageOffsets[pageIndex] * viewWidth);
+    }
+
+    /** Height of the whole continuous layout of the given width */
+    public int getTotalHeight(int viewWidth){
+        return Math.round(mPageOffsets[mPageCount] * viewWidth);
+    }
+
+    /**
+     * Find the page showing at an offset of the continuous layout, the gap
+     * after a page belongs to that page
+     */
+    public int findPageAtOffset(int offset, int viewWidth){
+        if(mPageCount == 0 || viewWidth <= 0) return -1;
+        float position = (float)offset / viewWidth;
+        int low = 0;
+        int high = mPageCount - 1;
+        while(low < high){
+            int mid = (low + high + 1) >>> 1;
+            if(mPageOffsets[mid] <= position) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Get the rect of a page fitted to the screen. Portrait screens fit the
+     * page inside and center it, landscape screens fit wide pages to the
+     * height and tall pages to the width.
+     */
+    public void getFitRect(int pageIndex, int screenWidth, int screenHeight, Rect pageRect){
+        //Pages beyond the known sizes, of a layout built before the document was available
+        if(pageIndex < 0 || pageIndex >= mPageCount){
+            pageRect.setEmpty();
+            return;
+        }
+        FitRects fits = (screenWidth < screenHeight)? mPortraitFits : mLandscapeFits;
+        synchronized (fits){
+            if(fits.screenWidth != screenWidth || fits.screenHeight != screenHeight){
+                Rect rect = new Rect();
+                for(int i = 0; i < mPageCount; i++){
+                    computeFitRect(i, screenWidth, screenHeight, rect);
+                    fits.set(i, rect);
+                }
+                fits.screenWidth = screenWidth;
+                fits.screenHeight = screenHeight;
+            }
+            fits.get(pageIndex, pageRect);
+        }
+    }
+
+    private void computeFitRect(int pageIndex, float screenWidth, float screenHeight, Rect pageRect){
+        float pageWidth = getPageWidthPoint(pageIndex);
+        float pageHeight = getPageHeightPoint(pageIndex);
+        if(pageWidth <= 0 || pageHeight <= 0){
+            pageRect.setEmpty();
+            return;
+        }
+
+        /**Portrait**/
+        if(screenWidth < screenHeight){
+            if( (pageWidth / pageHeight) < (screenWidth / screenHeight) ){
+                //Situation one: fit height
+                pageWidth *= (screenHeight / pageHeight);
+                pageHeight = screenHeight;
+
+                pageRect.top = 0;
+                pageRect.left = (int)(screenWidth - pageWidth) / 2;
+                pageRect.right = (int)(pageRect.left + pageWidth);
+                pageRect.bottom = (int)pageHeight;
+            }else{
+                //Situation two: fit width
+                pageHeight *= (screenWidth / pageWidth);
+                pageWidth = screenWidth;
+
+                pageRect.left = 0;
+                pageRect.top = (int)(screenHeight - pageHeight) / 2;
+                pageRect.bottom = (int)(pageRect.top + pageHeight);
+                pageRect.right = (int)pageWidth;
+            }
+        }else{
+
+            /**Landscape**/
+            if( pageWidth > pageHeight ){
+                //Situation one: fit height
+                pageWidth *= (screenHeight / pageHeight);
+                pageHeight = screenHeight;
+
+                pageRect.top = 0;
+                pageRect.left = (int)(screenWidth - pageWidth) / 2;
+                pageRect.right = (int)(pageRect.left + pageWidth);
+                pageRect.bottom = (int)pageHeight;
+            }else{
+                //Situation two: fit width
+                pageHeight *= (screenWidth / pageWidth);
+                pageWidth = screenWidth;
+
+                pageRect.left = 0;
+                pageRect.top = 0;
+                pageRect.bottom = (int)(pageRect.top + pageHeight);
+                pageRect.right = (int)pageWidth;
+            }
+        }
+    }
+
+    /** Fit rects of all pages for one screen size, packed as (left, top, right, bottom) */
+    private static final class FitRects {
+        final int[] rects;
+        int screenWidth = -1;
+        int screenHeight = -1;
+
+        FitRects(int pageCount){ rects = new int[pageCount * 4]; }
+
+        void set(int pageIndex, Rect rect){
+            int i = pageIndex * 4;
+            rects[i] = rect.left;
+            rects[i + 1] = rect.top;
+            rects[i + 2] = rect.right;
+            rects[i + 3] = rect.bottom;
+        }
+
+        void get(int pageIndex, Rect rect){
+            int i = pageIndex * 4;
+            rect.set(rects[i], rects[i + 1], rects[i + 2], rects[i + 3]);
+        }
+    }
+}
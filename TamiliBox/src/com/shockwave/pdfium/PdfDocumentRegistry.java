@@ -0,0 +1,183 @@
+package com.shockwave.pdfium;
+
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide registry of open documents, so viewers of the same file share
+ * one document and one read-only mapping instead of each opening their own.
+ *
+ * Files are identified by path, inode and modification time, a file that was
+ * rewritten gets a new document while viewers of the old one keep theirs.
+ * Incremental and whole opens of a file are separate documents, a caller
+ * never gets one in the other mode, whose data it wouldn't wait for.
+ * Documents are reference counted, and the last few released documents stay
+ * open for a while so re-entering a viewer of the same file is instant.
+ */
+public class PdfDocumentRegistry {
+    private static final String TAG = PdfDocumentRegistry.class.getName();
+
+    /** Released documents kept open in case they are asked for again */
+    private static final int MAX_IDLE_DOCUMENTS = 2;
+
+    private static final Map<Key, Entry> sDocuments = new HashMap<Key, Entry>();
+    /** Released documents, eldest first */
+    private static final LinkedHashMap<Key, Entry> sIdleDocuments = new LinkedHashMap<Key, Entry>();
+    private static final Map<PdfDocument, Entry> sEntries = new HashMap<PdfDocument, Entry>();
+
+    private PdfDocumentRegistry(){}
+
+    /**
+     * Get the shared document of a file, opening it if no viewer has it open.
+     * Every acquire must be paired with a release.
+     * @param incremental open with PdfiumCore.newDocumentIncremental, call
+     *                    waitForDocument before using the document
+     */
+    public static PdfDocument acquire(PdfiumCore core, String path, boolean incremental)
+            throws IOException {
+        FileInputStream stream = new FileInputStream(path);
+        long[] identity = core.getFileIdentity(stream.getFD());
+        if(identity == null){
+            stream.close();
+            throw new IOException("Can't stat " + path);
+        }
+        Key key = new Key(path, identity, incremental);
+
+        synchronized (sDocuments){
+            Entry entry = sDocuments.get(key);
+            if(entry != null){
+                //The entry keeps its own stream open
+                stream.close();
+                sIdleDocuments.remove(key);
+                entry.refCount++;
+                Log.d(TAG, "Share document " + path + ", references " + entry.refCount);
+                return entry.document;
+            }
+
+            PdfDocument document = incremental?
+                    core.newDocumentIncremental(stream.getFD(), 0) :
+                    core.newDocument(stream.getFD());
+            if(document.mNativeDocPtr <= 0){
+                stream.close();
+                throw new IOException("Can't open document " + path);
+            }
+
+            entry = new Entry(key, document, stream, core);
+            sDocuments.put(key, entry);
+            sEntries.put(document, entry);
+            Log.d(TAG, "Open document " + path);
+            return document;
+        }
+    }
+
+    /**
+     * Give back a document got from acquire. It is closed once no viewer
+     * uses it and it drops out of the idle documents.
+     */
+    public static void release(PdfDocument document){
+        synchronized (sDocuments){
+            Entry entry = sEntries.get(document);
+            if(entry == null) return;
+
+            entry.refCount--;
+            if(entry.refCount > 0) return;
+
+            sIdleDocuments.put(entry.key, entry);
+            trimIdle(MAX_IDLE_DOCUMENTS);
+        }
+    }
+
+    /**
+     * Close every document no viewer is using, for memory pressure
+     */
+    public static void closeIdle(){
+        synchronized (sDocuments){
+            trimIdle(0);
+        }
+    }
+
+    private static void trimIdle(int maxIdle){
+        Iterator<Entry> iterator = sIdleDocuments.values().iterator();
+        while(sIdleDocuments.size() > maxIdle && iterator.hasNext()){
+            Entry entry = iterator.next();
+            iterator.remove();
+            sDocuments.remove(entry.key);
+            sEntries.remove(entry.document);
+            entry.close();
+        }
+    }
+
+    /** Number of documents open, in use or idle */
+    public static int getOpenDocumentCount(){
+        synchronized (sDocuments){ return sDocuments.size(); }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final PdfDocument document;
+        final FileInputStream stream;
+        final PdfiumCore core;
+        int refCount = 1;
+
+        Entry(Key key, PdfDocument document, FileInputStream stream, PdfiumCore core){
+            this.key = key;
+            this.document = document;
+            this.stream = stream;
+            this.core = core;
+        }
+
+        void close(){
+            core.closeDocument(document);
+            try{
+                stream.close();
+            }catch(IOException e){
+                e.printStackTrace();
+            }
+            Log.d(TAG, "Close document " + key.path);
+        }
+    }
+
+    private static final class Key {
+        final String path;
+        final long device;
+        final long inode;
+        final long modified;
+        final long size;
+        final boolean incremental;
+
+        Key(String path, long[] identity, boolean incremental){
+            this.path = path;
+            this.device = identity[0];
+            this.inode = identity[1];
+            this.modified = identity[2];
+            this.size = identity[3];
+            this.incremental = incremental;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this == o) return true;
+            if(!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return path.equals(k.path) && device == k.device && inode == k.inode
+                    && modified == k.modified && size == k.size && incremental == k.incremental;
+        }
+
+        @Override
+        public int hashCode(){
+            int result = path.hashCode();
+            result = 31 * result + (int)(device ^ (device >>> 32));
+            result = 31 * result + (int)(inode ^ (inode >>> 32));
+            result = 31 * result + (int)(modified ^ (modified >>> 32));
+            result = 31 * result + (int)(size ^ (size >>> 32));
+            result = 31 * result + (incremental? 1 : 0);
+            return result;
+        }
+    }
+}
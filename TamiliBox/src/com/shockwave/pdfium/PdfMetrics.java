@@ -0,0 +1,190 @@
+package com.shockwave.pdfium;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide timings of the PDF pipeline, to find where the time of a
+ * slow page turn goes on devices in the field.
+ *
+ * Durations are kept as log2 histograms: recording is a few increments, a
+ * histogram is a fixed 35 longs whatever the number of samples, and the
+ * tail is still visible as the bucket holding the 99th percentile. The
+ * native stages (document open, page load, bitmap lock, rasterize, post)
+ * are kept the same way in the native library and merged into the report.
+ * Values only known to the app, such as cache hit rates, are read from
+ * registered gauges when the report is built.
+ */
+public class PdfMetrics {
+    /** Stage names in the order of nativeGetStageStats */
+    private static final String[] NATIVE_STAGES = {
+        "document open", "page load", "bitmap lock", "rasterize", "post"
+    };
+
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * Counts of values by power of two, bucket i holding values below 2^i
+     * and at least 2^(i-1)
+     */
+    public static class Histogram {
+        public static final int BUCKETS = 32;
+
+        private final String mName;
+        private final String mUnit;
+        private final long[] mBuckets = new long[BUCKETS];
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMax = 0;
+
+        public Histogram(String name, String unit){
+            mName = name;
+            mUnit = unit;
+        }
+
+        public synchronized void record(long value){
+            if(value < 0) value = 0;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            mBuckets[bucket]++;
+            mCount++;
+            mSum += value;
+            if(value > mMax) mMax = value;
+        }
+
+        public synchronized long getCount(){ return mCount; }
+        public synchronized long getMax(){ return mMax; }
+        public synchronized long getMean(){ return (mCount == 0)? 0 : mSum / mCount; }
+
+        /**
+         * Upper bound of the bucket holding a percentile, never above the max
+         * @param percentile from 0 to 100
+         */
+        public synchronized long getPercentile(double percentile){
+            if(mCount == 0) return 0;
+            long rank = (long)Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++){
+                seen += mBuckets[i];
+                if(seen >= rank && seen > 0) return Math.min(1L << i, mMax);
+            }
+            return mMax;
+        }
+
+        /**
+         * Replace the counts with a native run of (count, sum, max, buckets)
+         */
+        synchronized void load(long[] stats, int offset){
+            mCount = stats[offset];
+            mSum = stats[offset + 1];
+            mMax = stats[offset + 2];
+            System.arraycopy(stats, offset + 3, mBuckets, 0, BUCKETS);
+        }
+
+        public synchronized void reset(){
+            for(int i = 0; i < BUCKETS; i++) mBuckets[i] = 0;
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        @Override
+        public synchronized String toString(){
+            if(mCount == 0) return mName + ": none";
+            return mName + ": n=" + mCount + " mean=" + getMean() + mUnit
+                    + " p50<=" + getPercentile(50) + mUnit
+                    + " p90<=" + getPercentile(90) + mUnit
+                    + " p99<=" + getPercentile(99) + mUnit
+                    + " max=" + mMax + mUnit;
+        }
+    }
+
+    /** Time waited to get doc.Lock in the render paths */
+    public static final Histogram LOCK_WAIT = new Histogram("lock wait", "us");
+    /** Whole renderPage and renderPageBitmap calls, lock wait included */
+    public static final Histogram RENDER = new Histogram("render", "us");
+    /** Render requests queued ahead of a new one */
+    public static final Histogram RENDER_QUEUE_DEPTH = new Histogram("render queue depth", "");
+    /** Prefetch work still queued when the page changes, dropped for the new window */
+    public static final Histogram PREFETCH_QUEUE_DEPTH = new Histogram("prefetch queue depth", "");
+
+    private static final Histogram[] HISTOGRAMS = {
+        LOCK_WAIT, RENDER, RENDER_QUEUE_DEPTH, PREFETCH_QUEUE_DEPTH
+    };
+
+    /** Native page handles currently open over all documents */
+    private static final AtomicInteger sOpenPages = new AtomicInteger();
+    /** Exceptions thrown from native calls */
+    private static final AtomicLong sErrors = new AtomicLong();
+
+    private static final Map<String, Gauge> sGauges = new LinkedHashMap<String, Gauge>();
+
+    private PdfMetrics(){}
+
+    public static long nowMicros(){ return System.nanoTime() / 1000; }
+
+    public static long sinceMicros(long startMicros){ return System.nanoTime() / 1000 - startMicros; }
+
+    /**
+     * Percentage of hits over all lookups, 0 before any lookup
+     */
+    public static long hitRate(long hits, long misses){
+        return (hits + misses == 0)? 0 : hits * 100 / (hits + misses);
+    }
+
+    static void onPagesOpened(int count){ sOpenPages.addAndGet(count); }
+    static void onPagesClosed(int count){ sOpenPages.addAndGet(-count); }
+    static void onError(){ sErrors.incrementAndGet(); }
+
+    public static int getOpenPageCount(){ return sOpenPages.get(); }
+
+    /**
+     * Read a value when the report is built, replacing a gauge of the same name
+     */
+    public static void registerGauge(String name, Gauge gauge){
+        synchronized (sGauges){ sGauges.put(name, gauge); }
+    }
+
+    /**
+     * Remove a gauge unless another one was registered under its name since
+     */
+    public static void unregisterGauge(String name, Gauge gauge){
+        synchronized (sGauges){
+            if(sGauges.get(name) == gauge) sGauges.remove(name);
+        }
+    }
+
+    /**
+     * @param nativeStats result of nativeGetStageStats, may be null
+     */
+    static String report(long[] nativeStats){
+        StringBuilder report = new StringBuilder("PDF metrics\n");
+        if(nativeStats != null){
+            int runSize = 3 + Histogram.BUCKETS;
+            for(int i = 0; i < NATIVE_STAGES.length && (i + 1) * runSize <= nativeStats.length; i++){
+                Histogram stage = new Histogram(NATIVE_STAGES[i], "us");
+                stage.load(nativeStats, i * runSize);
+                report.append(stage.toString()).append('\n');
+            }
+        }
+        for(Histogram histogram : HISTOGRAMS){
+            report.append(histogram.toString()).append('\n');
+        }
+        report.append("open pages: ").append(sOpenPages.get()).append('\n');
+        report.append("native errors: ").append(sErrors.get()).append('\n');
+        synchronized (sGauges){
+            for(Map.Entry<String, Gauge> entry : sGauges.entrySet()){
+                report.append(entry.getKey()).append(": ").append(entry.getValue().getValue()).append('\n');
+            }
+        }
+        return report.toString();
+    }
+
+    static void reset(){
+        for(Histogram histogram : HISTOGRAMS) histogram.reset();
+        sErrors.set(0);
+    }
+}
@@ -0,0 +1,125 @@
+package com.shockwave.pdfium;
+
+/**
+ * Bookmark tree of a document, read once in a single native walk and kept
+ * as flat arrays indexed by node, in depth first order. A node's children
+ * follow it, its subtree ends at getSubtreeEnd.
+ *
+ * Titles share one String, a title is only cut out of it when asked for.
+ */
+public class PdfOutline {
+    //Fields of a node in the native array, after the node count
+    private static final int NODE_DEPTH = 0;
+    private static final int NODE_PAGE = 1;
+    private static final int NODE_TITLE_START = 2;
+    private static final int NODE_TITLE_LENGTH = 3;
+    private static final int NODE_INTS = 4;
+
+    static final PdfOutline EMPTY = new PdfOutline(new int[]{ 0 });
+
+    private final int mCount;
+    private final int[] mDepths;
+    private final int[] mPageIndexes;
+    private final int[] mTitleStarts;
+    private final int[] mTitleLengths;
+    private final int[] mParents;
+    private final int[] mSubtreeEnds;
+    private final String mTitles;
+
+    /**
+     * @param encoded node count, then NODE_INTS per node, then the title chars
+     */
+    PdfOutline(int[] encoded){
+        mCount = (encoded.length > 0)? encoded[0] : 0;
+        mDepths = new int[mCount];
+        mPageIndexes = new int[mCount];
+        mTitleStarts = new int[mCount];
+        mTitleLengths = new int[mCount];
+        mParents = new int[mCount];
+        mSubtreeEnds = new int[mCount];
+
+        int[] lastAtDepth = new int[mCount + 1];
+        for(int i = 0; i < mCount; i++){
+            int offset = 1 + i * NODE_INTS;
+            int depth = encoded[offset + NODE_DEPTH];
+            mDepths[i] = depth;
+            mPageIndexes[i] = encoded[offset + NODE_PAGE];
+            mTitleStarts[i] = encoded[offset + NODE_TITLE_START];
+            mTitleLengths[i] = encoded[offset + NODE_TITLE_LENGTH];
+            mParents[i] = (depth > 0)? lastAtDepth[depth - 1] : -1;
+            lastAtDepth[depth] = i;
+        }
+        //A subtree ends at the next node no deeper than its root
+        for(int i = 0; i < mCount; i++){
+            int end = i + 1;
+            while(end < mCount && mDepths[end] > mDepths[i]) end++;
+            mSubtreeEnds[i] = end;
+        }
+
+        int titlesStart = 1 + mCount * NODE_INTS;
+        char[] titles = new char[Math.max(0, encoded.length - titlesStart)];
+        for(int i = 0; i < titles.length; i++) titles[i] = (char)encoded[titlesStart + i];
+        mTitles = new String(titles);
+    }
+
+    public int getCount(){ return mCount; }
+    public boolean isEmpty(){ return mCount == 0; }
+
+    /** 0 for top level bookmarks */
+    public int getDepth(int node){ return mDepths[node]; }
+    /** -1 for a top level bookmark */
+    public int getParent(int node){ return mParents[node]; }
+    /** Index past the last descendant of a node */
+    public int getSubtreeEnd(int node){ return mSubtreeEnds[node]; }
+
+    /** Page the bookmark points to, -1 if it goes nowhere in the document */
+    public int getPageIndex(int node){ return mPageIndexes[node]; }
+
+    public String getTitle(int node){
+        return mTitles.substring(mTitleStarts[node], mTitleStarts[node] + mTitleLengths[node]);
+    }
+
+    /**
+     * Last page of the section a bookmark starts, the page before the next
+     * bookmark at the same or a higher level that goes to a later page
+     * @return the last page of the document for the last section
+     */
+    public int getSectionEnd(int node, int pageCount){
+        int start = mPageIndexes[node];
+        for(int i = mSubtreeEnds[node]; i < mCount; i++){
+            if(mDepths[i] > mDepths[node]) continue;
+            if(mPageIndexes[i] > start) return mPageIndexes[i] - 1;
+        }
+        return pageCount - 1;
+    }
+
+    /**
+     * First bookmark going to a page, to find the section a link lands on
+     * @return -1 if none
+     */
+    public int findNodeAtPage(int pageIndex){
+        for(int i = 0; i < mCount; i++){
+            if(mPageIndexes[i] == pageIndex) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * First bookmark with a page whose title equals a text, ignoring case,
+     * or else the first one whose title starts with it
+     * @return -1 if none
+     */
+    public int findNode(String title){
+        String wanted = title.trim();
+        int prefixMatch = -1;
+        for(int i = 0; i < mCount; i++){
+            if(mPageIndexes[i] < 0) continue;
+            String nodeTitle = getTitle(i).trim();
+            if(nodeTitle.equalsIgnoreCase(wanted)) return i;
+            if(prefixMatch < 0 && nodeTitle.regionMatches(true, 0, wanted, 0, wanted.length())){
+                prefixMatch = i;
+            }
+        }
+        return prefixMatch;
+    }
+}
@@ -0,0 +1,33 @@
+package com.shockwave.pdfium;
+
+/**
+ * A match of a search, as a run of chars on a page. Char indices are the
+ * indices of PdfiumCore.getPageText and getTextRects.
+ */
+public class PdfSearchHit implements Comparable<PdfSearchHit> {
+    private final int mPageIndex;
+    private final int mCharIndex;
+    private final int mCharCount;
+
+    public PdfSearchHit(int pageIndex, int charIndex, int charCount){
+        mPageIndex = pageIndex;
+        mCharIndex = charIndex;
+        mCharCount = charCount;
+    }
+
+    public int getPageIndex(){ return mPageIndex; }
+    public int getCharIndex(){ return mCharIndex; }
+    public int getCharCount(){ return mCharCount; }
+
+    @Override
+    public int compareTo(PdfSearchHit other){
+        if(mPageIndex != other.mPageIndex) return (mPageIndex < other.mPageIndex)? -1 : 1;
+        if(mCharIndex != other.mCharIndex) return (mCharIndex < other.mCharIndex)? -1 : 1;
+        return 0;
+    }
+
+    @Override
+    public String toString(){
+        return "PdfSearchHit[page=" + mPageIndex + ", char=" + mCharIndex + ", count=" + mCharCount + "]";
+    }
+}
@@ -0,0 +1,355 @@
+package com.shockwave.pdfium;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index of the text of a document, filled a page at a
+ * time and searchable at any point with what has been indexed so far.
+ *
+ * Text is split into lower-cased runs of letters and digits, every CJK
+ * ideograph being a term of its own. A query matches consecutive terms, the
+ * last one as a prefix, so typing a query narrows the hits as it goes and a
+ * CJK query matches like a substring.
+ */
+public class PdfTextIndex {
+    /** 'PTIX', bump VERSION whenever the tokenizer or the layout changes */
+    private static final int MAGIC = 0x50544958;
+    private static final int VERSION = 1;
+
+    private final int mPageCount;
+    private final String[] mPageTexts;
+    private int mIndexedPageCount = 0;
+    /** Sorted so prefix queries are a range of terms */
+    private final TreeMap<String, Postings> mTerms = new TreeMap<String, Postings>();
+    /** Pages were added since the index was read or written */
+    private boolean mDirty = false;
+
+    public PdfTextIndex(int pageCount){
+        mPageCount = pageCount;
+        mPageTexts = new String[pageCount];
+    }
+
+    public int getPageCount(){ return mPageCount; }
+
+    public synchronized int getIndexedPageCount(){ return mIndexedPageCount; }
+
+    public synchronized boolean isComplete(){ return mIndexedPageCount == mPageCount; }
+
+    public synchronized boolean isPageIndexed(int pageIndex){ return mPageTexts[pageIndex] != null; }
+
+    /** Text of an indexed page, null if the page isn't indexed yet */
+    public synchronized String getPageText(int pageIndex){ return mPageTexts[pageIndex]; }
+
+    /** Number of distinct terms */
+    public synchronized int getTermCount(){ return mTerms.size(); }
+
+    public synchronized boolean isDirty(){ return mDirty; }
+
+    /**
+     * Add the text of a page, a page already indexed is ignored
+     */
+    public void addPage(int pageIndex, String text){
+        if(text == null) text = "";
+        //Tokenize outside the lock, searches keep running meanwhile
+        Tokens tokens = tokenize(text);
+
+        synchronized (this){
+            if(mPageTexts[pageIndex] != null) return;
+            mPageTexts[pageIndex] = text;
+            mIndexedPageCount++;
+            mDirty = true;
+
+            for(int i = 0; i < tokens.count; i++){
+                String term = text.substring(tokens.starts[i], tokens.starts[i] + tokens.lengths[i])
+                        .toLowerCase(Locale.US);
+                Postings postings = mTerms.get(term);
+                if(postings == null){
+                    postings = new Postings();
+                    mTerms.put(term, postings);
+                }
+                postings.add(pageIndex, tokens.starts[i], i);
+            }
+        }
+    }
+
+    /**
+     * Find the hits of a query among the pages indexed so far, in page order
+     * @param maxHits stop after this many hits, 0 for all
+     */
+    public List<PdfSearchHit> search(String query, int maxHits){
+        List<PdfSearchHit> hits = new ArrayList<PdfSearchHit>();
+        Tokens tokens = tokenize(query);
+        if(tokens.count == 0) return hits;
+
+        String[] terms = new String[tokens.count];
+        for(int i = 0; i < tokens.count; i++){
+            terms[i] = query.substring(tokens.starts[i], tokens.starts[i] + tokens.lengths[i])
+                    .toLowerCase(Locale.US);
+        }
+        String last = terms[tokens.count - 1];
+
+        synchronized (this){
+            //Positions every earlier term must be found at, relative to the first term
+            List<Set<Long>> required = new ArrayList<Set<Long>>();
+            for(int t = 1; t < tokens.count - 1; t++){
+                Postings postings = mTerms.get(terms[t]);
+                if(postings == null) return hits;
+                required.add(postings.positionSet(-t));
+            }
+
+            if(tokens.count == 1){
+                for(Postings postings : prefixRange(last).values()){
+                    for(int i = 0; i < postings.size; i++){
+                        int start = postings.starts[i];
+                        int end = tokenEnd(mPageTexts[postings.pages[i]], start);
+                        hits.add(new PdfSearchHit(postings.pages[i], start, end - start));
+                    }
+                }
+            }else{
+                Postings first = mTerms.get(terms[0]);
+                if(first == null) return hits;
+                //Where the last term has to start for each phrase start
+                Map<Long, Integer> lastStarts = new HashMap<Long, Integer>();
+                for(Postings postings : prefixRange(last).values()){
+                    for(int i = 0; i < postings.size; i++){
+                        lastStarts.put(Postings.key(postings.pages[i], postings.positions[i] - (tokens.count - 1)),
+                                       postings.starts[i]);
+                    }
+                }
+
+                for(int i = 0; i < first.size; i++){
+                    long key = Postings.key(first.pages[i], first.positions[i]);
+                    Integer lastStart = lastStarts.get(key);
+                    if(lastStart == null) continue;
+                    boolean matched = true;
+                    for(Set<Long> positions : required){
+                        if(!positions.contains(key)){
+                            matched = false;
+                            break;
+                        }
+                    }
+                    if(!matched) continue;
+
+                    int start = first.starts[i];
+                    int end = tokenEnd(mPageTexts[first.pages[i]], lastStart);
+                    hits.add(new PdfSearchHit(first.pages[i], start, end - start));
+                }
+            }
+        }
+
+        Collections.sort(hits);
+        if(maxHits > 0 && hits.size() > maxHits) return new ArrayList<PdfSearchHit>(hits.subList(0, maxHits));
+        return hits;
+    }
+
+    /**
+     * Write the page texts and the postings, pages not indexed yet are
+     * written as missing and can be added after reading the index back
+     */
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mPageCount);
+        for(String text : mPageTexts){
+            if(text == null){
+                out.writeInt(-1);
+            }else{
+                out.writeInt(text.length());
+                out.writeChars(text);
+            }
+        }
+
+        out.writeInt(mTerms.size());
+        for(Map.Entry<String, Postings> entry : mTerms.entrySet()){
+            String term = entry.getKey();
+            Postings postings = entry.getValue();
+            out.writeInt(term.length());
+            out.writeChars(term);
+            out.writeInt(postings.size);
+            for(int i = 0; i < postings.size; i++) out.writeInt(postings.pages[i]);
+            for(int i = 0; i < postings.size; i++) out.writeInt(postings.starts[i]);
+            for(int i = 0; i < postings.size; i++) out.writeInt(postings.positions[i]);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Read an index written by writeTo, without tokenizing anything
+     * @return null if the data is not an index of a document of pageCount pages
+     */
+    static PdfTextIndex readFrom(ByteBuffer in, int pageCount){
+        try{
+            if(in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            if(in.getInt() != pageCount) return null;
+
+            PdfTextIndex index = new PdfTextIndex(pageCount);
+            for(int page = 0; page < pageCount; page++){
+                int length = in.getInt();
+                if(length < 0) continue;
+                String text = readString(in, length);
+                if(text == null) return null;
+                index.mPageTexts[page] = text;
+                index.mIndexedPageCount++;
+            }
+
+            //A term takes at least its length and its postings size
+            int termCount = in.getInt();
+            if(termCount < 0 || termCount > in.remaining() / 8) return null;
+            for(int t = 0; t < termCount; t++){
+                String term = readString(in, in.getInt());
+                if(term == null) return null;
+                int size = in.getInt();
+                //Three ints per posting
+                if(size < 0 || size > in.remaining() / 12) return null;
+                Postings postings = new Postings(size);
+                readInts(in, postings.pages, size);
+                readInts(in, postings.starts, size);
+                readInts(in, postings.positions, size);
+                postings.size = size;
+                index.mTerms.put(term, postings);
+            }
+            return index;
+        }catch(BufferUnderflowException e){
+            return null;
+        }catch(IllegalArgumentException e){
+            //Negative sizes of a corrupt file
+            return null;
+        }catch(NegativeArraySizeException e){
+            return null;
+        }
+    }
+
+    /**
+     * @return null if the length doesn't fit in what is left, allocating
+     *         nothing for the lengths of a corrupt or truncated file
+     */
+    private static String readString(ByteBuffer in, int length){
+        if(length < 0 || length > in.remaining() / 2) return null;
+        char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + length * 2);
+        return new String(chars);
+    }
+
+    private static void readInts(ByteBuffer in, int[] values, int count){
+        in.asIntBuffer().get(values, 0, count);
+        in.position(in.position() + count * 4);
+    }
+
+    private SortedMap<String, Postings> prefixRange(String prefix){
+        return mTerms.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private static boolean isIdeograph(char c){
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    /** End of the token starting at start */
+    private static int tokenEnd(String text, int start){
+        if(isIdeograph(text.charAt(start))) return start + 1;
+        int end = start;
+        while(end < text.length() && Character.isLetterOrDigit(text.charAt(end))
+                && !isIdeograph(text.charAt(end))){
+            end++;
+        }
+        return end;
+    }
+
+    static Tokens tokenize(String text){
+        Tokens tokens = new Tokens();
+        int length = text.length();
+        int i = 0;
+        while(i < length){
+            char c = text.charAt(i);
+            if(!Character.isLetterOrDigit(c)){
+                i++;
+                continue;
+            }
+            int end = tokenEnd(text, i);
+            tokens.add(i, end - i);
+            i = end;
+        }
+        return tokens;
+    }
+
+    /** Token spans of a text, as parallel arrays */
+    static final class Tokens {
+        int[] starts = new int[64];
+        int[] lengths = new int[64];
+        int count = 0;
+
+        void add(int start, int length){
+            if(count == starts.length){
+                starts = grow(starts);
+                lengths = grow(lengths);
+            }
+            starts[count] = start;
+            lengths[count] = length;
+            count++;
+        }
+    }
+
+    /** Occurrences of a term as parallel arrays of page, char start and token position */
+    static final class Postings {
+        int[] pages;
+        int[] starts;
+        int[] positions;
+        int size = 0;
+
+        Postings(){ this(4); }
+
+        Postings(int capacity){
+            capacity = Math.max(capacity, 4);
+            pages = new int[capacity];
+            starts = new int[capacity];
+            positions = new int[capacity];
+        }
+
+        void add(int page, int start, int position){
+            if(size == pages.length){
+                pages = grow(pages);
+                starts = grow(starts);
+                positions = grow(positions);
+            }
+            pages[size] = page;
+            starts[size] = start;
+            positions[size] = position;
+            size++;
+        }
+
+        Set<Long> positionSet(int offset){
+            Set<Long> set = new HashSet<Long>(size * 2);
+            for(int i = 0; i < size; i++) set.add(key(pages[i], positions[i] + offset));
+            return set;
+        }
+
+        static long key(int page, int position){
+            return ((long)page << 32) | (position & 0xffffffffL);
+        }
+    }
+
+    static int[] grow(int[] array){
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,176 @@
+package com.shockwave.pdfium;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of text indexes, so a document that was indexed before is
+ * searchable as soon as it is reopened without touching PDFium's text APIs.
+ *
+ * Indexes are keyed by a fingerprint of the file content rather than its
+ * path, read through a read-only memory mapping, and the least recently
+ * used ones are deleted to stay under a size cap.
+ */
+public class PdfTextIndexCache {
+    private static final String TAG = PdfTextIndexCache.class.getName();
+
+    private static final String SUFFIX = ".ptix";
+    /** Bytes hashed from the start, the middle and the end of a file */
+    private static final int FINGERPRINT_SAMPLE_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    public PdfTextIndexCache(File directory, long maxBytes){
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs()){
+            Log.e(TAG, "Can't create " + mDirectory);
+        }
+    }
+
+    /**
+     * Fingerprint of a file from its size and samples of its content. PDF
+     * writers put the trailer with the document ID at the end, so a changed
+     * file changes the sampled bytes even when its size doesn't.
+     */
+    public static String fingerprint(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try{
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            long length = file.length();
+            byte[] sample = new byte[FINGERPRINT_SAMPLE_SIZE];
+            digest.update(Long.toString(length).getBytes());
+
+            long[] offsets = { 0, length / 2, Math.max(0, length - FINGERPRINT_SAMPLE_SIZE) };
+            for(long offset : offsets){
+                file.seek(offset);
+                int read = file.read(sample);
+                if(read > 0) digest.update(sample, 0, read);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for(byte b : digest.digest()){
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }catch(NoSuchAlgorithmException e){
+            throw new IOException("MD5 not available");
+        }finally{
+            file.close();
+        }
+    }
+
+    private File getFile(String fingerprint){ return new File(mDirectory, fingerprint + SUFFIX); }
+
+    /**
+     * @return the cached index of the document, null if there is none or it is unusable
+     */
+    public PdfTextIndex load(String fingerprint, int pageCount){
+        File file = getFile(fingerprint);
+        if(!file.isFile()) return null;
+
+        long startTime = System.nanoTime();
+        PdfTextIndex index = null;
+        try{
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try{
+                FileChannel channel = input.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                index = PdfTextIndex.readFrom(buffer, pageCount);
+            }finally{
+                input.close();
+            }
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+
+        if(index == null){
+            Log.e(TAG, "Dropping unusable index " + file);
+            file.delete();
+            return null;
+        }
+        //Last modified is the LRU clock
+        file.setLastModified(System.currentTimeMillis());
+        Log.d(TAG, "Loaded index " + fingerprint + ", " + index.getIndexedPageCount() + "/" + pageCount
+                + " pages in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+        return index;
+    }
+
+    /**
+     * Write the index if pages were added to it since it was loaded or saved
+     */
+    public void save(String fingerprint, PdfTextIndex index){
+        if(!index.isDirty()) return;
+
+        File file = getFile(fingerprint);
+        File temp = null;
+        try{
+            //Written aside and renamed, a reader never sees a partial index
+            temp = File.createTempFile(fingerprint, ".tmp", mDirectory);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+            try{
+                index.writeTo(out);
+            }finally{
+                out.close();
+            }
+            if(!temp.renameTo(file)) throw new IOException("Can't rename " + temp);
+            temp = null;
+            Log.d(TAG, "Saved index " + fingerprint + ", " + file.length() + " bytes");
+        }catch(IOException e){
+            e.printStackTrace();
+        }finally{
+            if(temp != null) temp.delete();
+        }
+        trimToSize();
+    }
+
+    /**
+     * Delete the least recently used indexes until the cache fits its cap
+     */
+    public synchronized void trimToSize(){
+        File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file){
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        if(files == null) return;
+
+        long total = 0;
+        for(File file : files) total += file.length();
+        if(total <= mMaxBytes) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b){
+                long left = a.lastModified();
+                long right = b.lastModified();
+                return (left < right)? -1 : (left > right)? 1 : 0;
+            }
+        });
+        for(File file : files){
+            if(total <= mMaxBytes) break;
+            long length = file.length();
+            if(file.delete()){
+                total -= length;
+                Log.d(TAG, "Evicted " + file.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.shockwave.pdfium;
+
+import android.graphics.RectF;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-text search over a document. Page text is extracted on a background
+ * pool into a PdfTextIndex, and queries are answered from the index with
+ * whatever has been indexed so far instead of scanning pages with
+ * FPDFText_FindStart.
+ *
+ * Extraction itself is serialized by the document lock like every PDFium
+ * call, the pool lets tokenizing overlap with it. Pages of an incrementally
+ * opened document whose data isn't written yet are tried again later, with
+ * a growing delay, until they are available.
+ */
+public class PdfTextSearcher {
+    private static final String TAG = PdfTextSearcher.class.getName();
+
+    /** First wait before looking again for the data of a page */
+    private static final long RETRY_DELAY_MS = 100;
+    private static final long MAX_RETRY_DELAY_MS = 2000;
+
+    /** Notified on a pool thread as pages get indexed */
+    public interface IndexListener {
+        void onPagesIndexed(int indexedPageCount, int pageCount);
+    }
+
+    private final PdfiumCore mPdfCore;
+    private final PdfDocument mDoc;
+    private final PdfTextIndex mIndex;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final CancellationToken mToken = new CancellationToken();
+
+    public PdfTextSearcher(PdfiumCore core, PdfDocument doc, int threads){
+        this(core, doc, threads, null);
+    }
+
+    /**
+     * @param index index to continue from, typically from PdfTextIndexCache, null to start empty
+     */
+    public PdfTextSearcher(PdfiumCore core, PdfDocument doc, int threads, PdfTextIndex index){
+        mPdfCore = core;
+        mDoc = doc;
+        mIndex = (index != null)? index : new PdfTextIndex(core.getPageCount(doc));
+        mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r){
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run(){
+                        //Never compete with rendering
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "PdfTextSearcher");
+            }
+        });
+    }
+
+    public PdfTextIndex getIndex(){ return mIndex; }
+
+    /**
+     * Queue every page not indexed yet, from firstPage to the end and then
+     * from the start, so the pages around the reader are searchable first
+     * @param listener may be null
+     */
+    public void startIndexing(int firstPage, IndexListener listener){
+        int pageCount = mIndex.getPageCount();
+        if(pageCount == 0) return;
+        firstPage = Math.max(0, Math.min(firstPage, pageCount - 1));
+
+        for(int i = 0; i < pageCount; i++){
+            int pageIndex = (firstPage + i) % pageCount;
+            if(mIndex.isPageIndexed(pageIndex)) continue;
+            mExecutor.execute(new IndexTask(pageIndex, listener));
+        }
+    }
+
+    /**
+     * Whether the data of a page has been written, pages that aren't are
+     * queued again
+     */
+    protected boolean isPageAvailable(int pageIndex){
+        return mPdfCore.isPageAvailable(mDoc, pageIndex);
+    }
+
+    private class IndexTask implements Runnable {
+        private final int mPageIndex;
+        private final IndexListener mListener;
+        private long mRetryDelayMs = RETRY_DELAY_MS;
+
+        IndexTask(int pageIndex, IndexListener listener){
+            mPageIndex = pageIndex;
+            mListener = listener;
+        }
+
+        @Override
+        public void run(){
+            if(mToken.isCancelled() || mIndex.isPageIndexed(mPageIndex)) return;
+            //A closed document has no pages to wait for
+            if(!PdfiumEngine.isValidPtr(mDoc.mNativeDocPtr)) return;
+            if(!isPageAvailable(mPageIndex)){
+                long delayMs = mRetryDelayMs;
+                mRetryDelayMs = Math.min(mRetryDelayMs * 2, MAX_RETRY_DELAY_MS);
+                try{
+                    mExecutor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+                }catch(RejectedExecutionException e){
+                    //Shut down meanwhile
+                }
+                return;
+            }
+
+            String text = mPdfCore.getPageText(mDoc, mPageIndex);
+            if(text == null){
+                Log.e(TAG, "No text for page " + mPageIndex);
+                text = "";
+            }
+            mIndex.addPage(mPageIndex, text);
+            if(mListener != null){
+                mListener.onPagesIndexed(mIndex.getIndexedPageCount(), mIndex.getPageCount());
+            }
+        }
+    }
+
+    /**
+     * Hits of a query among the pages indexed so far, in page order
+     * @param maxHits 0 for all
+     */
+    public List<PdfSearchHit> search(String query, int maxHits){
+        long startTime = System.nanoTime();
+        List<PdfSearchHit> hits = mIndex.search(query, maxHits);
+        Log.d(TAG, "Search \"" + query + "\": " + hits.size() + " hits in "
+                + (System.nanoTime() - startTime) / 1000 + "us over "
+                + mIndex.getIndexedPageCount() + "/" + mIndex.getPageCount() + " pages");
+        return hits;
+    }
+
+    /**
+     * First hit after a position, wrapping around to the start of the document
+     * @param fromCharIndex hits at or before this char of fromPage are skipped, -1 for none
+     * @return null if there is no hit
+     */
+    public PdfSearchHit findNext(String query, int fromPage, int fromCharIndex){
+        List<PdfSearchHit> hits = mIndex.search(query, 0);
+        if(hits.isEmpty()) return null;
+        for(PdfSearchHit hit : hits){
+            if(hit.getPageIndex() > fromPage
+                    || (hit.getPageIndex() == fromPage && hit.getCharIndex() > fromCharIndex)){
+                return hit;
+            }
+        }
+        return hits.get(0);
+    }
+
+    /**
+     * Rects of a hit in page points from the top left of the page
+     */
+    public RectF[] getHitRects(PdfSearchHit hit){
+        return mPdfCore.getTextRects(mDoc, hit.getPageIndex(), hit.getCharIndex(), hit.getCharCount());
+    }
+
+    /**
+     * Stop indexing, the index keeps what was indexed so far
+     */
+    public void shutdown(){
+        mToken.cancel();
+        mExecutor.shutdownNow();
+    }
+}
@@ -1,139 +1,298 @@
 package com.shockwave.pdfium;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.graphics.RectF;
 import android.util.Log;
 import android.view.Surface;
 
-import java.io.FileDescriptor;
-import java.lang.reflect.Field;
-
-public class PdfiumCore {
+public class PdfiumCore extends PdfiumEngine {
     private static final String TAG = PdfiumCore.class.getName();
 
-    static{
-        System.loadLibrary("jniPdfium");
-    }
-
-    private native long nativeOpenDocument(int fd);
-    private native void nativeCloseDocument(long docPtr);
-    private native int nativeGetPageCount(long docPtr);
-    private native long nativeLoadPage(long docPtr, int pageIndex);
-    private native long[] nativeLoadPages(long docPtr, int fromIndex, int toIndex);
-    private native void nativeClosePage(long pagePtr);
-    private native void nativeClosePages(long[] pagesPtr);
-    private native int nativeGetPageWidthPixel(long pagePtr, int dpi);
-    private native int nativeGetPageHeightPixel(long pagePtr, int dpi);
+    private native int[] nativeGetOutline(long docPtr);
+    private native int nativeGetNamedDestPageIndex(long docPtr, String name);
+    private native String nativeGetPageText(long pagePtr);
+    private native double[] nativeGetTextRects(long pagePtr, int startIndex, int count);
     //private native long nativeGetNativeWindow(Surface surface);
     //private native void nativeRenderPage(long pagePtr, long nativeWindowPtr);
     private native void nativeRenderPage(long pagePtr, Surface surface, int dpi,
                                          int startX, int startY,
-                                         int drawSizeHor, int drawSizeVer);
+                                         int drawSizeHor, int drawSizeVer, int format);
+    private native void nativeRenderPageBitmap(long pagePtr, Bitmap bitmap, int dpi,
+                                               int startX, int startY,
+                                               int drawSizeHor, int drawSizeVer,
+                                               int flags);
+    private native long nativeRenderPageBitmapStart(long pagePtr, Bitmap bitmap, int dpi,
+                                                    int startX, int startY,
+                                                    int drawSizeHor, int drawSizeVer,
+                                                    int flags, CancellationToken cancelToken);
+    private native int nativeRenderPageBitmapContinue(long contextPtr, CancellationToken cancelToken);
+    private native boolean nativeRenderPageBitmapClose(long contextPtr);
 
-    private static final Class FD_CLASS = FileDescriptor.class;
-    private static final String FD_FIELD_NAME = "descriptor";
-    private static Field mFdField = null;
-
-    private int mCurrentDpi;
+    /** FPDF_RENDER_TOBECOUNTINUED of fpdf_progressive.h */
+    private static final int RENDER_STATUS_TO_BE_CONTINUED = 1;
 
     public PdfiumCore(Context ctx){
-        mCurrentDpi = ctx.getResources().getDisplayMetrics().densityDpi;
+        super(ctx.getResources().getDisplayMetrics().densityDpi);
     }
 
-    public static int getNumFd(FileDescriptor fdObj){
-        try{
-            if(mFdField == null){
-                mFdField = FD_CLASS.getDeclaredField(FD_FIELD_NAME);
-                mFdField.setAccessible(true);
-            }
-
-            return mFdField.getInt(fdObj);
-        }catch(NoSuchFieldException e){
-            e.printStackTrace();
-            return -1;
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            return -1;
-        }
+    /**
+     * Without a Context, to render off screen
+     */
+    public PdfiumCore(int dpi){
+        super(dpi);
     }
 
-    public PdfDocument newDocument(FileDescriptor fd){
-        PdfDocument document = new PdfDocument();
-
-        document.mNativeDocPtr = nativeOpenDocument(getNumFd(fd));
-        if(document.mNativeDocPtr <= 0) Log.e(TAG, "Open document failed");
-
-        return document;
-    }
-    public int getPageCount(PdfDocument doc){
+    /**
+     * Get the bookmark tree of a document, read on first use. An
+     * incrementally opened document may not have its outline written yet,
+     * an empty one is read again on the next call.
+     */
+    public PdfOutline getOutline(PdfDocument doc){
         synchronized (doc.Lock){
-            return nativeGetPageCount(doc.mNativeDocPtr);
+            if(doc.mOutline != null) return doc.mOutline;
+            if(!isValidPtr(doc.mNativeDocPtr)) return PdfOutline.EMPTY;
+
+            int[] encoded;
+            synchronized (sNativeLock){
+                encoded = nativeGetOutline(doc.mNativeDocPtr);
+            }
+            PdfOutline outline = (encoded != null)? new PdfOutline(encoded) : PdfOutline.EMPTY;
+            if(!doc.mIncremental || !outline.isEmpty()) doc.mOutline = outline;
+            return outline;
         }
     }
 
-    public long openPage(PdfDocument doc, int pageIndex){
+    /**
+     * Page of a named destination, as in a #nameddest= link, looked up once per name
+     * @return -1 if the document has no such destination
+     */
+    public int getNamedDestPageIndex(PdfDocument doc, String name){
         synchronized (doc.Lock){
-            long pagePtr = nativeLoadPage(doc.mNativeDocPtr, pageIndex);
-            doc.mNativePagesPtr.put(pageIndex, pagePtr);
-            return pagePtr;
+            Integer cached = doc.mNamedDestPages.get(name);
+            if(cached != null) return cached;
+            if(!isValidPtr(doc.mNativeDocPtr)) return -1;
+
+            int pageIndex;
+            synchronized (sNativeLock){
+                pageIndex = nativeGetNamedDestPageIndex(doc.mNativeDocPtr, name);
+            }
+            if(!doc.mIncremental || pageIndex >= 0) doc.mNamedDestPages.put(name, pageIndex);
+            return pageIndex;
         }
     }
-    public long[] openPage(PdfDocument doc, int fromIndex, int toIndex){
+
+    /**
+     * Get the layout index of a document, built on first use. While sizes of
+     * an incrementally opened document are incomplete a new index is built
+     * on every call.
+     */
+    public PdfDocumentLayout getLayout(PdfDocument doc){
         synchronized (doc.Lock){
-            long[] pagesPtr = nativeLoadPages(doc.mNativeDocPtr, fromIndex, toIndex);
-            int pageIndex = fromIndex;
-            for(long page : pagesPtr){
-                if(pageIndex > toIndex) break;
-                doc.mNativePagesPtr.put(pageIndex, page);
-                pageIndex++;
-            }
+            if(doc.mLayout != null) return (PdfDocumentLayout)doc.mLayout;
 
-            return pagesPtr;
+            float[] sizes = getPageSizes(doc);
+            PdfDocumentLayout layout = new PdfDocumentLayout(sizes, PdfDocumentLayout.DEFAULT_PAGE_SPACING);
+            if(doc.mPageSizes != null) doc.mLayout = layout;
+            return layout;
         }
     }
-    public int getPageWidth(PdfDocument doc, int index){
+
+    /**
+     * Get the text of a page, one char per char index of the page
+     * @return null if the page can't be loaded
+     */
+    public String getPageText(PdfDocument doc, int pageIndex){
         synchronized (doc.Lock){
-            Long pagePtr;
-            if( (pagePtr = doc.mNativePagesPtr.get(index)) != null ){
-                return nativeGetPageWidthPixel(pagePtr, mCurrentDpi);
+            long pagePtr = openPage(doc, pageIndex);
+            if(!isValidPtr(pagePtr)) return null;
+            synchronized (sNativeLock){
+                return nativeGetPageText(pagePtr);
             }
-            return 0;
         }
     }
-    public int getPageHeight(PdfDocument doc, int index){
+
+    /**
+     * Get the rects covered by a run of chars, in page points from the top
+     * left of the page, for highlighting search hits
+     * @return empty if the page can't be loaded
+     */
+    public RectF[] getTextRects(PdfDocument doc, int pageIndex, int charIndex, int charCount){
+        float pageHeight = 0;
+        float[] sizes = getPageSizes(doc);
+        if(pageIndex * 2 + 1 < sizes.length) pageHeight = sizes[pageIndex * 2 + 1];
+
+        double[] rects;
         synchronized (doc.Lock){
-            Long pagePtr;
-            if( (pagePtr = doc.mNativePagesPtr.get(index)) != null ){
-                return nativeGetPageHeightPixel(pagePtr, mCurrentDpi);
+            long pagePtr = openPage(doc, pageIndex);
+            if(!isValidPtr(pagePtr)) return new RectF[0];
+            synchronized (sNativeLock){
+                rects = nativeGetTextRects(pagePtr, charIndex, charCount);
             }
-            return 0;
         }
+        if(rects == null) return new RectF[0];
+
+        //PDF user space grows upwards from the bottom of the page
+        RectF[] result = new RectF[rects.length / 4];
+        for(int i = 0; i < result.length; i++){
+            result[i] = new RectF((float)rects[i * 4], pageHeight - (float)rects[i * 4 + 1],
+                                  (float)rects[i * 4 + 2], pageHeight - (float)rects[i * 4 + 3]);
+        }
+        return result;
     }
 
     public void renderPage(PdfDocument doc, Surface surface, int pageIndex,
                            int startX, int startY, int drawSizeX, int drawSizeY){
+        renderPage(doc, surface, pageIndex, startX, startY, drawSizeX, drawSizeY, PixelFormat.RGBA_8888);
+    }
+
+    /**
+     * Render straight into a Surface, switching its buffers to a format
+     * @param pixelFormat PixelFormat.RGBA_8888, or PixelFormat.RGB_565 to
+     *                    halve the buffers, dithered
+     */
+    public void renderPage(PdfDocument doc, Surface surface, int pageIndex,
+                           int startX, int startY, int drawSizeX, int drawSizeY, int pixelFormat){
+        long startMicros = PdfMetrics.nowMicros();
         synchronized (doc.Lock){
+            PdfMetrics.LOCK_WAIT.record(PdfMetrics.sinceMicros(startMicros));
+            long pagePtr = openPage(doc, pageIndex);
+            if(!isValidPtr(pagePtr)){
+                Log.e(TAG, "Page could not be loaded: " + pageIndex);
+                return;
+            }
             try{
                 //nativeRenderPage(doc.mNativePagesPtr.get(pageIndex), surface, mCurrentDpi);
-                nativeRenderPage(doc.mNativePagesPtr.get(pageIndex), surface, mCurrentDpi,
-                                    startX, startY, drawSizeX, drawSizeY);
+                synchronized (sNativeLock){
+                    nativeRenderPage(pagePtr, surface, mCurrentDpi,
+                                        startX, startY, drawSizeX, drawSizeY, pixelFormat);
+                }
+                PdfMetrics.RENDER.record(PdfMetrics.sinceMicros(startMicros));
             }catch(NullPointerException e){
-                Log.e(TAG, "mContext may be null");
-                e.printStackTrace();
+                PdfMetrics.onError();
+                Log.e(TAG, "mContext may be null", e);
             }catch(Exception e){
-                Log.e(TAG, "Exception throw from native");
-                e.printStackTrace();
+                PdfMetrics.onError();
+                Log.e(TAG, "Exception throw from native", e);
             }
         }
     }
 
-    public void closeDocument(PdfDocument doc){
+    /**
+     * Render page into an off-screen ARGB_8888 or RGB_565 bitmap instead of
+     * the Surface, so the result can be cached and blitted later. RGB_565 is
+     * dithered from a full color render.
+     */
+    public void renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
+                                 int startX, int startY, int drawSizeX, int drawSizeY){
+        renderPageBitmap(doc, bitmap, pageIndex, startX, startY, drawSizeX, drawSizeY,
+                         RENDER_FLAGS_FULL, null);
+    }
+
+    public boolean renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
+                                    int startX, int startY, int drawSizeX, int drawSizeY,
+                                    CancellationToken cancelToken){
+        return renderPageBitmap(doc, bitmap, pageIndex, startX, startY, drawSizeX, drawSizeY,
+                                RENDER_FLAGS_FULL, cancelToken);
+    }
+
+    /**
+     * Progressive variant of renderPageBitmap when a token is given.
+     *
+     * PDFium is not thread-safe, so every native step still runs under
+     * doc.Lock and sNativeLock, but the locks are only held for one time
+     * slice of the render at a time. Page loads and renders of other pages
+     * from other workers interleave with a long render instead of queueing
+     * behind it, and the render is abandoned as soon as the token is
+     * cancelled.
+     * @param flags RENDER_FLAG_* bits
+     * @return true if the page was completely rendered, false if cancelled or failed
+     */
+    public boolean renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
+                                    int startX, int startY, int drawSizeX, int drawSizeY,
+                                    int flags, CancellationToken cancelToken){
+        long startMicros = PdfMetrics.nowMicros();
+        if(cancelToken == null){
+            synchronized (doc.Lock){
+                PdfMetrics.LOCK_WAIT.record(PdfMetrics.sinceMicros(startMicros));
+                long pagePtr = openPage(doc, pageIndex);
+                if(!isValidPtr(pagePtr)){
+                    Log.e(TAG, "Page could not be loaded: " + pageIndex);
+                    return false;
+                }
+                try{
+                    synchronized (sNativeLock){
+                        nativeRenderPageBitmap(pagePtr, bitmap, mCurrentDpi,
+                                                startX, startY, drawSizeX, drawSizeY, flags);
+                    }
+                    PdfMetrics.RENDER.record(PdfMetrics.sinceMicros(startMicros));
+                    return true;
+                }catch(NullPointerException e){
+                    PdfMetrics.onError();
+                    Log.e(TAG, "Page not loaded or bitmap null", e);
+                }catch(Exception e){
+                    PdfMetrics.onError();
+                    Log.e(TAG, "Exception throw from native", e);
+                }
+                return false;
+            }
+        }
+
+        if(cancelToken.isCancelled()) return false;
+        long contextPtr;
         synchronized (doc.Lock){
-            for(Integer index : doc.mNativePagesPtr.keySet()){
-                nativeClosePage(doc.mNativePagesPtr.get(index));
+            PdfMetrics.LOCK_WAIT.record(PdfMetrics.sinceMicros(startMicros));
+            try{
+                //PDFium keeps progressive state on the page, one render per page at a time
+                while(doc.mRenderingPages.contains(pageIndex)){
+                    if(cancelToken.isCancelled()) return false;
+                    doc.Lock.wait();
+                }
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            //Superseded while waiting for the lock
+            if(cancelToken.isCancelled()) return false;
+
+            long pagePtr = openPage(doc, pageIndex);
+            if(!isValidPtr(pagePtr)){
+                Log.e(TAG, "Page could not be loaded: " + pageIndex);
+                return false;
             }
-            doc.mNativePagesPtr.clear();
+            synchronized (sNativeLock){
+                contextPtr = nativeRenderPageBitmapStart(pagePtr, bitmap, mCurrentDpi,
+                                        startX, startY, drawSizeX, drawSizeY, flags, cancelToken);
+            }
+            if(contextPtr == 0) return false;
+            doc.mRenderingPages.add(pageIndex);
+        }
 
-            nativeCloseDocument(doc.mNativeDocPtr);
+        boolean completed = false;
+        try{
+            int status = RENDER_STATUS_TO_BE_CONTINUED;
+            while(status == RENDER_STATUS_TO_BE_CONTINUED && !cancelToken.isCancelled()){
+                long waitMicros = PdfMetrics.nowMicros();
+                synchronized (doc.Lock){
+                    PdfMetrics.LOCK_WAIT.record(PdfMetrics.sinceMicros(waitMicros));
+                    synchronized (sNativeLock){
+                        status = nativeRenderPageBitmapContinue(contextPtr, cancelToken);
+                    }
+                }
+            }
+        }finally{
+            synchronized (doc.Lock){
+                synchronized (sNativeLock){
+                    completed = nativeRenderPageBitmapClose(contextPtr);
+                }
+                doc.mRenderingPages.remove(pageIndex);
+                doc.Lock.notifyAll();
+            }
         }
+        completed = completed && !cancelToken.isCancelled();
+        //Cancelled renders would only skew the times down
+        if(completed) PdfMetrics.RENDER.record(PdfMetrics.sinceMicros(startMicros));
+        return completed;
     }
 }
@@ -0,0 +1,490 @@
+package com.shockwave.pdfium;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Documents, pages and buffer renders, free of Android dependencies so it
+ * also runs on a plain JVM against a host build of the library, see
+ * host/Makefile. PdfiumCore adds the Surface and Bitmap renders, the
+ * outline and the text on top of it.
+ */
+public class PdfiumEngine {
+    private static final Logger LOG = Logger.getLogger(PdfiumEngine.class.getName());
+
+    static{
+        System.loadLibrary("jniPdfium");
+    }
+
+    /**
+     * PDFium is not thread safe, not even across documents: every native
+     * call into it holds this lock. It is taken last, never hold it while
+     * waiting for a document Lock or a bitmap.
+     */
+    static final Object sNativeLock = new Object();
+
+    private native long nativeOpenDocument(int fd);
+    private native long nativeOpenDocumentIncremental(int fd, long fileLength);
+    private native int nativeIsDocumentAvail(long docPtr);
+    private native boolean nativeIsPageAvail(long docPtr, int pageIndex);
+    private native boolean nativeIsLinearized(long docPtr);
+    private native int nativeGetFirstAvailablePage(long docPtr);
+    private native long[] nativeGetFileIdentity(int fd);
+    private native void nativeCloseDocument(long docPtr);
+    private native int nativeGetPageCount(long docPtr);
+    private native long nativeLoadPage(long docPtr, int pageIndex);
+    private native long[] nativeLoadPages(long docPtr, int fromIndex, int toIndex);
+    private native void nativeClosePage(long pagePtr);
+    private native void nativeClosePages(long[] pagesPtr);
+    private native int nativeGetPageWidthPixel(long pagePtr, int dpi);
+    private native int nativeGetPageHeightPixel(long pagePtr, int dpi);
+    private native float[] nativeGetPageSizes(long docPtr);
+    private native boolean nativeRenderPageBuffer(long pagePtr, long bitmapPtr, int[] pixels,
+                                                  int clipLeft, int clipTop, int clipRight, int clipBottom,
+                                                  int startX, int startY,
+                                                  int drawSizeHor, int drawSizeVer,
+                                                  int flags, int background);
+    private native long[] nativeGetStageStats();
+    private native void nativeResetStageStats();
+
+    private static final int DOCUMENT_AVAIL_ERROR = -1;
+    private static final int DOCUMENT_AVAIL_WAITING = 0;
+    private static final int DOCUMENT_AVAIL_LOADED = 1;
+    /** How often to look again for data of a file still being written */
+    private static final long AVAIL_POLL_INTERVAL_MS = 50;
+
+    /** Render annotations, see FPDF_ANNOT */
+    public static final int RENDER_FLAG_ANNOT = 0x01;
+    /** Text rendering optimized for LCD, see FPDF_LCD_TEXT */
+    public static final int RENDER_FLAG_LCD_TEXT = 0x02;
+    /** Grayscale output, see FPDF_GRAYSCALE */
+    public static final int RENDER_FLAG_GRAYSCALE = 0x08;
+
+    public static final int RENDER_FLAGS_FULL = RENDER_FLAG_ANNOT;
+    public static final int RENDER_FLAGS_PREVIEW = 0;
+
+    private static final Class FD_CLASS = FileDescriptor.class;
+    private static final String FD_FIELD_NAME = "descriptor";
+    private static Field mFdField = null;
+
+    int mCurrentDpi;
+
+    public PdfiumEngine(int dpi){
+        mCurrentDpi = dpi;
+    }
+
+    public int getCurrentDpi(){ return mCurrentDpi; }
+
+    public static int getNumFd(FileDescriptor fdObj){
+        try{
+            if(mFdField == null){
+                mFdField = FD_CLASS.getDeclaredField(FD_FIELD_NAME);
+                mFdField.setAccessible(true);
+            }
+
+            return mFdField.getInt(fdObj);
+        }catch(NoSuchFieldException e){
+            LOG.log(Level.SEVERE, "No file descriptor field", e);
+            return -1;
+        } catch (IllegalAccessException e) {
+            LOG.log(Level.SEVERE, "File descriptor field not accessible", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Identity of an open file as (device, inode, modification time in ms, size)
+     * @return null if it can't be read
+     */
+    long[] getFileIdentity(FileDescriptor fd){
+        return nativeGetFileIdentity(getNumFd(fd));
+    }
+
+    public PdfDocument newDocument(FileDescriptor fd){
+        PdfDocument document = new PdfDocument();
+
+        synchronized (sNativeLock){
+            document.mNativeDocPtr = nativeOpenDocument(getNumFd(fd));
+        }
+        if(document.mNativeDocPtr <= 0) LOG.severe("Open document failed");
+
+        return document;
+    }
+    /**
+     * Open a document without mapping the whole file. Pages are read from the
+     * file on demand, and the first page of a linearized file can be shown
+     * before the rest of it has been written. Call waitForDocument before
+     * anything else, and waitForPage before using a page.
+     * @param fileLength final length of the file, 0 to use its current length
+     */
+    public PdfDocument newDocumentIncremental(FileDescriptor fd, long fileLength){
+        PdfDocument document = new PdfDocument();
+        document.mIncremental = true;
+
+        synchronized (sNativeLock){
+            document.mNativeDocPtr = nativeOpenDocumentIncremental(getNumFd(fd), fileLength);
+        }
+        if(document.mNativeDocPtr <= 0) LOG.severe("Open document failed");
+
+        return document;
+    }
+
+    /**
+     * Wait until enough of an incrementally opened document is available to
+     * load it. Returns at once for documents opened with newDocument.
+     * @param cancelToken may be null
+     * @return false if the document is broken, closed or the wait was cancelled
+     */
+    public boolean waitForDocument(PdfDocument doc, CancellationToken cancelToken){
+        while(true){
+            int status;
+            synchronized (doc.Lock){
+                if(!isValidPtr(doc.mNativeDocPtr)) return false;
+                if(!doc.mIncremental) return true;
+                synchronized (sNativeLock){
+                    status = nativeIsDocumentAvail(doc.mNativeDocPtr);
+                }
+            }
+            if(status == DOCUMENT_AVAIL_ERROR) return false;
+            if(status != DOCUMENT_AVAIL_WAITING) return true;
+            if(!sleepForData(cancelToken)) return false;
+        }
+    }
+
+    /**
+     * Whether the data of a page is available, always true for documents
+     * opened with newDocument
+     */
+    public boolean isPageAvailable(PdfDocument doc, int pageIndex){
+        synchronized (doc.Lock){
+            if(!isValidPtr(doc.mNativeDocPtr)) return false;
+            if(!doc.mIncremental) return true;
+            synchronized (sNativeLock){
+                return nativeIsPageAvail(doc.mNativeDocPtr, pageIndex);
+            }
+        }
+    }
+
+    /**
+     * Wait until the data of a page is available
+     * @param cancelToken may be null
+     * @return false if the document was closed or the wait was cancelled
+     */
+    public boolean waitForPage(PdfDocument doc, int pageIndex, CancellationToken cancelToken){
+        while(!isPageAvailable(doc, pageIndex)){
+            if(!isValidPtr(doc.mNativeDocPtr)) return false;
+            if(!sleepForData(cancelToken)) return false;
+        }
+        return true;
+    }
+
+    private static boolean sleepForData(CancellationToken cancelToken){
+        if(cancelToken != null && cancelToken.isCancelled()) return false;
+        try{
+            Thread.sleep(AVAIL_POLL_INTERVAL_MS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return cancelToken == null || !cancelToken.isCancelled();
+    }
+
+    public boolean isLinearized(PdfDocument doc){
+        synchronized (doc.Lock){
+            if(!doc.mIncremental || !isValidPtr(doc.mNativeDocPtr)) return false;
+            synchronized (sNativeLock){
+                return nativeIsLinearized(doc.mNativeDocPtr);
+            }
+        }
+    }
+
+    /**
+     * First page whose data comes first in a linearized file, usually 0
+     */
+    public int getFirstAvailablePage(PdfDocument doc){
+        synchronized (doc.Lock){
+            if(!doc.mIncremental || !isValidPtr(doc.mNativeDocPtr)) return 0;
+            synchronized (sNativeLock){
+                return nativeGetFirstAvailablePage(doc.mNativeDocPtr);
+            }
+        }
+    }
+
+    public int getPageCount(PdfDocument doc){
+        synchronized (doc.Lock){
+            synchronized (sNativeLock){
+                return nativeGetPageCount(doc.mNativeDocPtr);
+            }
+        }
+    }
+
+    static boolean isValidPtr(long ptr){ return ptr != 0 && ptr != -1; }
+
+    /**
+     * Get the handle of a page, loading it if needed. Loading a page may
+     * close the least recently used unpinned pages to stay within the
+     * document's open page limit.
+     */
+    public long openPage(PdfDocument doc, int pageIndex){
+        synchronized (doc.Lock){
+            //Several workers may race to load the same page
+            if(!isValidPtr(doc.mNativeDocPtr)) return -1;
+            Long loaded = doc.mNativePagesPtr.get(pageIndex);
+            if(loaded != null) return loaded;
+            //Loading a page whose data isn't written yet would fail for good
+            long pagePtr;
+            synchronized (sNativeLock){
+                if(doc.mIncremental && !nativeIsPageAvail(doc.mNativeDocPtr, pageIndex)) return -1;
+                pagePtr = nativeLoadPage(doc.mNativeDocPtr, pageIndex);
+            }
+            if(!isValidPtr(pagePtr)) return pagePtr;
+
+            doc.mNativePagesPtr.put(pageIndex, pagePtr);
+            doc.mOpenedPageCount++;
+            PdfMetrics.onPagesOpened(1);
+            evictPagesIfNeed(doc, pageIndex);
+            return pagePtr;
+        }
+    }
+    public long[] openPage(PdfDocument doc, int fromIndex, int toIndex){
+        synchronized (doc.Lock){
+            long[] pagesPtr;
+            synchronized (sNativeLock){
+                pagesPtr = nativeLoadPages(doc.mNativeDocPtr, fromIndex, toIndex);
+            }
+            int pageIndex = fromIndex;
+            for(long page : pagesPtr){
+                if(pageIndex > toIndex) break;
+                if(doc.mNativePagesPtr.containsKey(pageIndex)){
+                    //Keep the handle already in use
+                    if(isValidPtr(page)) closeNativePage(page);
+                }else if(isValidPtr(page)){
+                    doc.mNativePagesPtr.put(pageIndex, page);
+                    doc.mOpenedPageCount++;
+                    PdfMetrics.onPagesOpened(1);
+                }
+                pageIndex++;
+            }
+            evictPagesIfNeed(doc, -1);
+
+            return pagesPtr;
+        }
+    }
+
+    /**
+     * Close least recently used pages until the open page limit is met.
+     * Pinned pages, pages being rendered and keepIndex are never closed.
+     */
+    private void evictPagesIfNeed(PdfDocument doc, int keepIndex){
+        Iterator<Map.Entry<Integer, Long>> iterator = doc.mNativePagesPtr.entrySet().iterator();
+        while(doc.mNativePagesPtr.size() > doc.mMaxOpenPages && iterator.hasNext()){
+            Map.Entry<Integer, Long> entry = iterator.next();
+            int index = entry.getKey();
+            if(index == keepIndex || doc.isPinned(index)) continue;
+
+            closeNativePage(entry.getValue());
+            iterator.remove();
+            PdfMetrics.onPagesClosed(1);
+            doc.mEvictedPageCount++;
+            LOG.fine("Evict page: " + index);
+        }
+    }
+
+    private void closeNativePage(long pagePtr){
+        synchronized (sNativeLock){
+            nativeClosePage(pagePtr);
+        }
+    }
+
+    /**
+     * Limit the number of page handles kept open, closing pages if needed
+     */
+    public void setMaxOpenPages(PdfDocument doc, int maxOpenPages){
+        synchronized (doc.Lock){
+            doc.mMaxOpenPages = Math.max(1, maxOpenPages);
+            evictPagesIfNeed(doc, -1);
+        }
+    }
+
+    /**
+     * Keep a page open until unpinPage, pins are counted
+     */
+    public void pinPage(PdfDocument doc, int pageIndex){
+        synchronized (doc.Lock){
+            Integer count = doc.mPinnedPages.get(pageIndex);
+            doc.mPinnedPages.put(pageIndex, (count == null)? 1 : count + 1);
+        }
+    }
+
+    public void unpinPage(PdfDocument doc, int pageIndex){
+        synchronized (doc.Lock){
+            Integer count = doc.mPinnedPages.get(pageIndex);
+            if(count == null) return;
+            if(count <= 1) doc.mPinnedPages.remove(pageIndex);
+            else doc.mPinnedPages.put(pageIndex, count - 1);
+            evictPagesIfNeed(doc, -1);
+        }
+    }
+
+    /**
+     * Get the sizes of all pages in points as (width, height) pairs. They are
+     * read once without loading any page, the array must not be modified.
+     */
+    public float[] getPageSizes(PdfDocument doc){
+        synchronized (doc.Lock){
+            if(doc.mPageSizes != null) return doc.mPageSizes;
+            //An incrementally opened document has no pages until its data is available
+            if(!isValidPtr(doc.mNativeDocPtr)) return new float[0];
+
+            float[] sizes;
+            synchronized (sNativeLock){
+                if(doc.mIncremental && nativeIsDocumentAvail(doc.mNativeDocPtr) != DOCUMENT_AVAIL_LOADED){
+                    return new float[0];
+                }
+                sizes = nativeGetPageSizes(doc.mNativeDocPtr);
+            }
+            //Never kept, the next call asks again
+            if(sizes == null || sizes.length == 0) return new float[0];
+            //Pages of a file still being written may not have a size yet, ask again later
+            if(!doc.mIncremental || !hasUnknownSize(sizes)) doc.mPageSizes = sizes;
+            return sizes;
+        }
+    }
+
+    private static boolean hasUnknownSize(float[] sizes){
+        for(float size : sizes){
+            if(size <= 0) return true;
+        }
+        return false;
+    }
+
+    public int getPageWidth(PdfDocument doc, int index){
+        float[] sizes = getPageSizes(doc);
+        if(index >= 0 && index * 2 < sizes.length && sizes[index * 2] > 0){
+            return (int)(sizes[index * 2] * mCurrentDpi / 72);
+        }
+        synchronized (doc.Lock){
+            long pagePtr = openPage(doc, index);
+            if(isValidPtr(pagePtr)){
+                synchronized (sNativeLock){
+                    return nativeGetPageWidthPixel(pagePtr, mCurrentDpi);
+                }
+            }
+            return 0;
+        }
+    }
+    public int getPageHeight(PdfDocument doc, int index){
+        float[] sizes = getPageSizes(doc);
+        if(index >= 0 && index * 2 + 1 < sizes.length && sizes[index * 2 + 1] > 0){
+            return (int)(sizes[index * 2 + 1] * mCurrentDpi / 72);
+        }
+        synchronized (doc.Lock){
+            long pagePtr = openPage(doc, index);
+            if(isValidPtr(pagePtr)){
+                synchronized (sNativeLock){
+                    return nativeGetPageHeightPixel(pagePtr, mCurrentDpi);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Render a page into caller owned pixels, without a Surface or Bitmap.
+     * Only the clip of the bitmap is touched: it is filled with the
+     * background, the page area within it with white, and the page is drawn
+     * at (startX, startY) of the bitmap scaled to drawSizeX x drawSizeY
+     * pixels. Allocates nothing once the page is open.
+     * @param flags RENDER_FLAG_* bits
+     * @param background ARGB color of the clip outside the page, 0 to leave it
+     * @return false if the page can't be loaded or the bitmap was recycled
+     */
+    public boolean renderPageBuffer(PdfDocument doc, PdfBufferBitmap bitmap, int pageIndex,
+                                    int clipLeft, int clipTop, int clipRight, int clipBottom,
+                                    int startX, int startY, int drawSizeX, int drawSizeY,
+                                    int flags, int background){
+        long startMicros = PdfMetrics.nowMicros();
+        synchronized (doc.Lock){
+            PdfMetrics.LOCK_WAIT.record(PdfMetrics.sinceMicros(startMicros));
+            long pagePtr = openPage(doc, pageIndex);
+            if(!isValidPtr(pagePtr)){
+                LOG.severe("Page could not be loaded: " + pageIndex);
+                return false;
+            }
+            synchronized (bitmap){
+                if(bitmap.isRecycled()) return false;
+                boolean rendered;
+                synchronized (sNativeLock){
+                    rendered = nativeRenderPageBuffer(pagePtr, bitmap.mNativePtr, bitmap.getPixels(),
+                                            clipLeft, clipTop, clipRight, clipBottom,
+                                            startX, startY, drawSizeX, drawSizeY, flags, background);
+                }
+                if(rendered) PdfMetrics.RENDER.record(PdfMetrics.sinceMicros(startMicros));
+                return rendered;
+            }
+        }
+    }
+
+    /**
+     * Render a whole page at a scale into the top left of a buffer bitmap,
+     * the rest of the bitmap is filled with the background
+     * @param scale pixels per point, 1 for 72 dpi
+     */
+    public boolean renderPageBuffer(PdfDocument doc, PdfBufferBitmap bitmap, int pageIndex,
+                                    float scale, int flags, int background){
+        float[] sizes = getPageSizes(doc);
+        if(pageIndex < 0 || pageIndex * 2 + 1 >= sizes.length) return false;
+        int drawSizeX = Math.round(sizes[pageIndex * 2] * scale);
+        int drawSizeY = Math.round(sizes[pageIndex * 2 + 1] * scale);
+        return renderPageBuffer(doc, bitmap, pageIndex, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                                0, 0, drawSizeX, drawSizeY, flags, background);
+    }
+
+    public void closeDocument(PdfDocument doc){
+        synchronized (doc.Lock){
+            //Pages may not be closed under a progressive render in another worker,
+            //an interrupt only ends the wait once the render has let go of them
+            boolean interrupted = false;
+            while(!doc.mRenderingPages.isEmpty()){
+                try{
+                    doc.Lock.wait();
+                }catch(InterruptedException e){
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+
+            //Iterate values, get() would reorder the access-ordered map
+            synchronized (sNativeLock){
+                for(Long pagePtr : doc.mNativePagesPtr.values()){
+                    nativeClosePage(pagePtr);
+                }
+                nativeCloseDocument(doc.mNativeDocPtr);
+            }
+            PdfMetrics.onPagesClosed(doc.mNativePagesPtr.size());
+            doc.mNativePagesPtr.clear();
+            doc.mPinnedPages.clear();
+            doc.mNativeDocPtr = -1;
+        }
+    }
+
+    /**
+     * Render pipeline metrics of the process, native stages included, as
+     * readable lines
+     */
+    public String getMetricsReport(){
+        return PdfMetrics.report(nativeGetStageStats());
+    }
+
+    /**
+     * Start the metrics over, open page counts and gauges are kept
+     */
+    public void resetMetrics(){
+        nativeResetStageStats();
+        PdfMetrics.reset();
+    }
+}
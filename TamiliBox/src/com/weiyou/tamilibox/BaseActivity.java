@@ -11,12 +11,46 @@ import android.view.WindowManager;
 public class BaseActivity extends Activity {
 
 	public final static String OPRATION_INTENT_FILTER = "WEIYOU_OPERATION_INTENT_FILTER";
+	public final static String OPRATION_EXTRA_COMMOND = "commond";
+	public final static int COMMOND_BACK = 1;
+	public final static int COMMOND_NEXT = 2;
+	public final static int COMMOND_PREV = 3;
+	public final static int COMMOND_SEARCH = 4;
+	public final static int COMMOND_DUMP_METRICS = 5;
+	public final static int COMMOND_GOTO_SECTION = 6;
+	public final static String OPRATION_EXTRA_QUERY = "query";
+	/** Bookmark title of COMMOND_GOTO_SECTION */
+	public final static String OPRATION_EXTRA_SECTION = "section";
+	/** Named destination of COMMOND_GOTO_SECTION, used when there is no title */
+	public final static String OPRATION_EXTRA_DEST = "dest";
 	
 	private BroadcastReceiver mReceiver = new BroadcastReceiver() {
 		
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			
+			switch (intent.getIntExtra(OPRATION_EXTRA_COMMOND, 0)) {
+			case COMMOND_BACK:
+				onCommondBack();
+				break;
+			case COMMOND_NEXT:
+				onCommondNext();
+				break;
+			case COMMOND_PREV:
+				onCommondPrev();
+				break;
+			case COMMOND_SEARCH:
+				onCommondSearch(intent.getStringExtra(OPRATION_EXTRA_QUERY));
+				break;
+			case COMMOND_DUMP_METRICS:
+				onCommondDumpMetrics();
+				break;
+			case COMMOND_GOTO_SECTION:
+				onCommondGotoSection(intent.getStringExtra(OPRATION_EXTRA_SECTION),
+						intent.getStringExtra(OPRATION_EXTRA_DEST));
+				break;
+			default:
+				break;
+			}
 		}
 	};
 
@@ -38,6 +72,26 @@ public class BaseActivity extends Activity {
 		
 	}
 
+	/**
+	 * @param query may be null or empty to clear the search
+	 */
+	protected void onCommondSearch(String query) {
+		
+	}
+
+	/**
+	 * Log the performance metrics of the activity and write them to a file
+	 */
+	protected void onCommondDumpMetrics() {
+	}
+
+	/**
+	 * @param title bookmark title, may be null
+	 * @param namedDest named destination, may be null
+	 */
+	protected void onCommondGotoSection(String title, String namedDest) {
+	}
+
 	@Override
 	protected void onResume() {
 		super.onResume();
@@ -0,0 +1,96 @@
+package com.weiyou.tamilibox.ui;
+
+import java.io.File;
+
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import com.shockwave.pdfium.PdfiumCore;
+import com.weiyou.tamilibox.BaseActivity;
+import com.weiyou.tamilibox.util.Benchmark;
+import com.weiyou.tamilibox.util.FileTypeBenchmark;
+import com.weiyou.tamilibox.util.PdfBenchmark;
+import com.weiyou.tamilibox.util.TextIndexCheck;
+
+/**
+ * Runs the checks and the benchmarks of the PDF and file type hot paths, a
+ * failed check stops the run. The benchmark results are appended to
+ * benchmarks.jsonl in the external cache dir, one JSON object per line. It
+ * is not exported, so other apps can't start a run; start it from a root
+ * shell with
+ * adb shell am start -n com.weiyou.tamilibox/.ui.BenchmarkActivity --es run &lt;name&gt;
+ * and optionally --ei iterations and --ei warmup, then pull the file.
+ */
+public class BenchmarkActivity extends BaseActivity {
+	private static final String TAG = BenchmarkActivity.class.getName();
+
+	public static final String EXTRA_RUN = "run";
+	public static final String EXTRA_ITERATIONS = "iterations";
+	public static final String EXTRA_WARMUP = "warmup";
+
+	private static final int DEFAULT_ITERATIONS = 20;
+	private static final int DEFAULT_WARMUP = 5;
+	private static final int FILE_NAME_COUNT = 100000;
+
+	private TextView mTextView;
+	private final StringBuilder mLog = new StringBuilder();
+	private volatile boolean isDestroyed = false;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		mTextView = new TextView(this);
+		ScrollView scrollView = new ScrollView(this);
+		scrollView.addView(mTextView);
+		setContentView(scrollView);
+
+		String run = getIntent().getStringExtra(EXTRA_RUN);
+		final String runName = (run != null) ? run : "default";
+		final int iterations = getIntent().getIntExtra(EXTRA_ITERATIONS, DEFAULT_ITERATIONS);
+		final int warmup = getIntent().getIntExtra(EXTRA_WARMUP, DEFAULT_WARMUP);
+		File dir = getExternalCacheDir();
+		final File results = new File((dir != null) ? dir : getCacheDir(), "benchmarks.jsonl");
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Benchmark benchmark = new Benchmark(warmup, iterations);
+				try {
+					show("Checks...");
+					TextIndexCheck.run(new PdfiumCore(BenchmarkActivity.this), getCacheDir());
+					show("Text index picks up late pages: ok");
+					show("File types...");
+					FileTypeBenchmark.measure(benchmark, FileTypeBenchmark.makeNames(FILE_NAME_COUNT));
+					show("PDF...");
+					PdfBenchmark.create(new PdfiumCore(BenchmarkActivity.this), getCacheDir()).run(benchmark);
+					benchmark.appendJson(results, runName);
+					for (Benchmark.Result result : benchmark.getResults()) show(result.toString());
+					show("Written to " + results);
+				} catch (Exception e) {
+					Log.e(TAG, "Benchmark failed", e);
+					show("Failed: " + e);
+				}
+			}
+		}, "Benchmark").start();
+	}
+
+	private void show(final String line) {
+		Log.i(TAG, line);
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				if (isDestroyed) return;
+				mLog.append(line).append('\n');
+				mTextView.setText(mLog);
+			}
+		});
+	}
+
+	@Override
+	protected void onDestroy() {
+		isDestroyed = true;
+		super.onDestroy();
+	}
+}
@@ -12,7 +12,9 @@ import android.widget.TextView;
 
 import com.weiyou.tamilibox.BaseActivity;
 import com.weiyou.tamilibox.R;
+import com.weiyou.tamilibox.util.FileTypeSniffer;
 import com.weiyou.tamilibox.util.FileTypeUtil;
+import com.weiyou.tamilibox.util.MediaIndexer;
 import com.weiyou.tamilibox.widget.FileDialog;
 
 public class FileManagerActivity extends BaseActivity {
@@ -36,6 +38,26 @@ public class FileManagerActivity extends BaseActivity {
 				startActivityForResult(intent, REQUEST_EX);
 			}
 		});
+
+		setMediaButton(R.id.button_videos, R.string.media_all_videos, MediaIndexer.CATEGORY_VIDEO);
+		setMediaButton(R.id.button_images, R.string.media_all_images, MediaIndexer.CATEGORY_IMAGE);
+		setMediaButton(R.id.button_pdfs, R.string.media_all_pdfs, MediaIndexer.CATEGORY_PDF);
+		// Bring the media index up to date, only changed folders are listed again
+		MediaIndexer.getInstance(this).scan();
+	}
+
+	private void setMediaButton(int id, int labelId, final int category) {
+		final String label = getString(labelId);
+		Button button = (Button) findViewById(id);
+		button.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				Intent intent = new Intent();
+				intent.putExtra("explorer_title", label);
+				intent.putExtra(FileDialog.EXTRA_MEDIA_CATEGORY, category);
+				intent.setClass(FileManagerActivity.this, FileDialog.class);
+				startActivityForResult(intent, REQUEST_EX);
+			}
+		});
 	}
 
 	protected void onActivityResult(int requestCode, int resultCode,
@@ -46,6 +68,8 @@ public class FileManagerActivity extends BaseActivity {
 				Uri uri = intent.getData();
 				TextView text = (TextView) findViewById(R.id.text);
 				text.setText("select: " + uri);
+				// By content, a misnamed file still opens and a damaged one doesn't
+				int fileType = FileTypeSniffer.detect(uri.getPath());
 				// ===pptļ===
 				// if (uri.toString().endsWith("ppt")
 				// || uri.toString().endsWith("pptx")) {
@@ -56,7 +80,7 @@ public class FileManagerActivity extends BaseActivity {
 				// startActivity(pptIntent);
 				// }
 				// =====ҕlļ=======
-				if (FileTypeUtil.isVideoFileType(uri.getPath())) {
+				if (FileTypeUtil.isVideoFileType(fileType)) {
 					Intent mediaIntent = new Intent();
 					mediaIntent.putExtra("file_path", uri.getPath());
 					mediaIntent.setClass(FileManagerActivity.this,
@@ -64,13 +88,20 @@ public class FileManagerActivity extends BaseActivity {
 					startActivity(mediaIntent);
 				}
 				// ͼƬļ
-				else if (FileTypeUtil.isImageFileType(uri.getPath())) {
+				else if (FileTypeUtil.isImageFileType(fileType)) {
 					Intent imageIntent = new Intent();
 					imageIntent.putExtra("file_path", uri.getPath());
 					imageIntent.setClass(FileManagerActivity.this,
 							PictureViewerActivity.class);
 					startActivity(imageIntent);
 				}
+				else if (FileTypeUtil.isPdfFileType(fileType)) {
+					Intent pdfIntent = new Intent();
+					pdfIntent.putExtra("file_path", uri.getPath());
+					pdfIntent.setClass(FileManagerActivity.this,
+							PDFViewerActivity.class);
+					startActivity(pdfIntent);
+				}
 
 			}
 		}
@@ -1,87 +1,179 @@
 package com.weiyou.tamilibox.ui;
 
-import java.io.FileInputStream;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import com.shockwave.pdfium.CancellationToken;
+import com.shockwave.pdfium.PageBitmapCache;
+import com.shockwave.pdfium.PagePrefetchScheduler;
+import com.shockwave.pdfium.PageTileRenderer;
 import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfDocumentLayout;
+import com.shockwave.pdfium.PdfDocumentRegistry;
+import com.shockwave.pdfium.PdfMetrics;
+import com.shockwave.pdfium.PdfOutline;
+import com.shockwave.pdfium.PdfSearchHit;
+import com.shockwave.pdfium.PdfTextIndex;
+import com.shockwave.pdfium.PdfTextIndexCache;
+import com.shockwave.pdfium.PdfTextSearcher;
 import com.shockwave.pdfium.PdfiumCore;
 import com.weiyou.tamilibox.BaseActivity;
 import com.weiyou.tamilibox.R;
 import com.weiyou.tamilibox.R.id;
 import com.weiyou.tamilibox.R.layout;
 import com.weiyou.tamilibox.R.menu;
+import com.weiyou.tamilibox.util.ThumbnailService;
 
 import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.GestureDetector;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.ListView;
+import android.widget.RelativeLayout;
 
 public class PDFViewerActivity extends BaseActivity {
 	
 	private static final String TAG = PDFViewerActivity.class.getName();
+	private static final float MAX_ZOOM = 8f;
+	private static final int BACKGROUND_COLOR = 0xff848484;
+	/** Preview pass renders at 1/PREVIEW_SCALE of the screen resolution */
+	private static final int PREVIEW_SCALE = 4;
+	/** Intent extra forcing the 16 bit mode on or off, by default on for small heaps */
+	public static final String EXTRA_LOW_MEMORY = "low_memory";
+	private static final int LOW_MEMORY_CLASS = 32;
 	private PdfiumCore mPdfCore;
-	private PdfDocument mPdfDoc = null;
+	/** Files at least this large are read on demand instead of mapped whole */
+	private static final long INCREMENTAL_OPEN_THRESHOLD = 32 * 1024 * 1024;
+	private volatile PdfDocument mPdfDoc = null;
+	/** Incrementally opened document still waiting for its data */
+	private PdfDocument mOpeningDoc = null;
+	private CancellationToken mOpenToken = null;
 	
     private SurfaceHolder mPdfSurfaceHolder;
     private boolean isSurfaceCreated = false;
-    private int mCurrentPageIndex = 0;
+    private volatile int mCurrentPageIndex = 0;
     private int mPageCount = 0;
     private final Rect mPageRect = new Rect();
     private final RectF mPageRectF = new RectF();
     private final Rect mScreenRect = new Rect();
-    private FileInputStream mDocFileStream = null;
     
-    private final ExecutorService mPreLoadPageWorker = Executors.newSingleThreadExecutor();
-    private final ExecutorService mRenderPageWorker = Executors.newSingleThreadExecutor();
-    private Runnable mRenderRunnable;
+    /** Page loads no longer queue behind renders, so neighbours can load on spare cores */
+    private static final int PRELOAD_THREADS =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int PREFETCH_LOOK_AHEAD = 2;
+    private static final int PREFETCH_LOOK_BEHIND = 1;
+    /** Most pages of a section jumped to that are prefetched ahead, if the page cache holds them */
+    private static final int SECTION_LOOK_AHEAD = 8;
+    private static final int SEARCH_THREADS = 2;
+    private static final int HIGHLIGHT_COLOR = 0x66ffeb3b;
+    /** Text indexes of documents seen before, shared by all viewers */
+    private static final long TEXT_INDEX_CACHE_BYTES = 16 * 1024 * 1024;
+    private static PdfTextIndexCache sTextIndexCache = null;
+    private volatile PdfTextSearcher mTextSearcher = null;
+    private volatile String mDocFingerprint = null;
+    /** Page overview along the right edge, toggled by a tap */
+    private ListView mPageStrip;
+    private BaseAdapter mPageStripAdapter;
+    private int mPageStripWidth;
+    /** Layout index read by the strip, built on the render worker, null until then */
+    private PdfDocumentLayout mStripLayout = null;
+    private volatile boolean isDestroyed = false;
+    private String mDocPath;
+    private String mSearchQuery = null;
+    private volatile PdfSearchHit mSearchHit = null;
+    private final Paint mHighlightPaint = new Paint();
+    private PagePrefetchScheduler mPrefetchScheduler;
+    /** Single thread, typed as a pool so its queue depth can be read */
+    private final ThreadPoolExecutor mRenderPageWorker = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    /** Gauges of this viewer in the metrics report, by name */
+    private final Map<String, PdfMetrics.Gauge> mMetricGauges = new LinkedHashMap<String, PdfMetrics.Gauge>();
+    private CancellationToken mRenderToken = null;
+    /** Page kept open while it is on screen, only touched by the render worker */
+    private int mPinnedPageIndex = -1;
     private final Matrix mTransformMatrix = new Matrix();
     private boolean isScaling = false;
     private boolean isReset = true;
+    private final float[] mMatrixValues = new float[9];
+    private PageBitmapCache mPageCache;
+    private PageTileRenderer mTileRenderer;
+    private boolean mPreviewPassEnabled = true;
+    private Bitmap mPreviewBitmap = null;
+    private final Rect mPreviewRect = new Rect();
+    private final Paint mPreviewPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    /** RGB_565 on low memory devices, pages and tiles take half the memory */
+    private Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_pdfviewer);
 		mPdfCore = new PdfiumCore(this);
-		String path = Environment.getExternalStorageDirectory().getPath()
-				+ "/ssadagopan.pdf";
-		
-        mRenderRunnable = new Runnable() {
-            @Override
-            public void run() {
-                loadPageIfNeed(mCurrentPageIndex);
-
-                resetPageFit(mCurrentPageIndex);
-                mPdfCore.renderPage(mPdfDoc, mPdfSurfaceHolder.getSurface(), mCurrentPageIndex,
-                        mPageRect.left, mPageRect.top,
-                        mPageRect.width(), mPageRect.height());
-
-                mPreLoadPageWorker.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        loadPageIfNeed(mCurrentPageIndex + 1);
-                        loadPageIfNeed(mCurrentPageIndex + 2);
-                    }
-                });
-            }
-        };
+		// Keep rendered pages within 1/8 of the per-app heap
+		int memClass = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+		boolean lowMemory = getIntent().getBooleanExtra(EXTRA_LOW_MEMORY, memClass <= LOW_MEMORY_CLASS);
+		int pageCacheBytes = memClass * 1024 * 1024 / 8;
+		if (lowMemory) {
+			// 16 bit pages are half the size, half the budget keeps as many of them
+			mBitmapConfig = Bitmap.Config.RGB_565;
+			pageCacheBytes /= 2;
+		}
+		mPageCache = new PageBitmapCache(pageCacheBytes);
+		mTileRenderer = new PageTileRenderer(mPdfCore, pageCacheBytes / 2, mBitmapConfig);
+		mPrefetchScheduler = new PagePrefetchScheduler(new PagePrefetchScheduler.PagePrefetcher() {
+			@Override
+			public boolean prefetch(int pageIndex, CancellationToken token) {
+				return prerenderPage(pageIndex, token);
+			}
+		}, PRELOAD_THREADS, PREFETCH_LOOK_AHEAD, PREFETCH_LOOK_BEHIND);
+		registerMetricGauges();
+		String path = getIntent().getStringExtra("file_path");
+		if(path == null){
+			path = Environment.getExternalStorageDirectory().getPath()
+					+ "/ssadagopan.pdf";
+		}
+		mDocPath = path;
 		
         SurfaceView surfaceView = (SurfaceView)findViewById(R.id.surface);
+        if(lowMemory) surfaceView.getHolder().setFormat(PixelFormat.RGB_565);
         surfaceView.getHolder().addCallback(new SurfaceHolder.Callback() {
             @Override
             public void surfaceCreated(SurfaceHolder holder) {
                 isSurfaceCreated = true;
                 updateSurface(holder);
                 if (mPdfDoc != null) {
-                    mRenderPageWorker.submit(mRenderRunnable);
+                    requestRender(mCurrentPageIndex);
                 }
             }
 
@@ -90,7 +182,7 @@ public class PDFViewerActivity extends BaseActivity {
                 Log.w(TAG, "Surface Changed");
                 updateSurface(holder);
                 if(mPdfDoc != null){
-                    mRenderPageWorker.submit(mRenderRunnable);
+                    requestRender(mCurrentPageIndex);
                 }
             }
 
@@ -101,74 +193,738 @@ public class PDFViewerActivity extends BaseActivity {
             }
         });
 
-        try{
-        	mDocFileStream = new FileInputStream(path);
+        final ScaleGestureDetector scaleDetector = new ScaleGestureDetector(this,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScaleBegin(ScaleGestureDetector detector) {
+                isScaling = true;
+                return true;
+            }
 
-            mPdfDoc = mPdfCore.newDocument(mDocFileStream.getFD());
-            Log.d("Main", "Open Document");
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                float zoom = getZoom();
+                float factor = detector.getScaleFactor();
+                if(zoom * factor > MAX_ZOOM) factor = MAX_ZOOM / zoom;
+                else if(zoom * factor < 1f) factor = 1f / zoom;
+
+                mTransformMatrix.postScale(factor, factor, detector.getFocusX(), detector.getFocusY());
+                constrainTransform();
+                //Only stretch the fitted page while the fingers move, tiles come on scale end
+                requestRender(mCurrentPageIndex, true);
+                return true;
+            }
 
-            mPageCount = mPdfCore.getPageCount(mPdfDoc);
-            Log.d(TAG, "Page Count: " + mPageCount);
+            @Override
+            public void onScaleEnd(ScaleGestureDetector detector) {
+                isScaling = false;
+                if(getZoom() <= 1.01f) resetZoom();
+                else isReset = false;
+                requestRender(mCurrentPageIndex);
+            }
+        });
+        final GestureDetector panDetector = new GestureDetector(this,
+                new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                if(isReset || isScaling) return false;
+                mTransformMatrix.postTranslate(-distanceX, -distanceY);
+                constrainTransform();
+                requestRender(mCurrentPageIndex);
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapConfirmed(MotionEvent e) {
+                togglePageStrip();
+                return true;
+            }
+        });
+        setupPageStrip((ViewGroup) surfaceView.getParent());
+        surfaceView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                scaleDetector.onTouchEvent(event);
+                panDetector.onTouchEvent(event);
+                return true;
+            }
+        });
+
+        try{
+            //Shared with other viewers of the same file, opened only if none has it
+            if(new File(path).length() >= INCREMENTAL_OPEN_THRESHOLD){
+                openDocumentIncremental(PdfDocumentRegistry.acquire(mPdfCore, path, true));
+            }else{
+                mPdfDoc = PdfDocumentRegistry.acquire(mPdfCore, path, false);
+                Log.d("Main", "Open Document");
+
+                mPageCount = mPdfCore.getPageCount(mPdfDoc);
+                Log.d(TAG, "Page Count: " + mPageCount);
+                startTextIndexing();
+                loadOutline();
+                loadStripLayout();
+                mPageStripAdapter.notifyDataSetChanged();
+            }
 
         }catch(IOException e){
             e.printStackTrace();
             Log.e("Main", "Data uri: ");
         }
 	}
+	/**
+	 * Wait for the document data on the render worker and show the first page
+	 * as soon as it can be loaded, without waiting for the rest of the file
+	 */
+	private void openDocumentIncremental(final PdfDocument doc){
+		final CancellationToken token = new CancellationToken();
+		mOpeningDoc = doc;
+		mOpenToken = token;
+		mRenderPageWorker.submit(new Runnable() {
+			@Override
+			public void run() {
+				final long startTime = SystemClock.uptimeMillis();
+				if(!mPdfCore.waitForDocument(doc, token)){
+					Log.e(TAG, "Incremental open failed or cancelled");
+					return;
+				}
+				final int pageCount = mPdfCore.getPageCount(doc);
+				Log.d(TAG, "Document available after " + (SystemClock.uptimeMillis() - startTime)
+						+ "ms, linearized " + mPdfCore.isLinearized(doc) + ", page count " + pageCount);
+
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if(token.isCancelled()) return;
+						mPageCount = pageCount;
+						mPdfDoc = doc;
+						mOpeningDoc = null;
+						startTextIndexing();
+						loadOutline();
+						loadStripLayout();
+						mPageStripAdapter.notifyDataSetChanged();
+						if(isSurfaceCreated) requestRender(mCurrentPageIndex);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Index the text of the document in the background, starting at the
+	 * current page, so searches can be answered from the index. An index
+	 * saved by an earlier viewing is reused and only missing pages are
+	 * extracted.
+	 */
+	private void startTextIndexing(){
+		mHighlightPaint.setColor(HIGHLIGHT_COLOR);
+		synchronized (PDFViewerActivity.class) {
+			if(sTextIndexCache == null){
+				sTextIndexCache = new PdfTextIndexCache(
+						new File(getApplicationContext().getCacheDir(), "pdf-text-index"),
+						TEXT_INDEX_CACHE_BYTES);
+			}
+		}
+		final PdfDocument doc = mPdfDoc;
+		final int firstPage = mCurrentPageIndex;
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				PdfTextIndex index = null;
+				String fingerprint = null;
+				try{
+					fingerprint = PdfTextIndexCache.fingerprint(mDocPath);
+					index = sTextIndexCache.load(fingerprint, mPdfCore.getPageCount(doc));
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+				if(isDestroyed) return;
+
+				final String key = fingerprint;
+				mDocFingerprint = fingerprint;
+				final PdfTextSearcher searcher = new PdfTextSearcher(mPdfCore, doc, SEARCH_THREADS, index);
+				mTextSearcher = searcher;
+				searcher.startIndexing(firstPage, new PdfTextSearcher.IndexListener() {
+					@Override
+					public void onPagesIndexed(int indexedPageCount, int pageCount) {
+						if(indexedPageCount == pageCount && key != null){
+							sTextIndexCache.save(key, searcher.getIndex());
+						}
+					}
+				});
+				//A viewer destroyed meanwhile may have missed the searcher
+				if(isDestroyed) searcher.shutdown();
+			}
+		}, "PdfTextIndexLoader");
+		loader.start();
+	}
+
+	/**
+	 * Build the layout index on the render worker and hand it to the page
+	 * strip, whose rows must not wait for the document lock on the UI thread
+	 */
+	private void loadStripLayout(){
+		final PdfDocument doc = mPdfDoc;
+		mRenderPageWorker.submit(new Runnable() {
+			@Override
+			public void run() {
+				final PdfDocumentLayout layout = mPdfCore.getLayout(doc);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if(isDestroyed || mPdfDoc != doc) return;
+						mStripLayout = layout;
+						mPageStripAdapter.notifyDataSetChanged();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Read the outline in the background so section jumps don't wait for it
+	 */
+	private void loadOutline(){
+		final PdfDocument doc = mPdfDoc;
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				if(isDestroyed) return;
+				Log.d(TAG, "Outline of " + mPdfCore.getOutline(doc).getCount() + " bookmarks");
+			}
+		}, "PdfOutlineLoader");
+		loader.start();
+	}
+
+	/**
+	 * Jump to the next hit of the query and highlight it, searching the same
+	 * query again moves on to the following hit
+	 */
+	@Override
+	protected void onCommondSearch(String query) {
+		if(mTextSearcher == null) return;
+		if(query == null || query.trim().length() == 0){
+			mSearchQuery = null;
+			mSearchHit = null;
+			if(isSurfaceCreated) requestRender(mCurrentPageIndex);
+			return;
+		}
+
+		PdfSearchHit current = mSearchHit;
+		PdfSearchHit hit;
+		if(query.equals(mSearchQuery) && current != null){
+			hit = mTextSearcher.findNext(query, current.getPageIndex(), current.getCharIndex());
+		}else{
+			hit = mTextSearcher.findNext(query, mCurrentPageIndex, -1);
+		}
+		mSearchQuery = query;
+		mSearchHit = hit;
+		if(hit == null){
+			Log.d(TAG, "No hit for \"" + query + "\" in "
+					+ mTextSearcher.getIndex().getIndexedPageCount() + " indexed pages");
+			return;
+		}
+
+		if(hit.getPageIndex() != mCurrentPageIndex) gotoPage(hit.getPageIndex());
+		else if(isSurfaceCreated) requestRender(mCurrentPageIndex);
+	}
+
+	private void setupPageStrip(ViewGroup root){
+		mPageStripWidth = getResources().getDisplayMetrics().widthPixels / 6;
+		mPageStrip = new ListView(this);
+		mPageStrip.setBackgroundColor(BACKGROUND_COLOR);
+		mPageStrip.setVisibility(View.GONE);
+		RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(
+				mPageStripWidth, RelativeLayout.LayoutParams.MATCH_PARENT);
+		params.addRule(RelativeLayout.ALIGN_PARENT_RIGHT);
+		root.addView(mPageStrip, params);
+
+		mPageStripAdapter = new BaseAdapter() {
+			@Override
+			public int getCount() {
+				return (mPdfDoc != null)? mPageCount : 0;
+			}
+
+			@Override
+			public Object getItem(int position) {
+				return null;
+			}
+
+			@Override
+			public long getItemId(int position) {
+				return position;
+			}
+
+			@Override
+			public View getView(int position, View convertView, ViewGroup parent) {
+				ImageView thumbnail = (ImageView) convertView;
+				if(thumbnail == null){
+					thumbnail = new ImageView(PDFViewerActivity.this);
+					thumbnail.setScaleType(ImageView.ScaleType.FIT_CENTER);
+					thumbnail.setBackgroundColor(0xffffffff);
+				}
+				//Row height from the layout index, square rows until it is built
+				PdfDocumentLayout layout = mStripLayout;
+				float width = (layout != null)? layout.getPageWidthPoint(position) : 0;
+				float height = (layout != null)? layout.getPageHeightPoint(position) : 0;
+				int rowHeight = (width > 0 && height > 0)?
+						Math.round(mPageStripWidth * height / width) : mPageStripWidth;
+				thumbnail.setLayoutParams(new AbsListView.LayoutParams(mPageStripWidth, rowHeight));
+				ThumbnailService.getInstance(PDFViewerActivity.this)
+						.loadInto(thumbnail, mDocPath, position, mPageStripWidth);
+				return thumbnail;
+			}
+		};
+		mPageStrip.setAdapter(mPageStripAdapter);
+		mPageStrip.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+			@Override
+			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+				gotoPage(position);
+			}
+		});
+	}
+
+	private void togglePageStrip(){
+		if(mPdfDoc == null) return;
+		if(mPageStrip.getVisibility() == View.VISIBLE){
+			mPageStrip.setVisibility(View.GONE);
+		}else{
+			mPageStrip.setVisibility(View.VISIBLE);
+			mPageStrip.setSelection(mCurrentPageIndex);
+		}
+	}
+
 	private void resetPageFit(int pageIndex){
-        float pageWidth = mPdfCore.getPageWidth(mPdfDoc, pageIndex);
-        float pageHeight = mPdfCore.getPageHeight(mPdfDoc, pageIndex);
-        float screenWidth = mPdfSurfaceHolder.getSurfaceFrame().width();
-        float screenHeight = mPdfSurfaceHolder.getSurfaceFrame().height();
-
-        /**Portrait**/
-        if(screenWidth < screenHeight){
-            if( (pageWidth / pageHeight) < (screenWidth / screenHeight) ){
-                //Situation one: fit height
-                pageWidth *= (screenHeight / pageHeight);
-                pageHeight = screenHeight;
-
-                mPageRect.top = 0;
-                mPageRect.left = (int)(screenWidth - pageWidth) / 2;
-                mPageRect.right = (int)(mPageRect.left + pageWidth);
-                mPageRect.bottom = (int)pageHeight;
-            }else{
-                //Situation two: fit width
-                pageHeight *= (screenWidth / pageWidth);
-                pageWidth = screenWidth;
-
-                mPageRect.left = 0;
-                mPageRect.top = (int)(screenHeight - pageHeight) / 2;
-                mPageRect.bottom = (int)(mPageRect.top + pageHeight);
-                mPageRect.right = (int)pageWidth;
-            }
-        }else{
-
-            /**Landscape**/
-            if( pageWidth > pageHeight ){
-                //Situation one: fit height
-                pageWidth *= (screenHeight / pageHeight);
-                pageHeight = screenHeight;
-
-                mPageRect.top = 0;
-                mPageRect.left = (int)(screenWidth - pageWidth) / 2;
-                mPageRect.right = (int)(mPageRect.left + pageWidth);
-                mPageRect.bottom = (int)pageHeight;
-            }else{
-                //Situation two: fit width
-                pageHeight *= (screenWidth / pageWidth);
-                pageWidth = screenWidth;
+        computePageFit(pageIndex, mPageRect);
+    }
+
+    /**
+     * Fit the page to the screen, from the layout index so no page is loaded
+     */
+    private void computePageFit(int pageIndex, Rect pageRect){
+        mPdfCore.getLayout(mPdfDoc).getFitRect(pageIndex, mPdfSurfaceHolder.getSurfaceFrame().width(),
+                              mPdfSurfaceHolder.getSurfaceFrame().height(), pageRect);
+    }
+	
+    @Override
+    protected void onCommondNext() {
+        gotoPage(mCurrentPageIndex + 1);
+    }
+
+    @Override
+    protected void onCommondPrev() {
+        gotoPage(mCurrentPageIndex - 1);
+    }
+
+    private void registerMetricGauges(){
+        mMetricGauges.put("render queue", new PdfMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mRenderPageWorker.getQueue().size();
+            }
+        });
+        mMetricGauges.put("prefetch queue", new PdfMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mPrefetchScheduler.getQueueDepth();
+            }
+        });
+        mMetricGauges.put("page cache hit %", new PdfMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return PdfMetrics.hitRate(mPageCache.getHitCount(), mPageCache.getMissCount());
+            }
+        });
+        mMetricGauges.put("tile cache hit %", new PdfMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return PdfMetrics.hitRate(mTileRenderer.getHitCount(), mTileRenderer.getMissCount());
+            }
+        });
+        mMetricGauges.put("page cache bytes", new PdfMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mPageCache.getSizeBytes();
+            }
+        });
+        //Open pages are the bulk of what PDFium allocates
+        mMetricGauges.put("native heap bytes", new PdfMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return Debug.getNativeHeapAllocatedSize();
+            }
+        });
+        for(Map.Entry<String, PdfMetrics.Gauge> entry : mMetricGauges.entrySet()){
+            PdfMetrics.registerGauge(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Log the render metrics and write them to pdf-metrics.txt in the
+     * external cache dir, where they can be pulled from field devices
+     */
+    @Override
+    protected void onCommondDumpMetrics() {
+        final String report = mPdfCore.getMetricsReport();
+        Log.i(TAG, report);
+        File dir = getExternalCacheDir();
+        if(dir == null) dir = getCacheDir();
+        final File file = new File(dir, "pdf-metrics.txt");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    Writer writer = new FileWriter(file);
+                    try{
+                        writer.write(report);
+                    }finally{
+                        writer.close();
+                    }
+                    Log.d(TAG, "Metrics written to " + file);
+                }catch(IOException e){
+                    Log.e(TAG, "Can't write metrics to " + file, e);
+                }
+            }
+        }, "PdfMetricsWriter").start();
+    }
+
+    /**
+     * Jump to the section of the outline with a title, or else to a named
+     * destination, then prefetch the pages of the section in reading order
+     */
+    @Override
+    protected void onCommondGotoSection(final String title, final String namedDest) {
+        final PdfDocument doc = mPdfDoc;
+        if(doc == null) return;
+        final int pageCount = mPageCount;
+        //The outline may still be read, which waits for the document
+        mRenderPageWorker.submit(new Runnable() {
+            @Override
+            public void run() {
+                PdfOutline outline = mPdfCore.getOutline(doc);
+                int node = -1;
+                int firstPage = -1;
+                if(title != null && title.trim().length() > 0){
+                    node = outline.findNode(title);
+                    if(node >= 0) firstPage = outline.getPageIndex(node);
+                }
+                if(firstPage < 0 && namedDest != null){
+                    firstPage = mPdfCore.getNamedDestPageIndex(doc, namedDest);
+                    if(firstPage >= 0) node = outline.findNodeAtPage(firstPage);
+                }
+                if(firstPage < 0){
+                    Log.d(TAG, "No section \"" + title + "\" or destination \"" + namedDest + "\"");
+                    return;
+                }
 
-                mPageRect.left = 0;
-                mPageRect.top = 0;
-                mPageRect.bottom = (int)(mPageRect.top + pageHeight);
-                mPageRect.right = (int)pageWidth;
+                final int first = firstPage;
+                final int last = (node >= 0)? outline.getSectionEnd(node, pageCount) : firstPage;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(isDestroyed || mPdfDoc != doc) return;
+                        Log.d(TAG, "Section of pages " + first + " to " + last);
+                        mPrefetchScheduler.setSection(first, last, getSectionLookAhead());
+                        gotoPage(first);
+                    }
+                });
             }
+        });
+    }
+
+    /**
+     * Pages of a section to prefetch ahead, what the page cache holds besides
+     * the page shown and the ones behind it
+     */
+    private int getSectionLookAhead(){
+        int bytesPerPixel = (mBitmapConfig == Bitmap.Config.RGB_565)? 2 : 4;
+        int pageBytes = mScreenRect.width() * mScreenRect.height() * bytesPerPixel;
+        if(pageBytes <= 0) return PREFETCH_LOOK_AHEAD;
+        int cachedPages = mPageCache.getMaxSizeBytes() / pageBytes - 1 - PREFETCH_LOOK_BEHIND;
+        return Math.max(PREFETCH_LOOK_AHEAD, Math.min(SECTION_LOOK_AHEAD, cachedPages));
+    }
+
+    private void gotoPage(int pageIndex){
+        if(mPdfDoc == null || pageIndex < 0 || pageIndex >= mPageCount) return;
+        mCurrentPageIndex = pageIndex;
+        resetZoom();
+        //Stale prefetch work would compete with the render of the new page
+        mPrefetchScheduler.cancel();
+        if(isSurfaceCreated) requestRender(pageIndex);
+    }
+
+    /**
+     * Queue a render of the page, abandoning any render still in flight for
+     * an earlier request. Must be called on the UI thread.
+     */
+    private void requestRender(int pageIndex){
+        requestRender(pageIndex, false);
+    }
+
+    /**
+     * @param previewOnly only redraw what is already rendered under the current transform
+     */
+    private void requestRender(final int pageIndex, final boolean previewOnly){
+        final long requestTime = SystemClock.uptimeMillis();
+        final Matrix transform = new Matrix(mTransformMatrix);
+        final boolean identity = isReset;
+        final CancellationToken token = new CancellationToken();
+        if(mRenderToken != null) mRenderToken.cancel();
+        mRenderToken = token;
+
+        PdfMetrics.RENDER_QUEUE_DEPTH.record(mRenderPageWorker.getQueue().size());
+        mRenderPageWorker.submit(new Runnable() {
+            @Override
+            public void run() {
+                if(token.isCancelled()) return;
+                //Parts of an incrementally opened file may not be written yet
+                if(!mPdfCore.waitForPage(mPdfDoc, pageIndex, token)) return;
+                pinCurrentPage(pageIndex);
+
+                if(previewOnly){
+                    drawZoomed(pageIndex, transform, null);
+                    return;
+                }
+                if(!identity){
+                    renderZoomed(pageIndex, transform, token);
+                    return;
+                }
+
+                Bitmap page = getPageBitmap(pageIndex, token);
+                if(page == null) return;
+                drawPageBitmap(page, pageIndex);
+                Log.d(TAG, "Page " + pageIndex + " shown "
+                        + (SystemClock.uptimeMillis() - requestTime) + "ms after request");
+
+                mPrefetchScheduler.onPageChanged(pageIndex, mPageCount);
+            }
+        });
+    }
+
+    private void pinCurrentPage(int pageIndex){
+        if(mPinnedPageIndex == pageIndex) return;
+        if(mPinnedPageIndex >= 0) mPdfCore.unpinPage(mPdfDoc, mPinnedPageIndex);
+        mPdfCore.pinPage(mPdfDoc, pageIndex);
+        mPinnedPageIndex = pageIndex;
+    }
+
+    /**
+     * Get the screen-sized bitmap of a page, rendering it only when the cache misses
+     * @return null if the render was cancelled
+     */
+    private Bitmap getPageBitmap(int pageIndex, CancellationToken token){
+        int width = mScreenRect.width();
+        int height = mScreenRect.height();
+        int dpi = mPdfCore.getCurrentDpi();
+
+        Bitmap page = mPageCache.get(mPdfDoc, pageIndex, width, height, dpi);
+        if(page == null){
+            loadPageIfNeed(pageIndex);
+            resetPageFit(pageIndex);
+            if(mPreviewPassEnabled) drawPreview(pageIndex, width, height, token);
+
+            page = Bitmap.createBitmap(width, height, mBitmapConfig);
+            if(!mPdfCore.renderPageBitmap(mPdfDoc, page, pageIndex,
+                    mPageRect.left, mPageRect.top,
+                    mPageRect.width(), mPageRect.height(), token)){
+                Log.d(TAG, "Render of page " + pageIndex + " abandoned");
+                return null;
+            }
+            mPageCache.put(mPdfDoc, pageIndex, width, height, dpi, page);
         }
+        Log.d(TAG, mPageCache.toString() + ", open pages " + mPdfDoc.getOpenPageCount()
+                + ", opened " + mPdfDoc.getOpenedPageCount()
+                + ", evicted " + mPdfDoc.getEvictedPageCount());
+        return page;
+    }
 
+    /**
+     * Render the visible tiles of a zoomed page. Tiles already cached are shown
+     * first so a pan moves immediately, newly exposed tiles follow.
+     */
+    private void renderZoomed(int pageIndex, Matrix transform, CancellationToken token){
+        loadPageIfNeed(pageIndex);
+        resetPageFit(pageIndex);
+
+        Rect visible = new Rect();
+        if(!mapVisiblePage(transform, visible)) return;
+        int pageWidth = Math.round(mPageRectF.width());
+        int pageHeight = Math.round(mPageRectF.height());
+
+        drawZoomed(pageIndex, transform, visible);
+        if(!mTileRenderer.renderTiles(mPdfDoc, pageIndex, pageWidth, pageHeight, visible, token)) return;
+        drawZoomed(pageIndex, transform, visible);
+        Log.d(TAG, mTileRenderer.toString());
+    }
+
+    /**
+     * Map the fitted page rect through the transform into mPageRectF and get
+     * the part of the scaled page that is on screen
+     * @return false if no part of the page is visible
+     */
+    private boolean mapVisiblePage(Matrix transform, Rect visible){
+        mPageRectF.set(mPageRect);
+        transform.mapRect(mPageRectF);
+        int offsetX = Math.round(mPageRectF.left);
+        int offsetY = Math.round(mPageRectF.top);
+
+        visible.set(mScreenRect);
+        visible.offset(-offsetX, -offsetY);
+        return visible.intersect(0, 0, Math.round(mPageRectF.width()), Math.round(mPageRectF.height()));
+    }
+
+    /**
+     * Draw the fitted page bitmap stretched by the transform as a placeholder,
+     * with the cached tiles of the zoomed page on top when visible is not null
+     */
+    private void drawZoomed(int pageIndex, Matrix transform, Rect visible){
+        if(!isSurfaceCreated) return;
+        Bitmap page = mPageCache.get(mPdfDoc, pageIndex,
+                mScreenRect.width(), mScreenRect.height(), mPdfCore.getCurrentDpi());
+
+        Canvas canvas = mPdfSurfaceHolder.lockCanvas();
+        if(canvas == null) return;
+        try{
+            canvas.drawColor(BACKGROUND_COLOR);
+            if(page != null) canvas.drawBitmap(page, transform, null);
+            if(visible != null){
+                mTileRenderer.drawTiles(canvas, mPdfDoc, pageIndex,
+                        Math.round(mPageRectF.width()), Math.round(mPageRectF.height()),
+                        visible, Math.round(mPageRectF.left), Math.round(mPageRectF.top));
+            }
+        }finally{
+            mPdfSurfaceHolder.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    private float getZoom(){
+        mTransformMatrix.getValues(mMatrixValues);
+        return mMatrixValues[Matrix.MSCALE_X];
+    }
+
+    private void resetZoom(){
+        mTransformMatrix.reset();
         isReset = true;
     }
-	
+
+    /**
+     * Keep the zoomed page covering the screen, or centered on an axis where
+     * it is smaller than the screen
+     */
+    private void constrainTransform(){
+        RectF rect = new RectF(mPageRect);
+        mTransformMatrix.mapRect(rect);
+        float dx = 0, dy = 0;
+
+        if(rect.width() <= mScreenRect.width()) dx = mScreenRect.exactCenterX() - rect.centerX();
+        else if(rect.left > 0) dx = -rect.left;
+        else if(rect.right < mScreenRect.width()) dx = mScreenRect.width() - rect.right;
+
+        if(rect.height() <= mScreenRect.height()) dy = mScreenRect.exactCenterY() - rect.centerY();
+        else if(rect.top > 0) dy = -rect.top;
+        else if(rect.bottom < mScreenRect.height()) dy = mScreenRect.height() - rect.bottom;
+
+        mTransformMatrix.postTranslate(dx, dy);
+    }
+
+    /**
+     * Quick first pass for a page that is not cached: render at reduced
+     * resolution without annotations and stretch it over the screen, the
+     * full quality render replaces it when done
+     */
+    private void drawPreview(int pageIndex, int width, int height, CancellationToken token){
+        int previewWidth = Math.max(1, width / PREVIEW_SCALE);
+        int previewHeight = Math.max(1, height / PREVIEW_SCALE);
+        if(mPreviewBitmap == null || mPreviewBitmap.getWidth() != previewWidth
+                || mPreviewBitmap.getHeight() != previewHeight){
+            mPreviewBitmap = Bitmap.createBitmap(previewWidth, previewHeight, mBitmapConfig);
+        }
+
+        if(!mPdfCore.renderPageBitmap(mPdfDoc, mPreviewBitmap, pageIndex,
+                mPageRect.left / PREVIEW_SCALE, mPageRect.top / PREVIEW_SCALE,
+                mPageRect.width() / PREVIEW_SCALE, mPageRect.height() / PREVIEW_SCALE,
+                PdfiumCore.RENDER_FLAGS_PREVIEW, token)){
+            return;
+        }
+
+        if(!isSurfaceCreated) return;
+        Canvas canvas = mPdfSurfaceHolder.lockCanvas();
+        if(canvas == null) return;
+        try{
+            mPreviewRect.set(0, 0, width, height);
+            canvas.drawBitmap(mPreviewBitmap, null, mPreviewRect, mPreviewPaint);
+        }finally{
+            mPdfSurfaceHolder.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    /**
+     * Load and render a page into the cache ahead of time, without drawing it
+     * @return false if cancelled
+     */
+    private boolean prerenderPage(int pageIndex, CancellationToken token){
+        int width = mScreenRect.width();
+        int height = mScreenRect.height();
+        int dpi = mPdfCore.getCurrentDpi();
+        if(mPageCache.get(mPdfDoc, pageIndex, width, height, dpi) != null) return true;
+        //Not worth waiting for, the page is rendered when it is shown
+        if(!mPdfCore.isPageAvailable(mPdfDoc, pageIndex)) return false;
+
+        loadPageIfNeed(pageIndex);
+        if(token.isCancelled()) return false;
+
+        Rect pageRect = new Rect();
+        computePageFit(pageIndex, pageRect);
+        Bitmap page = Bitmap.createBitmap(width, height, mBitmapConfig);
+        if(!mPdfCore.renderPageBitmap(mPdfDoc, page, pageIndex,
+                pageRect.left, pageRect.top, pageRect.width(), pageRect.height(), token)){
+            return false;
+        }
+        mPageCache.put(mPdfDoc, pageIndex, width, height, dpi, page);
+        Log.d(TAG, "Prefetched page " + pageIndex);
+        return true;
+    }
+
+    private void drawPageBitmap(Bitmap page, int pageIndex){
+        if(!isSurfaceCreated) return;
+        RectF[] highlights = getHighlightRects(pageIndex);
+        Canvas canvas = mPdfSurfaceHolder.lockCanvas();
+        if(canvas == null) return;
+        try{
+            canvas.drawBitmap(page, 0, 0, null);
+            for(RectF highlight : highlights){
+                canvas.drawRect(highlight, mHighlightPaint);
+            }
+        }finally{
+            mPdfSurfaceHolder.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    /**
+     * Screen rects of the search hit if it is on the page
+     */
+    private RectF[] getHighlightRects(int pageIndex){
+        PdfSearchHit hit = mSearchHit;
+        if(hit == null || hit.getPageIndex() != pageIndex) return new RectF[0];
+
+        PdfDocumentLayout layout = mPdfCore.getLayout(mPdfDoc);
+        float pageWidth = layout.getPageWidthPoint(pageIndex);
+        float pageHeight = layout.getPageHeightPoint(pageIndex);
+        if(pageWidth <= 0 || pageHeight <= 0) return new RectF[0];
+
+        Rect pageRect = new Rect();
+        computePageFit(pageIndex, pageRect);
+        Matrix toScreen = new Matrix();
+        toScreen.setScale(pageRect.width() / pageWidth, pageRect.height() / pageHeight);
+        toScreen.postTranslate(pageRect.left, pageRect.top);
+        RectF[] rects = mTextSearcher.getHitRects(hit);
+        for(RectF rect : rects){
+            toScreen.mapRect(rect);
+        }
+        return rects;
+    }
+
     private void loadPageIfNeed(final int pageIndex){
         if( pageIndex >= 0 && pageIndex < mPageCount && !mPdfDoc.hasPage(pageIndex) ){
             Log.d(TAG, "Load page: " + pageIndex);
@@ -182,18 +938,44 @@ public class PDFViewerActivity extends BaseActivity {
     }
     
     @Override
-    public void onDestroy(){
-        try{
-            if(mPdfDoc != null && mDocFileStream != null){
-                mPdfCore.closeDocument(mPdfDoc);
-                Log.d("Main", "Close Document");
+    public void onTrimMemory(int level){
+        super.onTrimMemory(level);
+        mPageCache.onTrimMemory(level);
+        mTileRenderer.onTrimMemory(level);
+        ThumbnailService.getInstance(this).onTrimMemory(level);
+        if(level >= TRIM_MEMORY_MODERATE) PdfDocumentRegistry.closeIdle();
+    }
 
-                mDocFileStream.close();
-            }
-        }catch(IOException e){
-            e.printStackTrace();
-        }finally{
-            super.onDestroy();
+    @Override
+    public void onDestroy(){
+        for(Map.Entry<String, PdfMetrics.Gauge> entry : mMetricGauges.entrySet()){
+            PdfMetrics.unregisterGauge(entry.getKey(), entry.getValue());
+        }
+        if(mRenderToken != null) mRenderToken.cancel();
+        if(mOpenToken != null) mOpenToken.cancel();
+        mPrefetchScheduler.shutdown();
+        isDestroyed = true;
+        final PdfTextSearcher searcher = mTextSearcher;
+        if(searcher != null) searcher.shutdown();
+        final PdfDocument doc = (mPdfDoc != null)? mPdfDoc : mOpeningDoc;
+        if(doc != null){
+            //Runs after the cancelled work on the worker, which owns the pinned page
+            mRenderPageWorker.submit(new Runnable() {
+                @Override
+                public void run() {
+                    mPageCache.evictAll();
+                    mTileRenderer.evictAll();
+                    //Keep what was indexed so far for the next viewing
+                    if(searcher != null && mDocFingerprint != null){
+                        sTextIndexCache.save(mDocFingerprint, searcher.getIndex());
+                    }
+                    if(mPinnedPageIndex >= 0) mPdfCore.unpinPage(doc, mPinnedPageIndex);
+                    PdfDocumentRegistry.release(doc);
+                    Log.d("Main", "Release Document");
+                }
+            });
         }
+        mRenderPageWorker.shutdown();
+        super.onDestroy();
     }
 }
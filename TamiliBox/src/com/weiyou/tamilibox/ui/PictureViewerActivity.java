@@ -1,36 +1,220 @@
 package com.weiyou.tamilibox.ui;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.weiyou.tamilibox.BaseActivity;
 import com.weiyou.tamilibox.R;
+import com.weiyou.tamilibox.util.BitmapPool;
+import com.weiyou.tamilibox.util.FileTypeSniffer;
+import com.weiyou.tamilibox.util.FileTypeUtil;
+import com.weiyou.tamilibox.util.ImageDecoder;
+import com.weiyou.tamilibox.util.SlideshowLoader;
+import com.weiyou.tamilibox.widget.DeepZoomImageView;
 
 public class PictureViewerActivity extends BaseActivity {
+	private static final String TAG = PictureViewerActivity.class.getName();
+
+	// Opens pictures off the UI thread, shared by the viewers opened one after another
+	private static final ExecutorService sDecodeExecutor = Executors.newSingleThreadExecutor();
+	// Bitmaps of slides no longer kept, the next pictures are decoded into them
+	private static BitmapPool sBitmapPool = null;
+
+	// Pictures this many times larger than the screen are shown zoomable
+	private static final int DEEP_ZOOM_FACTOR = 2;
+	// Pictures of the folder decoded ahead of the one shown
+	private static final int SLIDES_AHEAD = 2;
+
+	private ImageView mImageView;
+	private DeepZoomImageView mDeepZoomView;
+	private SlideshowLoader mSlideshow;
+	private int mSlideIndex;
+	private volatile boolean isDestroyed = false;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_picture_viewer);
-		ImageView imageView= (ImageView)this.findViewById(R.id.imageView);
+		mImageView = (ImageView)this.findViewById(R.id.imageView);
 		Intent intent = this.getIntent();
 		Bundle bl = intent.getExtras();
-		String path = bl.getString("file_path");
-		
-        InputStream inputStream = null;  
-        try {  
-            inputStream = new FileInputStream(path);  
-        } catch (FileNotFoundException e) {  
-            e.printStackTrace();  
-        }  
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);  
-        imageView.setImageBitmap(bitmap);
+		final String path = bl.getString("file_path");
+
+		if (sBitmapPool == null) {
+			// Room for a couple of screen sized pictures within 1/8 of the per-app heap
+			int memClass = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+			sBitmapPool = new BitmapPool(memClass * 1024 * 1024 / 8);
+		}
+		// Decode for the screen, never for the picture's own size
+		DisplayMetrics metrics = getResources().getDisplayMetrics();
+		final int targetWidth = metrics.widthPixels;
+		final int targetHeight = metrics.heightPixels;
+		sDecodeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (isDestroyed) return;
+				final List<String> paths = listFolderImages(path);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (isDestroyed) return;
+						startSlideshow(paths, paths.indexOf(path), targetWidth, targetHeight);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Pictures of the folder of a picture by name, the picture included
+	 */
+	private static List<String> listFolderImages(String path) {
+		File file = new File(path);
+		String[] names = file.getParentFile() != null ? file.getParentFile().list() : null;
+		List<String> paths = new ArrayList<String>();
+		if (names != null) {
+			Arrays.sort(names);
+			int[] fileTypes = new int[names.length];
+			FileTypeUtil.getFileTypeIds(names, fileTypes);
+			for (int i = 0; i < names.length; i++) {
+				if (FileTypeUtil.isImageFileType(fileTypes[i])) {
+					paths.add(new File(file.getParentFile(), names[i]).getPath());
+				}
+			}
+		}
+		if (!paths.contains(path)) {
+			paths.clear();
+			paths.add(path);
+		}
+		return paths;
+	}
+
+	private void startSlideshow(List<String> paths, int index, int targetWidth, int targetHeight) {
+		mSlideshow = new SlideshowLoader(paths, targetWidth, targetHeight, sBitmapPool, SLIDES_AHEAD,
+				new SlideshowLoader.Listener() {
+			@Override
+			public void onSlideDecoded(int index, Bitmap bitmap) {
+				if (index == mSlideIndex) showSlide(index, bitmap);
+			}
+		});
+		gotoSlide(index);
+	}
+
+	/**
+	 * Show a picture of the folder, right away if it was decoded ahead,
+	 * else once it is. A picture too large for the screen then switches to
+	 * deep zoom, and next and prev go on from it through the folder.
+	 */
+	private void gotoSlide(int index) {
+		if (mSlideshow == null || index < 0 || index >= mSlideshow.getCount()) return;
+		mSlideIndex = index;
+		hideDeepZoom();
+		Bitmap bitmap = mSlideshow.setPosition(index);
+		if (bitmap != null) showSlide(index, bitmap);
+		else Log.d(TAG, "Slide " + index + " not decoded yet");
+		checkDeepZoom(index, mSlideshow.getPath(index));
+	}
+
+	private void showSlide(int index, Bitmap bitmap) {
+		mImageView.setImageBitmap(bitmap);
+		mSlideshow.setDisplayed(index);
+	}
+
+	@Override
+	protected void onCommondNext() {
+		gotoSlide(mSlideIndex + 1);
+	}
+
+	@Override
+	protected void onCommondPrev() {
+		gotoSlide(mSlideIndex - 1);
+	}
+
+	private static boolean isRegionDecodable(String path) {
+		int fileType = FileTypeSniffer.sniff(path);
+		return fileType == FileTypeUtil.FILE_TYPE_JPEG || fileType == FileTypeUtil.FILE_TYPE_PNG;
+	}
+
+	/**
+	 * Read the size of a slide off the UI thread and show it in deep zoom if
+	 * a subsampled decode can't keep its detail. The subsampled slide shows
+	 * meanwhile.
+	 */
+	private void checkDeepZoom(final int index, final String path) {
+		final DisplayMetrics metrics = getResources().getDisplayMetrics();
+		sDecodeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (isDestroyed || index != mSlideIndex) return;
+				final int[] bounds = ImageDecoder.decodeBounds(path);
+				if (bounds == null || !isRegionDecodable(path)
+						|| (bounds[0] <= metrics.widthPixels * DEEP_ZOOM_FACTOR
+						&& bounds[1] <= metrics.heightPixels * DEEP_ZOOM_FACTOR)) {
+					return;
+				}
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						// Moved on meanwhile
+						if (isDestroyed || index != mSlideIndex) return;
+						showDeepZoom(path, bounds[0], bounds[1]);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Show a picture too large for a subsampled decode to keep its detail
+	 * as tiles decoded for the zoom, over the slide
+	 */
+	private void showDeepZoom(String path, int width, int height) {
+		hideDeepZoom();
+		int memClass = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+		mDeepZoomView = new DeepZoomImageView(this, memClass * 1024 * 1024 / 8);
+		((ViewGroup) mImageView.getParent()).addView(mDeepZoomView,
+				new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+		mImageView.setVisibility(View.INVISIBLE);
+		mDeepZoomView.setImage(path, width, height);
+	}
+
+	/**
+	 * Back to the slide, detaching the deep zoom view frees its decoder and tiles
+	 */
+	private void hideDeepZoom() {
+		if (mDeepZoomView == null) return;
+		((ViewGroup) mDeepZoomView.getParent()).removeView(mDeepZoomView);
+		mDeepZoomView = null;
+		mImageView.setVisibility(View.VISIBLE);
+	}
+
+	@Override
+	protected void onDestroy() {
+		isDestroyed = true;
+		mImageView.setImageDrawable(null);
+		if (mSlideshow != null) mSlideshow.release();
+		super.onDestroy();
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level >= TRIM_MEMORY_MODERATE) sBitmapPool.clear();
+		if (mDeepZoomView != null) mDeepZoomView.onTrimMemory(level);
 	}
 }
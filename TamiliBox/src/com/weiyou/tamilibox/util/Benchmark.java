@@ -0,0 +1,160 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A small harness for timing hot paths on a device, where JMH doesn't run.
+ *
+ * Each operation is run a number of warm up iterations so the JIT has
+ * compiled it, then timed one iteration at a time. Set up and tear down
+ * around every iteration are not timed. Results keep every sample, so the
+ * median and the tail are reported rather than a mean skewed by a single
+ * collection, and are written as JSON lines to be compared across builds.
+ */
+public class Benchmark {
+	private static final String TAG = Benchmark.class.getName();
+
+	/** One timed operation, the hooks around it run outside the clock */
+	public abstract static class Op {
+		public void setUp() throws Exception {
+		}
+
+		public abstract void run() throws Exception;
+
+		public void tearDown() throws Exception {
+		}
+	}
+
+	public static class Result {
+		public final String name;
+		public final String params;
+		/** Nanoseconds per operation of every timed iteration, sorted */
+		private final long[] mSamples;
+
+		Result(String name, String params, long[] samples) {
+			this.name = name;
+			this.params = params;
+			mSamples = samples;
+			Arrays.sort(mSamples);
+		}
+
+		public long getMin() {
+			return mSamples[0];
+		}
+
+		public long getMax() {
+			return mSamples[mSamples.length - 1];
+		}
+
+		/**
+		 * @param percentile from 0 to 100, nearest rank
+		 */
+		public long getPercentile(int percentile) {
+			int rank = (int) Math.ceil(mSamples.length * percentile / 100.0);
+			return mSamples[Math.max(0, rank - 1)];
+		}
+
+		public long getMedian() {
+			return getPercentile(50);
+		}
+
+		public JSONObject toJson() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("name", name);
+			json.put("params", params);
+			json.put("iterations", mSamples.length);
+			json.put("min_ns", getMin());
+			json.put("median_ns", getMedian());
+			json.put("p90_ns", getPercentile(90));
+			json.put("max_ns", getMax());
+			return json;
+		}
+
+		@Override
+		public String toString() {
+			return name + (params.length() > 0 ? " [" + params + "]" : "") + ": median " + getMedian()
+					+ "ns, p90 " + getPercentile(90) + "ns, min " + getMin() + "ns";
+		}
+	}
+
+	private final int mWarmupIterations;
+	private final int mIterations;
+	private final List<Result> mResults = new ArrayList<Result>();
+
+	public Benchmark(int warmupIterations, int iterations) {
+		mWarmupIterations = warmupIterations;
+		mIterations = Math.max(1, iterations);
+	}
+
+	/**
+	 * Time an operation
+	 * @param params what the operation was run on, to tell runs apart
+	 * @param opsPerIteration times the operation repeats what it measures in
+	 *        one run, samples are divided by it
+	 */
+	public Result measure(String name, String params, int opsPerIteration, Op op) throws Exception {
+		for (int i = 0; i < mWarmupIterations; i++) runOnce(op);
+		// Start from a clean heap so an earlier benchmark's garbage isn't collected here
+		System.gc();
+		long[] samples = new long[mIterations];
+		for (int i = 0; i < mIterations; i++) {
+			samples[i] = runOnce(op) / Math.max(1, opsPerIteration);
+		}
+		Result result = new Result(name, params, samples);
+		mResults.add(result);
+		Log.d(TAG, result.toString());
+		return result;
+	}
+
+	private static long runOnce(Op op) throws Exception {
+		op.setUp();
+		try {
+			long start = System.nanoTime();
+			op.run();
+			return System.nanoTime() - start;
+		} finally {
+			op.tearDown();
+		}
+	}
+
+	public List<Result> getResults() {
+		return mResults;
+	}
+
+	/**
+	 * Append the results as one JSON object per line, each tagged with the
+	 * run and the device so lines from many runs can be compared
+	 * @param run name of this run, such as the build version
+	 */
+	public void appendJson(File file, String run) throws IOException {
+		long time = System.currentTimeMillis();
+		Writer writer = new FileWriter(file, true);
+		try {
+			for (Result result : mResults) {
+				JSONObject json = result.toJson();
+				json.put("run", run);
+				json.put("time", time);
+				json.put("device", Build.MODEL);
+				json.put("sdk", Build.VERSION.SDK_INT);
+				writer.write(json.toString());
+				writer.write('\n');
+			}
+		} catch (JSONException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inputs of the benchmarks, generated from a fixed seed so every device and
+ * every build measures the same work without shipping sample files.
+ *
+ * The PDF has pages of text in a standard font over filled and stroked
+ * paths, about the mix of a text book page with figures. File names come
+ * from FileTypeBenchmark.makeNames.
+ */
+public class BenchmarkCorpus {
+	/** Bump when the generated content changes, results of versions don't compare */
+	public static final int VERSION = 1;
+	public static final int PAGE_WIDTH = 420;
+	public static final int PAGE_HEIGHT = 595;
+
+	private static final long SEED = 0x5eed;
+	private static final int LINES_PER_PAGE = 48;
+	private static final int SHAPES_PER_PAGE = 24;
+	private static final String[] WORDS = { "the", "render", "page", "of", "document", "layout",
+			"glyph", "cache", "and", "stroke", "path", "with", "text", "a", "benchmark", "fill" };
+
+	private BenchmarkCorpus() {
+	}
+
+	/**
+	 * Get the generated PDF of a number of pages, writing it into a dir the
+	 * first time
+	 */
+	public static File getPdf(File dir, int pageCount) throws IOException {
+		File file = new File(dir, "benchmark-v" + VERSION + "-" + pageCount + ".pdf");
+		if (file.exists()) return file;
+
+		byte[] pdf = makePdf(pageCount).getBytes("US-ASCII");
+		File temp = new File(dir, file.getName() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(pdf);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) throw new IOException("Can't write " + file);
+		return file;
+	}
+
+	/**
+	 * A PDF with pageCount pages of PAGE_WIDTH x PAGE_HEIGHT points
+	 */
+	public static String makePdf(int pageCount) {
+		StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+		// Object 1 is the catalog, 2 the page tree, 3 the font, then page and content pairs
+		List<Integer> offsets = new ArrayList<Integer>();
+		int objectCount = 3 + pageCount * 2;
+
+		offsets.add(pdf.length());
+		pdf.append("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+		offsets.add(pdf.length());
+		pdf.append("2 0 obj\n<< /Type /Pages /Count ").append(pageCount).append(" /Kids [");
+		for (int i = 0; i < pageCount; i++) pdf.append(' ').append(4 + i * 2).append(" 0 R");
+		pdf.append(" ] >>\nendobj\n");
+		offsets.add(pdf.length());
+		pdf.append("3 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>\nendobj\n");
+
+		for (int i = 0; i < pageCount; i++) {
+			int pageObject = 4 + i * 2;
+			offsets.add(pdf.length());
+			pdf.append(pageObject).append(" 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ")
+					.append(PAGE_WIDTH).append(' ').append(PAGE_HEIGHT)
+					.append("] /Resources << /Font << /F1 3 0 R >> >> /Contents ")
+					.append(pageObject + 1).append(" 0 R >>\nendobj\n");
+			String content = makePageContent(new Random(SEED + i));
+			offsets.add(pdf.length());
+			pdf.append(pageObject + 1).append(" 0 obj\n<< /Length ").append(content.length())
+					.append(" >>\nstream\n").append(content).append("\nendstream\nendobj\n");
+		}
+
+		int xref = pdf.length();
+		pdf.append("xref\n0 ").append(objectCount + 1).append("\n0000000000 65535 f \n");
+		for (int offset : offsets) {
+			String number = Integer.toString(offset);
+			for (int i = number.length(); i < 10; i++) pdf.append('0');
+			pdf.append(number).append(" 00000 n \n");
+		}
+		pdf.append("trailer\n<< /Size ").append(objectCount + 1).append(" /Root 1 0 R >>\nstartxref\n")
+				.append(xref).append("\n%%EOF\n");
+		return pdf.toString();
+	}
+
+	private static String makePageContent(Random random) {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < SHAPES_PER_PAGE; i++) {
+			int x = random.nextInt(PAGE_WIDTH);
+			int y = random.nextInt(PAGE_HEIGHT);
+			int size = 20 + random.nextInt(80);
+			content.append(random.nextInt(100) / 100f).append(' ').append(random.nextInt(100) / 100f)
+					.append(' ').append(random.nextInt(100) / 100f).append(" rg\n");
+			if (i % 2 == 0) {
+				content.append(x).append(' ').append(y).append(' ').append(size).append(' ').append(size)
+						.append(" re f\n");
+			} else {
+				// A closed curve, stroked and filled
+				content.append(x).append(' ').append(y).append(" m ")
+						.append(x + size).append(' ').append(y + size).append(' ')
+						.append(x - size).append(' ').append(y + size).append(' ')
+						.append(x).append(' ').append(y).append(" c b\n");
+			}
+		}
+		content.append("0 0 0 rg\nBT\n/F1 9 Tf\n11 TL\n24 ").append(PAGE_HEIGHT - 30).append(" Td\n");
+		for (int i = 0; i < LINES_PER_PAGE; i++) {
+			content.append('(');
+			for (int w = 0; w < 10; w++) {
+				if (w > 0) content.append(' ');
+				content.append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			content.append(") '\n");
+		}
+		content.append("ET");
+		return content.toString();
+	}
+}
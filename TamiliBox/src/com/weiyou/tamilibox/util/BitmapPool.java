@@ -0,0 +1,92 @@
+package com.weiyou.tamilibox.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Mutable bitmaps no longer shown, kept to be decoded into through
+ * BitmapFactory.Options.inBitmap instead of allocating new ones.
+ *
+ * Before KitKat a bitmap can only be reused for an image of exactly its
+ * size, which decoding photos of different sizes almost never hits, so the
+ * pool only holds bitmaps from KitKat on.
+ */
+public class BitmapPool {
+	private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+	private final int mMaxBytes;
+	private int mBytes = 0;
+
+	public BitmapPool(int maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	}
+
+	/**
+	 * Take out the smallest bitmap able to hold width x height pixels of
+	 * the config, null if there is none
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		if (!isSupported()) return null;
+		int needed = width * height * bytesPerPixel(config);
+		Bitmap best = null;
+		for (Bitmap bitmap : mBitmaps) {
+			int size = bitmap.getAllocationByteCount();
+			if (size >= needed && (best == null || size < best.getAllocationByteCount())) {
+				best = bitmap;
+			}
+		}
+		if (best != null) {
+			mBitmaps.remove(best);
+			mBytes -= best.getAllocationByteCount();
+		}
+		return best;
+	}
+
+	/**
+	 * Give back a bitmap that nothing draws anymore, it is recycled if it
+	 * can't be reused
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) return;
+		if (!isSupported() || !bitmap.isMutable() || bitmap.getAllocationByteCount() > mMaxBytes) {
+			bitmap.recycle();
+			return;
+		}
+		mBitmaps.addFirst(bitmap);
+		mBytes += bitmap.getAllocationByteCount();
+		// Drop the least recently given back first
+		while (mBytes > mMaxBytes) {
+			Bitmap oldest = mBitmaps.removeLast();
+			mBytes -= oldest.getAllocationByteCount();
+			oldest.recycle();
+		}
+	}
+
+	public synchronized void clear() {
+		Iterator<Bitmap> iterator = mBitmaps.iterator();
+		while (iterator.hasNext()) {
+			iterator.next().recycle();
+			iterator.remove();
+		}
+		mBytes = 0;
+	}
+
+	public synchronized int getSizeBytes() {
+		return mBytes;
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8) return 1;
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) return 2;
+		return 4;
+	}
+}
@@ -0,0 +1,174 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Lists directories off the UI thread.
+ *
+ * Names come from a single readdir, then entries are stat'ed and handed to
+ * the listener in chunks, a small first one so the first screen shows up
+ * quickly. Finished listings are cached per directory and reused as long as
+ * the modification time of the directory is unchanged, which it isn't when
+ * an entry is added, removed or renamed.
+ */
+public class DirectoryScanner {
+	private static final String TAG = DirectoryScanner.class.getName();
+
+	private static final int FIRST_CHUNK_SIZE = 32;
+	private static final int CHUNK_SIZE = 256;
+	/** Cached entries over all directories */
+	private static final int CACHE_ENTRIES = 20000;
+
+	/** Notified on the main thread */
+	public interface Listener {
+		void onEntries(List<FileEntry> entries);
+
+		/** @param error the directory couldn't be read, what was delivered is all there is */
+		void onComplete(boolean error);
+	}
+
+	/** A scan in progress, cancelled scans deliver nothing more */
+	public static final class Scan {
+		private volatile boolean mCancelled = false;
+
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+	}
+
+	private static class Listing {
+		final long lastModified;
+		final FileEntry[] entries;
+
+		Listing(long lastModified, FileEntry[] entries) {
+			this.lastModified = lastModified;
+			this.entries = entries;
+		}
+	}
+
+	private static final LruCache<String, Listing> sCache = new LruCache<String, Listing>(CACHE_ENTRIES) {
+		@Override
+		protected int sizeOf(String key, Listing value) {
+			return Math.max(1, value.entries.length);
+		}
+	};
+
+	// One thread, a new scan mostly waits for the cancelled one to notice
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "DirectoryScanner");
+		}
+	});
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	private DirectoryScanner() {
+	}
+
+	/**
+	 * Start listing a directory, cancel the returned scan when its entries
+	 * are not wanted anymore
+	 */
+	public static Scan scan(final String path, final Listener listener) {
+		final Scan scan = new Scan();
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				list(path, scan, listener);
+			}
+		});
+		return scan;
+	}
+
+	/**
+	 * Drop the cached listing of a directory, for changes made within the
+	 * same second as the one cached on filesystems with coarse times
+	 */
+	public static void invalidate(String path) {
+		sCache.remove(path);
+	}
+
+	private static void list(String path, Scan scan, Listener listener) {
+		if (scan.isCancelled()) return;
+		File dir = new File(path);
+		long lastModified = dir.lastModified();
+
+		Listing cached = sCache.get(path);
+		if (cached != null && cached.lastModified == lastModified) {
+			deliver(scan, listener, Arrays.asList(cached.entries));
+			complete(scan, listener, false);
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		String[] names = dir.list();
+		if (names == null) {
+			Log.e(TAG, "Can't list " + path);
+			complete(scan, listener, true);
+			return;
+		}
+
+		FileEntry[] entries = new FileEntry[names.length];
+		int delivered = 0;
+		int chunkSize = FIRST_CHUNK_SIZE;
+		for (int i = 0; i < names.length; i++) {
+			if (scan.isCancelled()) return;
+			File file = new File(dir, names[i]);
+			entries[i] = new FileEntry(names[i], file.getPath(), file.isDirectory());
+			if (i + 1 - delivered == chunkSize) {
+				deliver(scan, listener, Arrays.asList(entries).subList(delivered, i + 1));
+				delivered = i + 1;
+				chunkSize = CHUNK_SIZE;
+			}
+		}
+		if (delivered < entries.length) {
+			deliver(scan, listener, Arrays.asList(entries).subList(delivered, entries.length));
+		}
+		sCache.put(path, new Listing(lastModified, entries));
+		complete(scan, listener, false);
+		Log.d(TAG, "Listed " + entries.length + " entries of " + path + " in "
+				+ (System.nanoTime() - startTime) / 1000000 + "ms");
+	}
+
+	private static void deliver(final Scan scan, final Listener listener, List<FileEntry> entries) {
+		// A copy, the listener may keep it
+		final List<FileEntry> chunk = new ArrayList<FileEntry>(entries);
+		sMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!scan.isCancelled()) listener.onEntries(chunk);
+			}
+		});
+	}
+
+	private static void complete(final Scan scan, final Listener listener, final boolean error) {
+		sMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!scan.isCancelled()) listener.onComplete(error);
+			}
+		});
+	}
+}
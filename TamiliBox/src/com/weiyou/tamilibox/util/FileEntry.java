@@ -0,0 +1,16 @@
+package com.weiyou.tamilibox.util;
+
+/**
+ * An entry of a directory listing, with what the file browser shows of it
+ */
+public final class FileEntry {
+	public final String name;
+	public final String path;
+	public final boolean isDirectory;
+
+	public FileEntry(String name, String path, boolean isDirectory) {
+		this.name = name;
+		this.path = path;
+		this.isDirectory = isDirectory;
+	}
+}
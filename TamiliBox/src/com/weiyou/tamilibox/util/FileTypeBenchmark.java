@@ -0,0 +1,73 @@
+package com.weiyou.tamilibox.util;
+
+/**
+ * Compares the trie lookup of FileTypeUtil with the substring and HashMap
+ * lookup it replaced, over names like those of a media folder. Run by
+ * BenchmarkActivity on a device, the numbers of a desktop JVM mean little
+ * for Dalvik.
+ */
+public class FileTypeBenchmark {
+	// Keeps the timed lookups from being optimized away
+	private static volatile int sResult;
+
+	private static final String[] SAMPLE_EXTENSIONS = { "jpg", "JPG", "png", "mp4",
+			"3gp", "mp3", "pdf", "txt", "apk", "thumbnails", "" };
+
+	/**
+	 * Names of count files cycling through common extensions
+	 */
+	public static String[] makeNames(int count) {
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			String extension = SAMPLE_EXTENSIONS[i % SAMPLE_EXTENSIONS.length];
+			names[i] = "IMG_2014" + i + (extension.length() > 0 ? "." + extension : "");
+		}
+		return names;
+	}
+
+	/**
+	 * Time classifying the names by each lookup with the benchmark harness,
+	 * per name
+	 */
+	public static void measure(Benchmark benchmark, final String[] names) throws Exception {
+		int check = classifyByMap(names) - classifyByTrie(names);
+		if (check != 0) throw new IllegalStateException("Lookups disagree by " + check);
+
+		String params = "names=" + names.length;
+		final int[] types = new int[names.length];
+		benchmark.measure("filetype.ids", params, names.length, new Benchmark.Op() {
+			@Override
+			public void run() {
+				FileTypeUtil.getFileTypeIds(names, types);
+			}
+		});
+		benchmark.measure("filetype.trie", params, names.length, new Benchmark.Op() {
+			@Override
+			public void run() {
+				sResult = classifyByTrie(names);
+			}
+		});
+		benchmark.measure("filetype.map", params, names.length, new Benchmark.Op() {
+			@Override
+			public void run() {
+				sResult = classifyByMap(names);
+			}
+		});
+	}
+
+	private static int classifyByMap(String[] names) {
+		int known = 0;
+		for (String name : names) {
+			if (FileTypeUtil.getFileTypeByMap(name) != null) known++;
+		}
+		return known;
+	}
+
+	private static int classifyByTrie(String[] names) {
+		int known = 0;
+		for (String name : names) {
+			if (FileTypeUtil.getFileType(name) != null) known++;
+		}
+		return known;
+	}
+}
@@ -0,0 +1,218 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Detects file types from the first bytes of a file instead of the
+ * extension, so a misnamed file is still recognized and a damaged one with
+ * the right extension is not.
+ *
+ * Only HEADER_SIZE bytes are read, by a positional read into a direct
+ * buffer reused by each thread. Verdicts are cached by path and checked
+ * against the size and modification time of the file, so listing a
+ * directory again costs a stat per file rather than a read.
+ */
+public class FileTypeSniffer {
+	private static final int HEADER_SIZE = 64;
+	private static final int CACHE_ENTRIES = 4096;
+
+	private static final byte[] JPEG_SIGNATURE = { (byte) 0xff, (byte) 0xd8, (byte) 0xff };
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a };
+	/** The ASF header object GUID, WMA and WMV can't be told apart from it */
+	private static final byte[] ASF_SIGNATURE = { 0x30, 0x26, (byte) 0xb2, 0x75, (byte) 0x8e, 0x66,
+			(byte) 0xcf, 0x11 };
+
+	private static final class Verdict {
+		final long lastModified;
+		final long size;
+		final int fileType;
+
+		Verdict(long lastModified, long size, int fileType) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.fileType = fileType;
+		}
+	}
+
+	private static final LruCache<String, Verdict> sCache = new LruCache<String, Verdict>(CACHE_ENTRIES);
+
+	private static final ThreadLocal<ByteBuffer> sHeader = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(HEADER_SIZE);
+		}
+	};
+
+	private FileTypeSniffer() {
+	}
+
+	/**
+	 * File type of a file from its content, with the extension used where
+	 * the content can't tell, or for formats without a signature.
+	 * @return 0 if the type is unknown, or if the extension claims a format
+	 *         the content doesn't have
+	 */
+	public static int detect(String path) {
+		int sniffed = sniff(path);
+		int byExtension = FileTypeUtil.getFileTypeId(path);
+		if (sniffed == 0) {
+			return hasSignature(byExtension) ? 0 : byExtension;
+		}
+		// The same container for audio and video, or several names of one format
+		if (sameFamily(sniffed, byExtension)) return byExtension;
+		return sniffed;
+	}
+
+	/**
+	 * Detect many files at once, as when scanning a directory
+	 * @param fileTypes receives the file type of each path, 0 for unknown ones
+	 */
+	public static void detect(String[] paths, int[] fileTypes) {
+		for (int i = 0; i < paths.length; i++) {
+			fileTypes[i] = detect(paths[i]);
+		}
+	}
+
+	/**
+	 * File type from the first bytes of a file only
+	 * @return 0 if no signature matches or the file can't be read
+	 */
+	public static int sniff(String path) {
+		File file = new File(path);
+		long lastModified = file.lastModified();
+		long size = file.length();
+		Verdict verdict = sCache.get(path);
+		if (verdict != null && verdict.lastModified == lastModified && verdict.size == size) {
+			return verdict.fileType;
+		}
+
+		int fileType = 0;
+		if (size > 0) {
+			ByteBuffer header = sHeader.get();
+			header.clear();
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					FileChannel channel = in.getChannel();
+					long position = 0;
+					int read;
+					while (header.hasRemaining() && (read = channel.read(header, position)) > 0) {
+						position += read;
+					}
+				} finally {
+					in.close();
+				}
+				header.flip();
+				fileType = match(header);
+			} catch (IOException e) {
+				// Unreadable, and not cached so it is tried again
+				return 0;
+			}
+		}
+		sCache.put(path, new Verdict(lastModified, size, fileType));
+		return fileType;
+	}
+
+	/**
+	 * Whether sniff can recognize files of a type
+	 */
+	public static boolean hasSignature(int fileType) {
+		switch (fileType) {
+		case FileTypeUtil.FILE_TYPE_MP3:
+		case FileTypeUtil.FILE_TYPE_M4A:
+		case FileTypeUtil.FILE_TYPE_WAV:
+		case FileTypeUtil.FILE_TYPE_AMR:
+		case FileTypeUtil.FILE_TYPE_AWB:
+		case FileTypeUtil.FILE_TYPE_WMA:
+		case FileTypeUtil.FILE_TYPE_OGG:
+		case FileTypeUtil.FILE_TYPE_MP4:
+		case FileTypeUtil.FILE_TYPE_M4V:
+		case FileTypeUtil.FILE_TYPE_3GPP:
+		case FileTypeUtil.FILE_TYPE_3GPP2:
+		case FileTypeUtil.FILE_TYPE_WMV:
+		case FileTypeUtil.FILE_TYPE_JPEG:
+		case FileTypeUtil.FILE_TYPE_GIF:
+		case FileTypeUtil.FILE_TYPE_PNG:
+		case FileTypeUtil.FILE_TYPE_BMP:
+		case FileTypeUtil.FILE_TYPE_PDF:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean sameFamily(int a, int b) {
+		return family(a) != 0 && family(a) == family(b);
+	}
+
+	private static int family(int fileType) {
+		switch (fileType) {
+		case FileTypeUtil.FILE_TYPE_MP4:
+		case FileTypeUtil.FILE_TYPE_M4V:
+		case FileTypeUtil.FILE_TYPE_M4A:
+		case FileTypeUtil.FILE_TYPE_3GPP:
+		case FileTypeUtil.FILE_TYPE_3GPP2:
+			return 1;
+		case FileTypeUtil.FILE_TYPE_WMV:
+		case FileTypeUtil.FILE_TYPE_WMA:
+			return 2;
+		case FileTypeUtil.FILE_TYPE_AMR:
+		case FileTypeUtil.FILE_TYPE_AWB:
+			return 3;
+		default:
+			return 0;
+		}
+	}
+
+	private static int match(ByteBuffer header) {
+		int length = header.limit();
+		if (startsWith(header, 0, "%PDF-")) return FileTypeUtil.FILE_TYPE_PDF;
+		if (startsWith(header, 0, JPEG_SIGNATURE)) return FileTypeUtil.FILE_TYPE_JPEG;
+		if (startsWith(header, 0, PNG_SIGNATURE)) return FileTypeUtil.FILE_TYPE_PNG;
+		if (startsWith(header, 0, "GIF87a") || startsWith(header, 0, "GIF89a")) return FileTypeUtil.FILE_TYPE_GIF;
+		// BM, then the reserved fields that are always zero
+		if (startsWith(header, 0, "BM") && length >= 10 && header.getInt(6) == 0) return FileTypeUtil.FILE_TYPE_BMP;
+		if (startsWith(header, 4, "ftyp")) {
+			if (startsWith(header, 8, "3gp")) return FileTypeUtil.FILE_TYPE_3GPP;
+			if (startsWith(header, 8, "3g2")) return FileTypeUtil.FILE_TYPE_3GPP2;
+			if (startsWith(header, 8, "M4A ")) return FileTypeUtil.FILE_TYPE_M4A;
+			if (startsWith(header, 8, "M4V ")) return FileTypeUtil.FILE_TYPE_M4V;
+			return FileTypeUtil.FILE_TYPE_MP4;
+		}
+		if (startsWith(header, 0, ASF_SIGNATURE)) return FileTypeUtil.FILE_TYPE_WMV;
+		if (startsWith(header, 0, "OggS")) return FileTypeUtil.FILE_TYPE_OGG;
+		if (startsWith(header, 0, "RIFF") && startsWith(header, 8, "WAVE")) return FileTypeUtil.FILE_TYPE_WAV;
+		if (startsWith(header, 0, "#!AMR-WB\n")) return FileTypeUtil.FILE_TYPE_AWB;
+		if (startsWith(header, 0, "#!AMR\n")) return FileTypeUtil.FILE_TYPE_AMR;
+		if (startsWith(header, 0, "MThd")) return FileTypeUtil.FILE_TYPE_MID;
+		if (startsWith(header, 0, "ID3")) return FileTypeUtil.FILE_TYPE_MP3;
+		// An MPEG audio frame sync with a valid layer, ADTS AAC has layer 0
+		if (length >= 2 && (header.get(0) & 0xff) == 0xff && (header.get(1) & 0xe0) == 0xe0
+				&& (header.get(1) & 0x06) != 0) {
+			return FileTypeUtil.FILE_TYPE_MP3;
+		}
+		return 0;
+	}
+
+	private static boolean startsWith(ByteBuffer header, int offset, String signature) {
+		if (header.limit() < offset + signature.length()) return false;
+		for (int i = 0; i < signature.length(); i++) {
+			if (header.get(offset + i) != (byte) signature.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(ByteBuffer header, int offset, byte[] signature) {
+		if (header.limit() < offset + signature.length) return false;
+		for (int i = 0; i < signature.length; i++) {
+			if (header.get(offset + i) != signature[i]) return false;
+		}
+		return true;
+	}
+}
@@ -53,6 +53,9 @@ public class FileTypeUtil {
     public static final int FILE_TYPE_WPL     = 43;
     private static final int FIRST_PLAYLIST_FILE_TYPE = FILE_TYPE_M3U;
     private static final int LAST_PLAYLIST_FILE_TYPE = FILE_TYPE_WPL;
+
+    // Document file types
+    public static final int FILE_TYPE_PDF     = 51;
     
     //̬ڲ
     static class MediaFileType {
@@ -70,9 +73,67 @@ public class FileTypeUtil {
             = new HashMap<String, MediaFileType>();
     private static HashMap<String, Integer> sMimeTypeMap 
             = new HashMap<String, Integer>();            
+
+    // Trie of the registered extensions read backwards, so a path is
+    // classified from its last char without cutting out the extension.
+    // Node n has its child for symbol s at n * TRIE_SYMBOLS + s, 0 for none.
+    private static final int TRIE_SYMBOLS = 36; // A-Z and 0-9
+    private static int[] sTrieChildren = new int[TRIE_SYMBOLS * 64];
+    private static MediaFileType[] sTrieTypes = new MediaFileType[64];
+    private static int sTrieNodeCount = 1; // The root
+
     static void addFileType(String extension, int fileType, String mimeType) {
-        sFileTypeMap.put(extension, new MediaFileType(fileType, mimeType));
-        sMimeTypeMap.put(mimeType, new Integer(fileType));
+        MediaFileType type = new MediaFileType(fileType, mimeType);
+        sFileTypeMap.put(extension, type);
+        sMimeTypeMap.put(mimeType, Integer.valueOf(fileType));
+        addToTrie(extension, type);
+    }
+
+    private static void addToTrie(String extension, MediaFileType type) {
+        int node = 0;
+        for (int i = extension.length() - 1; i >= 0; i--) {
+            int symbol = trieSymbol(extension.charAt(i));
+            if (symbol < 0) {
+                throw new IllegalArgumentException("Unsupported extension " + extension);
+            }
+            int child = sTrieChildren[node * TRIE_SYMBOLS + symbol];
+            if (child == 0) {
+                if (sTrieNodeCount == sTrieTypes.length) {
+                    int[] children = new int[sTrieChildren.length * 2];
+                    System.arraycopy(sTrieChildren, 0, children, 0, sTrieChildren.length);
+                    sTrieChildren = children;
+                    MediaFileType[] types = new MediaFileType[sTrieTypes.length * 2];
+                    System.arraycopy(sTrieTypes, 0, types, 0, sTrieTypes.length);
+                    sTrieTypes = types;
+                }
+                child = sTrieNodeCount++;
+                sTrieChildren[node * TRIE_SYMBOLS + symbol] = child;
+            }
+            node = child;
+        }
+        sTrieTypes[node] = type;
+    }
+
+    // Symbol of an extension char, case insensitive, -1 if no extension has it
+    private static int trieSymbol(char c) {
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        if (c >= '0' && c <= '9') return 26 + c - '0';
+        return -1;
+    }
+
+    // Type of the extension of a path, without allocating
+    private static MediaFileType lookup(String path) {
+        int node = 0;
+        for (int i = path.length() - 1; i >= 0; i--) {
+            char c = path.charAt(i);
+            if (c == '.') return sTrieTypes[node];
+            int symbol = trieSymbol(c);
+            if (symbol < 0) return null;
+            node = sTrieChildren[node * TRIE_SYMBOLS + symbol];
+            if (node == 0) return null;
+        }
+        return null;
     }
     static {
         addFileType("MP3", FILE_TYPE_MP3, "audio/mpeg");
@@ -108,6 +169,8 @@ public class FileTypeUtil {
         addFileType("PLS", FILE_TYPE_PLS, "audio/x-scpls");
         addFileType("WPL", FILE_TYPE_WPL, "application/vnd.ms-wpl");
 
+        addFileType("PDF", FILE_TYPE_PDF, "application/pdf");
+
         // compute file extensions list for native Media Scanner
         StringBuilder builder = new StringBuilder();
         Iterator<String> iterator = sFileTypeMap.keySet().iterator();
@@ -144,13 +207,45 @@ public class FileTypeUtil {
         return (fileType >= FIRST_PLAYLIST_FILE_TYPE &&
                 fileType <= LAST_PLAYLIST_FILE_TYPE);
     }
+
+    public static boolean isPdfFileType(int fileType) {
+        return fileType == FILE_TYPE_PDF;
+    }
     
     public static MediaFileType getFileType(String path) {
+        return lookup(path);
+    }
+
+    // The lookup getFileType did before the trie, kept for FileTypeBenchmark
+    static MediaFileType getFileTypeByMap(String path) {
         int lastDot = path.lastIndexOf(".");
         if (lastDot < 0)
             return null;
         return sFileTypeMap.get(path.substring(lastDot + 1).toUpperCase());
     }
+
+    /**
+     * File type of a path from its extension, 0 if it isn't a known one
+     */
+    public static int getFileTypeId(String path) {
+        MediaFileType type = lookup(path);
+        return (type == null ? 0 : type.fileType);
+    }
+
+    /**
+     * Classify many paths or names at once, as when scanning a directory
+     * @param fileTypes receives the file type of each path, 0 for unknown ones
+     * @return the number of paths of a known type
+     */
+    public static int getFileTypeIds(String[] paths, int[] fileTypes) {
+        int known = 0;
+        for (int i = 0; i < paths.length; i++) {
+            MediaFileType type = lookup(paths[i]);
+            fileTypes[i] = (type == null ? 0 : type.fileType);
+            if (type != null) known++;
+        }
+        return known;
+    }
     //Ƶļ·жļ
     public static boolean isVideoFileType(String path) {  //Լ
         MediaFileType type = getFileType(path);
@@ -175,6 +270,13 @@ public class FileTypeUtil {
            }
            return false;
     }
+    public static boolean isPdfFileType(String path) {
+        MediaFileType type = getFileType(path);
+        if(null != type) {
+            return isPdfFileType(type.fileType);
+        }
+        return false;
+    }
     //mimeͲ鿴ļ
     public static int getFileTypeForMimeType(String mimeType) {
         Integer value = sMimeTypeMap.get(mimeType);
@@ -0,0 +1,102 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Decodes images at about the size they are shown rather than their own.
+ *
+ * The bounds are read first, then the image is decoded with the largest
+ * power of two subsampling that keeps it at least as large as the target,
+ * so the decoded bitmap is under four times the target whatever the size of
+ * the image. Decoding goes into a pooled bitmap when one fits.
+ */
+public class ImageDecoder {
+	private static final String TAG = ImageDecoder.class.getName();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private ImageDecoder() {
+	}
+
+	/**
+	 * Size of an image without decoding it
+	 * @return width and height, null if it isn't a decodable image
+	 */
+	public static int[] decodeBounds(String path) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decode(path, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+		return new int[] { options.outWidth, options.outHeight };
+	}
+
+	/**
+	 * Largest power of two that divides the image down to no less than the
+	 * target in either dimension
+	 */
+	public static int computeSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Decode an image subsampled for a target size
+	 * @param pool bitmaps to decode into, may be null
+	 * @return null if it isn't a decodable image
+	 */
+	public static Bitmap decode(String path, int targetWidth, int targetHeight, BitmapPool pool) {
+		int[] bounds = decodeBounds(path);
+		if (bounds == null) return null;
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = computeSampleSize(bounds[0], bounds[1], targetWidth, targetHeight);
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		if (pool != null && BitmapPool.isSupported()) {
+			options.inMutable = true;
+			// The decoder rounds subsampled sizes up
+			int width = (bounds[0] + options.inSampleSize - 1) / options.inSampleSize;
+			int height = (bounds[1] + options.inSampleSize - 1) / options.inSampleSize;
+			options.inBitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+		}
+
+		Bitmap bitmap;
+		try {
+			bitmap = decode(path, options);
+		} catch (IllegalArgumentException e) {
+			// The pooled bitmap couldn't be used after all, as for GIFs
+			if (options.inBitmap == null) throw e;
+			Log.d(TAG, "Can't decode into pooled bitmap: " + e.getMessage());
+			pool.put(options.inBitmap);
+			options.inBitmap = null;
+			bitmap = decode(path, options);
+		}
+		if (bitmap == null && options.inBitmap != null) pool.put(options.inBitmap);
+		Log.d(TAG, "Decoded " + path + " " + bounds[0] + "x" + bounds[1] + " at 1/" + options.inSampleSize
+				+ (options.inBitmap != null && bitmap == options.inBitmap ? " into a pooled bitmap" : ""));
+		return bitmap;
+	}
+
+	private static Bitmap decode(String path, BitmapFactory.Options options) {
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE);
+			try {
+				return BitmapFactory.decodeStream(in, null, options);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Index of the media files on external storage, so all the videos, images
+ * or PDFs can be listed without walking the tree.
+ *
+ * The first scan walks the whole tree and saves the index to internal
+ * storage. Later scans start from the saved index and only list the
+ * directories whose modification time changed, which it does when an entry
+ * is added, removed or renamed. Unchanged directories are still stat'ed to
+ * find changed ones below them, but not listed. A file rewritten in place
+ * keeps its old size and time in the index until its directory changes.
+ */
+public class MediaIndexer {
+	private static final String TAG = MediaIndexer.class.getName();
+
+	public static final int CATEGORY_AUDIO = 1;
+	public static final int CATEGORY_VIDEO = 2;
+	public static final int CATEGORY_IMAGE = 3;
+	public static final int CATEGORY_PDF = 4;
+
+	/** 'MIDX', bump VERSION whenever the layout or the file types change */
+	private static final int MAGIC = 0x4d494458;
+	private static final int VERSION = 2;
+	private static final String INDEX_FILE_NAME = "media.idx";
+	/** Against symlink loops */
+	private static final int MAX_DEPTH = 32;
+
+	/** Notified on the main thread */
+	public interface Listener {
+		void onIndexUpdated();
+	}
+
+	/** An indexed media file */
+	public static final class MediaEntry {
+		public final String path;
+		public final int fileType;
+		public final long size;
+		public final long lastModified;
+
+		MediaEntry(String path, int fileType, long size, long lastModified) {
+			this.path = path;
+			this.fileType = fileType;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/** What is indexed of a directory, files as parallel arrays */
+	private static final class DirRecord {
+		long lastModified;
+		String[] subdirs;
+		String[] names;
+		int[] types;
+		long[] sizes;
+		long[] mtimes;
+	}
+
+	private static MediaIndexer sInstance = null;
+
+	private final File mIndexFile;
+	private final ExecutorService mExecutor;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	/** Replaced as a whole by each scan, never modified */
+	private volatile Map<String, DirRecord> mDirs = null;
+	private boolean mScanning = false;
+
+	public static synchronized MediaIndexer getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new MediaIndexer(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private MediaIndexer(Context context) {
+		mIndexFile = new File(context.getFilesDir(), INDEX_FILE_NAME);
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "MediaIndexer");
+			}
+		});
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Whether there is anything to query yet, false until the saved index
+	 * is loaded or the first scan is done
+	 */
+	public boolean isReady() {
+		return mDirs != null;
+	}
+
+	/**
+	 * Bring the index up to date in the background, does nothing if a scan
+	 * is already running. Listeners are notified once the saved index is
+	 * loaded and again when the scan is done.
+	 */
+	public synchronized void scan() {
+		if (mScanning) return;
+		mScanning = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (mDirs == null) {
+						mDirs = load();
+						if (mDirs != null) notifyListeners();
+					}
+					if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+						rescan(Environment.getExternalStorageDirectory().getPath());
+					}
+				} finally {
+					synchronized (MediaIndexer.this) {
+						mScanning = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Indexed files of a category, empty until the index is ready
+	 */
+	public List<MediaEntry> getFiles(int category) {
+		List<MediaEntry> files = new ArrayList<MediaEntry>();
+		Map<String, DirRecord> dirs = mDirs;
+		if (dirs == null) return files;
+		for (Map.Entry<String, DirRecord> dir : dirs.entrySet()) {
+			DirRecord record = dir.getValue();
+			for (int i = 0; i < record.names.length; i++) {
+				if (!isInCategory(record.types[i], category)) continue;
+				files.add(new MediaEntry(dir.getKey() + File.separator + record.names[i],
+						record.types[i], record.sizes[i], record.mtimes[i]));
+			}
+		}
+		return files;
+	}
+
+	private static boolean isInCategory(int fileType, int category) {
+		switch (category) {
+		case CATEGORY_AUDIO:
+			return FileTypeUtil.isAudioFileType(fileType);
+		case CATEGORY_VIDEO:
+			return FileTypeUtil.isVideoFileType(fileType);
+		case CATEGORY_IMAGE:
+			return FileTypeUtil.isImageFileType(fileType);
+		case CATEGORY_PDF:
+			return FileTypeUtil.isPdfFileType(fileType);
+		default:
+			return false;
+		}
+	}
+
+	private void notifyListeners() {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (Listener listener : mListeners) {
+					listener.onIndexUpdated();
+				}
+			}
+		});
+	}
+
+	private void rescan(String rootPath) {
+		long startTime = System.nanoTime();
+		Map<String, DirRecord> previous = mDirs;
+		if (previous == null) previous = new HashMap<String, DirRecord>();
+		Map<String, DirRecord> dirs = new HashMap<String, DirRecord>(Math.max(16, previous.size() * 2));
+		int listedCount = 0;
+
+		// Depth first without recursion, paths and depths side by side
+		List<String> pending = new ArrayList<String>();
+		List<Integer> depths = new ArrayList<Integer>();
+		pending.add(rootPath);
+		depths.add(0);
+		while (!pending.isEmpty()) {
+			String path = pending.remove(pending.size() - 1);
+			int depth = depths.remove(depths.size() - 1);
+			File dir = new File(path);
+			long lastModified = dir.lastModified();
+			if (lastModified == 0) continue; // Gone
+
+			DirRecord record = previous.get(path);
+			if (record == null || record.lastModified != lastModified) {
+				record = list(dir, lastModified);
+				if (record == null) continue;
+				listedCount++;
+			}
+			dirs.put(path, record);
+
+			if (depth == MAX_DEPTH) continue;
+			for (String subdir : record.subdirs) {
+				pending.add(path + File.separator + subdir);
+				depths.add(depth + 1);
+			}
+		}
+
+		boolean changed = listedCount > 0 || dirs.size() != previous.size();
+		mDirs = dirs;
+		Log.d(TAG, "Scanned " + dirs.size() + " directories, listed " + listedCount + " in "
+				+ (System.nanoTime() - startTime) / 1000000 + "ms");
+		if (changed) {
+			save(dirs);
+			notifyListeners();
+		}
+	}
+
+	/**
+	 * List a directory, telling the type of files from their content
+	 * @return null if it can't be listed
+	 */
+	private static DirRecord list(File dir, long lastModified) {
+		String[] entries = dir.list();
+		if (entries == null) return null;
+
+		List<String> subdirs = new ArrayList<String>();
+		List<String> files = new ArrayList<String>();
+		for (String name : entries) {
+			// Hidden entries are mostly caches of other apps
+			if (name.startsWith(".")) continue;
+			if (new File(dir, name).isDirectory()) {
+				subdirs.add(name);
+			} else {
+				files.add(name);
+			}
+		}
+
+		// Misnamed media files are indexed, damaged ones are not
+		String[] paths = new String[files.size()];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = new File(dir, files.get(i)).getPath();
+		}
+		int[] fileTypes = new int[paths.length];
+		FileTypeSniffer.detect(paths, fileTypes);
+		List<String> names = new ArrayList<String>();
+		List<Integer> types = new ArrayList<Integer>();
+		for (int i = 0; i < paths.length; i++) {
+			if (fileTypes[i] == 0) continue;
+			names.add(files.get(i));
+			types.add(fileTypes[i]);
+		}
+
+		DirRecord record = new DirRecord();
+		record.lastModified = lastModified;
+		record.subdirs = subdirs.toArray(new String[subdirs.size()]);
+		record.names = names.toArray(new String[names.size()]);
+		record.types = new int[names.size()];
+		record.sizes = new long[names.size()];
+		record.mtimes = new long[names.size()];
+		for (int i = 0; i < record.names.length; i++) {
+			File file = new File(dir, record.names[i]);
+			record.types[i] = types.get(i);
+			record.sizes[i] = file.length();
+			record.mtimes[i] = file.lastModified();
+		}
+		return record;
+	}
+
+	/**
+	 * @return the saved index, null if there is none or it is unusable
+	 */
+	private Map<String, DirRecord> load() {
+		if (!mIndexFile.isFile()) return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mIndexFile), 64 * 1024));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+				int dirCount = in.readInt();
+				Map<String, DirRecord> dirs = new HashMap<String, DirRecord>(Math.max(16, dirCount * 2));
+				for (int d = 0; d < dirCount; d++) {
+					String path = in.readUTF();
+					DirRecord record = new DirRecord();
+					record.lastModified = in.readLong();
+					record.subdirs = new String[in.readInt()];
+					for (int i = 0; i < record.subdirs.length; i++) record.subdirs[i] = in.readUTF();
+					int fileCount = in.readInt();
+					record.names = new String[fileCount];
+					record.types = new int[fileCount];
+					record.sizes = new long[fileCount];
+					record.mtimes = new long[fileCount];
+					for (int i = 0; i < fileCount; i++) {
+						record.names[i] = in.readUTF();
+						record.types[i] = in.readInt();
+						record.sizes[i] = in.readLong();
+						record.mtimes[i] = in.readLong();
+					}
+					dirs.put(path, record);
+				}
+				return dirs;
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			Log.e(TAG, "Truncated index " + mIndexFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (NegativeArraySizeException e) {
+			Log.e(TAG, "Corrupt index " + mIndexFile);
+		}
+		return null;
+	}
+
+	private void save(Map<String, DirRecord> dirs) {
+		File temp = new File(mIndexFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp), 64 * 1024));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(dirs.size());
+				for (Map.Entry<String, DirRecord> dir : dirs.entrySet()) {
+					DirRecord record = dir.getValue();
+					out.writeUTF(dir.getKey());
+					out.writeLong(record.lastModified);
+					out.writeInt(record.subdirs.length);
+					for (String subdir : record.subdirs) out.writeUTF(subdir);
+					out.writeInt(record.names.length);
+					for (int i = 0; i < record.names.length; i++) {
+						out.writeUTF(record.names[i]);
+						out.writeInt(record.types[i]);
+						out.writeLong(record.sizes[i]);
+						out.writeLong(record.mtimes[i]);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			// Written aside and renamed, a crash never leaves a partial index
+			if (!temp.renameTo(mIndexFile)) throw new IOException("Can't rename " + temp);
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+		}
+	}
+}
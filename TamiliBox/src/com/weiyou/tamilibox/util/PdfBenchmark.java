@@ -0,0 +1,284 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+
+import com.shockwave.pdfium.CancellationToken;
+import com.shockwave.pdfium.PdfBufferBitmap;
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+
+/**
+ * Times the PdfiumCore paths a page turn goes through on the generated
+ * corpus PDF: opening the document, loading a page, reading the page sizes
+ * and rendering whole pages at several resolutions, into a new bitmap each
+ * time, into one reused bitmap and into one reused direct buffer. Loads and
+ * renders are timed again while a second worker keeps a long progressive
+ * render running, to see how well they interleave with it.
+ */
+public class PdfBenchmark {
+	public static final int PAGE_COUNT = 8;
+	public static final int[] RENDER_DPIS = { 72, 144, 216 };
+
+	private final PdfiumCore mCore;
+	private final File mFile;
+	private final String mParams;
+
+	public PdfBenchmark(PdfiumCore core, File file) {
+		mCore = core;
+		mFile = file;
+		mParams = "corpus=v" + BenchmarkCorpus.VERSION + " pages=" + PAGE_COUNT;
+	}
+
+	/**
+	 * @param dir where the corpus PDF is generated
+	 */
+	public static PdfBenchmark create(PdfiumCore core, File dir) throws IOException {
+		return new PdfBenchmark(core, BenchmarkCorpus.getPdf(dir, PAGE_COUNT));
+	}
+
+	public void run(Benchmark benchmark) throws Exception {
+		measureOpen(benchmark);
+		measurePageSizes(benchmark);
+
+		FileInputStream stream = new FileInputStream(mFile);
+		PdfDocument doc = mCore.newDocument(stream.getFD());
+		if (doc.mNativeDocPtr <= 0) {
+			stream.close();
+			throw new IOException("Can't open " + mFile);
+		}
+		try {
+			measurePageLoad(benchmark, doc);
+			// Every page open from here on, renders don't include loads
+			mCore.setMaxOpenPages(doc, PAGE_COUNT);
+			for (int dpi : RENDER_DPIS) {
+				measureRender(benchmark, doc, dpi);
+				measureRenderReused(benchmark, doc, dpi);
+				measureRenderBuffer(benchmark, doc, dpi);
+			}
+			measureUnderLongRender(benchmark, doc);
+		} finally {
+			mCore.closeDocument(doc);
+			stream.close();
+		}
+	}
+
+	private void measureOpen(Benchmark benchmark) throws Exception {
+		benchmark.measure("pdf.open", mParams, 1, new DocumentOp() {
+			@Override
+			public void setUp() throws Exception {
+				stream = new FileInputStream(mFile);
+			}
+
+			@Override
+			public void run() throws Exception {
+				open();
+			}
+		});
+	}
+
+	private void measurePageSizes(Benchmark benchmark) throws Exception {
+		// Sizes are kept by the document after the first read, so a new one every time
+		benchmark.measure("pdf.pageSizes", mParams, 1, new DocumentOp() {
+			@Override
+			public void setUp() throws Exception {
+				open();
+			}
+
+			@Override
+			public void run() throws Exception {
+				mCore.getPageSizes(doc);
+			}
+		});
+	}
+
+	/**
+	 * Load the pages in turn with one page open at a time, so each load
+	 * includes closing the page before
+	 */
+	private void measurePageLoad(Benchmark benchmark, final PdfDocument doc) throws Exception {
+		mCore.setMaxOpenPages(doc, 1);
+		benchmark.measure("pdf.loadPage", mParams, 1, new Benchmark.Op() {
+			private int mPageIndex = 0;
+
+			@Override
+			public void run() throws Exception {
+				mCore.openPage(doc, mPageIndex);
+				mPageIndex = (mPageIndex + 1) % PAGE_COUNT;
+			}
+		});
+	}
+
+	private void measureRender(Benchmark benchmark, final PdfDocument doc, int dpi) throws Exception {
+		final int width = BenchmarkCorpus.PAGE_WIDTH * dpi / 72;
+		final int height = BenchmarkCorpus.PAGE_HEIGHT * dpi / 72;
+		benchmark.measure("pdf.render", mParams + " dpi=" + dpi, 1, new Benchmark.Op() {
+			private Bitmap mBitmap;
+			private int mPageIndex = 0;
+
+			@Override
+			public void run() throws Exception {
+				mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+				mCore.renderPageBitmap(doc, mBitmap, mPageIndex, 0, 0, width, height);
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				if (mBitmap != null) mBitmap.recycle();
+				mBitmap = null;
+				mPageIndex = (mPageIndex + 1) % PAGE_COUNT;
+			}
+		});
+	}
+
+	private void measureRenderReused(Benchmark benchmark, final PdfDocument doc, int dpi) throws Exception {
+		final int width = BenchmarkCorpus.PAGE_WIDTH * dpi / 72;
+		final int height = BenchmarkCorpus.PAGE_HEIGHT * dpi / 72;
+		final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		try {
+			benchmark.measure("pdf.renderReused", mParams + " dpi=" + dpi, 1, new Benchmark.Op() {
+				private int mPageIndex = 0;
+
+				@Override
+				public void run() throws Exception {
+					mCore.renderPageBitmap(doc, bitmap, mPageIndex, 0, 0, width, height);
+					mPageIndex = (mPageIndex + 1) % PAGE_COUNT;
+				}
+			});
+		} finally {
+			bitmap.recycle();
+		}
+	}
+
+	private void measureRenderBuffer(Benchmark benchmark, final PdfDocument doc, int dpi) throws Exception {
+		final int width = BenchmarkCorpus.PAGE_WIDTH * dpi / 72;
+		final int height = BenchmarkCorpus.PAGE_HEIGHT * dpi / 72;
+		final PdfBufferBitmap bitmap = PdfBufferBitmap.wrap(ByteBuffer.allocateDirect(width * height * 4),
+				width, height, width * 4, PdfBufferBitmap.FORMAT_RGBA);
+		try {
+			benchmark.measure("pdf.renderBuffer", mParams + " dpi=" + dpi, 1, new Benchmark.Op() {
+				private int mPageIndex = 0;
+
+				@Override
+				public void run() throws Exception {
+					mCore.renderPageBuffer(doc, bitmap, mPageIndex, 0, 0, width, height,
+							0, 0, width, height, PdfiumCore.RENDER_FLAGS_FULL, 0);
+					mPageIndex = (mPageIndex + 1) % PAGE_COUNT;
+				}
+			});
+		} finally {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Page loads and renders of the other pages at the lowest resolution
+	 * while another thread renders the first page again and again at the
+	 * highest one, to compare with pdf.loadPage and pdf.renderReused
+	 */
+	private void measureUnderLongRender(Benchmark benchmark, final PdfDocument doc) throws Exception {
+		int longDpi = RENDER_DPIS[RENDER_DPIS.length - 1];
+		LongRender longRender = new LongRender(doc, longDpi);
+		String params = mParams + " longDpi=" + longDpi;
+		longRender.start();
+		try {
+			// The rendering page is never closed, the other one is reloaded every time
+			mCore.setMaxOpenPages(doc, 2);
+			benchmark.measure("pdf.loadPageUnderRender", params, 1, new Benchmark.Op() {
+				private int mPageIndex = 1;
+
+				@Override
+				public void run() throws Exception {
+					mCore.openPage(doc, mPageIndex);
+					mPageIndex = mPageIndex % (PAGE_COUNT - 1) + 1;
+				}
+			});
+
+			mCore.setMaxOpenPages(doc, PAGE_COUNT);
+			final int dpi = RENDER_DPIS[0];
+			final int width = BenchmarkCorpus.PAGE_WIDTH * dpi / 72;
+			final int height = BenchmarkCorpus.PAGE_HEIGHT * dpi / 72;
+			final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			try {
+				benchmark.measure("pdf.renderUnderRender", params + " dpi=" + dpi, 1, new Benchmark.Op() {
+					private int mPageIndex = 1;
+
+					@Override
+					public void run() throws Exception {
+						mCore.renderPageBitmap(doc, bitmap, mPageIndex, 0, 0, width, height);
+						mPageIndex = mPageIndex % (PAGE_COUNT - 1) + 1;
+					}
+				});
+			} finally {
+				bitmap.recycle();
+			}
+		} finally {
+			longRender.finish();
+		}
+	}
+
+	/** Renders the first page progressively until finished, from its own thread */
+	private class LongRender extends Thread {
+		private final PdfDocument mDoc;
+		private final int mWidth;
+		private final int mHeight;
+		private volatile boolean mFinished = false;
+		private volatile CancellationToken mToken;
+
+		LongRender(PdfDocument doc, int dpi) {
+			super("PdfBenchmark-LongRender");
+			mDoc = doc;
+			mWidth = BenchmarkCorpus.PAGE_WIDTH * dpi / 72;
+			mHeight = BenchmarkCorpus.PAGE_HEIGHT * dpi / 72;
+		}
+
+		@Override
+		public void run() {
+			Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+			try {
+				while (!mFinished) {
+					mToken = new CancellationToken();
+					// Finished between the check and the new token
+					if (mFinished) break;
+					mCore.renderPageBitmap(mDoc, bitmap, 0, 0, 0, mWidth, mHeight, mToken);
+				}
+			} finally {
+				bitmap.recycle();
+			}
+		}
+
+		void finish() throws InterruptedException {
+			mFinished = true;
+			CancellationToken token = mToken;
+			if (token != null) token.cancel();
+			join();
+		}
+	}
+
+	/** Closes the document and stream it opened after every iteration */
+	private abstract class DocumentOp extends Benchmark.Op {
+		FileInputStream stream;
+		PdfDocument doc;
+
+		void open() throws IOException {
+			if (stream == null) stream = new FileInputStream(mFile);
+			doc = mCore.newDocument(stream.getFD());
+			if (doc.mNativeDocPtr <= 0) {
+				doc = null;
+				throw new IOException("Can't open " + mFile);
+			}
+		}
+
+		@Override
+		public void tearDown() throws Exception {
+			if (doc != null) mCore.closeDocument(doc);
+			doc = null;
+			if (stream != null) stream.close();
+			stream = null;
+		}
+	}
+}
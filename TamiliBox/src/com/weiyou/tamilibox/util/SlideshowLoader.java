@@ -0,0 +1,173 @@
+package com.weiyou.tamilibox.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Decodes the pictures of a slideshow ahead of the one shown, so moving to
+ * the next one only has to draw a bitmap that is already there.
+ *
+ * The pictures from one behind the position to a few ahead of it are kept
+ * decoded for the screen. Moving on evicts those left behind into the
+ * bitmap pool, and the pictures newly ahead are decoded into them on a
+ * background thread, nearest first. The bitmap on screen is never evicted.
+ */
+public class SlideshowLoader {
+	private static final String TAG = SlideshowLoader.class.getName();
+
+	/** Notified on the main thread */
+	public interface Listener {
+		void onSlideDecoded(int index, Bitmap bitmap);
+	}
+
+	private final List<String> mPaths;
+	private final int mTargetWidth;
+	private final int mTargetHeight;
+	private final BitmapPool mPool;
+	private final int mAhead;
+	private final Listener mListener;
+	private final ExecutorService mExecutor;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	// Guarded by this
+	private final Map<Integer, Bitmap> mDecoded = new HashMap<Integer, Bitmap>();
+	private final Set<Integer> mQueued = new HashSet<Integer>();
+	private int mPosition = 0;
+	private int mDisplayed = -1;
+	private boolean isReleased = false;
+
+	/**
+	 * @param ahead number of pictures decoded ahead of the position
+	 */
+	public SlideshowLoader(List<String> paths, int targetWidth, int targetHeight, BitmapPool pool,
+			int ahead, Listener listener) {
+		mPaths = paths;
+		mTargetWidth = targetWidth;
+		mTargetHeight = targetHeight;
+		mPool = pool;
+		mAhead = ahead;
+		mListener = listener;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "SlideshowLoader");
+			}
+		});
+	}
+
+	public int getCount() {
+		return mPaths.size();
+	}
+
+	public String getPath(int index) {
+		return mPaths.get(index);
+	}
+
+	/**
+	 * Move to a picture, evicting the pictures out of the new window and
+	 * queueing the decode of the missing ones
+	 * @return the picture if it is decoded already, else null and the
+	 *         listener gets it once decoded
+	 */
+	public synchronized Bitmap setPosition(int index) {
+		mPosition = index;
+		Iterator<Map.Entry<Integer, Bitmap>> iterator = mDecoded.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Integer, Bitmap> entry = iterator.next();
+			int decoded = entry.getKey();
+			if (!isInWindow(decoded) && decoded != mDisplayed) {
+				mPool.put(entry.getValue());
+				iterator.remove();
+			}
+		}
+
+		// The position first, then ahead nearest first, then the one behind
+		queue(index);
+		for (int i = 1; i <= mAhead; i++) queue(index + i);
+		queue(index - 1);
+		return mDecoded.get(index);
+	}
+
+	/**
+	 * Tell which picture is on screen, it is kept until another one is
+	 */
+	public synchronized void setDisplayed(int index) {
+		int previous = mDisplayed;
+		mDisplayed = index;
+		if (previous != index && previous >= 0 && !isInWindow(previous)) {
+			mPool.put(mDecoded.remove(previous));
+		}
+	}
+
+	/**
+	 * Stop decoding and give every picture back to the pool, nothing may
+	 * draw them anymore
+	 */
+	public synchronized void release() {
+		isReleased = true;
+		mExecutor.shutdownNow();
+		for (Bitmap bitmap : mDecoded.values()) mPool.put(bitmap);
+		mDecoded.clear();
+	}
+
+	private boolean isInWindow(int index) {
+		return index >= mPosition - 1 && index <= mPosition + mAhead;
+	}
+
+	private void queue(final int index) {
+		if (index < 0 || index >= mPaths.size()) return;
+		if (mDecoded.containsKey(index) || !mQueued.add(index)) return;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SlideshowLoader.this) {
+					// Passed by before its turn came
+					if (isReleased || !isInWindow(index)) {
+						mQueued.remove(index);
+						return;
+					}
+				}
+				long startTime = System.nanoTime();
+				final Bitmap bitmap = ImageDecoder.decode(mPaths.get(index), mTargetWidth, mTargetHeight, mPool);
+				Log.d(TAG, "Decoded slide " + index + " in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+				synchronized (SlideshowLoader.this) {
+					mQueued.remove(index);
+					if (bitmap == null) return;
+					if (isReleased || (!isInWindow(index) && index != mDisplayed)) {
+						mPool.put(bitmap);
+						return;
+					}
+					mDecoded.put(index, bitmap);
+				}
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (SlideshowLoader.this) {
+							if (isReleased || mDecoded.get(index) != bitmap) return;
+						}
+						mListener.onSlideDecoded(index, bitmap);
+					}
+				});
+			}
+		});
+	}
+}
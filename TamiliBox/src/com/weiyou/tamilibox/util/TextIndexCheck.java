@@ -0,0 +1,81 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfTextSearcher;
+import com.shockwave.pdfium.PdfiumCore;
+
+/**
+ * Checks that PdfTextSearcher indexes pages whose data only becomes
+ * available after indexing started, as with a file still being written.
+ * The second half of the corpus PDF is reported unavailable until the
+ * first half is indexed.
+ */
+public class TextIndexCheck {
+	private static final int PAGE_COUNT = PdfBenchmark.PAGE_COUNT;
+	private static final int AVAILABLE_PAGES = PAGE_COUNT / 2;
+	private static final long TIMEOUT_MS = 20000;
+	/** Long enough for several retries of the held back pages */
+	private static final long HOLD_MS = 500;
+
+	private TextIndexCheck() {
+	}
+
+	/**
+	 * @param dir where the corpus PDF is generated
+	 * @throws IllegalStateException if a page is indexed before it is
+	 *         available or never indexed after
+	 */
+	public static void run(PdfiumCore core, File dir) throws IOException, InterruptedException {
+		File file = BenchmarkCorpus.getPdf(dir, PAGE_COUNT);
+		FileInputStream stream = new FileInputStream(file);
+		PdfDocument doc = core.newDocument(stream.getFD());
+		if (doc.mNativeDocPtr <= 0) {
+			stream.close();
+			throw new IOException("Can't open " + file);
+		}
+
+		final boolean[] released = { false };
+		PdfTextSearcher searcher = new PdfTextSearcher(core, doc, 2) {
+			@Override
+			protected boolean isPageAvailable(int pageIndex) {
+				synchronized (released) {
+					return pageIndex < AVAILABLE_PAGES || released[0];
+				}
+			}
+		};
+		try {
+			searcher.startIndexing(0, null);
+			waitForIndexed(searcher, AVAILABLE_PAGES);
+			Thread.sleep(HOLD_MS);
+			int indexed = searcher.getIndex().getIndexedPageCount();
+			if (indexed != AVAILABLE_PAGES) {
+				throw new IllegalStateException(indexed + " pages indexed, only " + AVAILABLE_PAGES + " available");
+			}
+
+			synchronized (released) {
+				released[0] = true;
+			}
+			waitForIndexed(searcher, PAGE_COUNT);
+			if (!searcher.getIndex().isComplete()) throw new IllegalStateException("Index not complete");
+		} finally {
+			searcher.shutdown();
+			core.closeDocument(doc);
+			stream.close();
+		}
+	}
+
+	private static void waitForIndexed(PdfTextSearcher searcher, int pageCount) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (searcher.getIndex().getIndexedPageCount() < pageCount) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Only " + searcher.getIndex().getIndexedPageCount() + " of "
+						+ pageCount + " pages indexed after " + TIMEOUT_MS + "ms");
+			}
+			Thread.sleep(20);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package com.weiyou.tamilibox.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.shockwave.pdfium.CancellationToken;
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfDocumentRegistry;
+import com.shockwave.pdfium.PdfiumCore;
+
+/**
+ * Thumbnails of PDF pages and images for the file browser and the page strip.
+ *
+ * Thumbnails come from an in-memory LRU, then from compressed files in the
+ * app cache keyed by path, size and modification time, and only then are
+ * rendered or decoded. Generation runs on a background queue that serves the
+ * most recent request first, so the rows scrolled into view are served
+ * before the ones scrolled past, whose requests are cancelled when their
+ * view is reused.
+ */
+public class ThumbnailService {
+	private static final String TAG = ThumbnailService.class.getName();
+
+	//PdfiumCore serializes the PDFium calls, image decodes and disk IO overlap
+	private static final int THREADS = 2;
+	private static final long DISK_CACHE_BYTES = 32 * 1024 * 1024;
+	private static final int JPEG_QUALITY = 85;
+
+	private static ThumbnailService sInstance = null;
+
+	private final PdfiumCore mPdfCore;
+	private final File mDiskCacheDir;
+	private final LruCache<String, Bitmap> mMemoryCache;
+	/** Disk keys of thumbnails that could not be made, not retried until the file changes */
+	private final Set<String> mFailedKeys = Collections.synchronizedSet(new HashSet<String>());
+	private final ThreadPoolExecutor mExecutor;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private long mSequence = 0;
+
+	public static synchronized ThumbnailService getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ThumbnailService(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private ThumbnailService(Context context) {
+		mPdfCore = new PdfiumCore(context);
+		mDiskCacheDir = new File(context.getCacheDir(), "thumbnails");
+		if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+			Log.e(TAG, "Can't create " + mDiskCacheDir);
+		}
+
+		// Keep thumbnails within 1/16 of the per-app heap
+		int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+		mMemoryCache = new LruCache<String, Bitmap>(memClass * 1024 * 1024 / 16) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+		mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "ThumbnailService");
+			}
+		});
+	}
+
+	/**
+	 * Whether a thumbnail can be made for the file
+	 */
+	public static boolean isSupported(String path) {
+		return FileTypeUtil.isPdfFileType(path) || FileTypeUtil.isImageFileType(path);
+	}
+
+	/**
+	 * Show the thumbnail of a file in a view, replacing any request still
+	 * pending for the view. The view is left alone if there is none.
+	 * @param pageIndex page of a PDF, ignored for images
+	 * @param size longest side of the thumbnail in pixels
+	 */
+	public void loadInto(ImageView view, String path, int pageIndex, int size) {
+		Object previous = view.getTag();
+		if (previous instanceof LoadTask) {
+			((LoadTask) previous).token.cancel();
+		}
+		view.setImageDrawable(null);
+		view.setTag(null);
+		if (!isSupported(path)) return;
+
+		// No file system access here, the stat is left to the task
+		String key = getMemoryKey(path, pageIndex, size);
+		Bitmap cached = mMemoryCache.get(key);
+		if (cached != null) {
+			view.setImageBitmap(cached);
+			return;
+		}
+
+		LoadTask task = new LoadTask(key, path, pageIndex, size, view);
+		view.setTag(task);
+		mExecutor.execute(task);
+	}
+
+	/**
+	 * Drop all pending requests, for a list that is being replaced
+	 */
+	public void cancelAll() {
+		mExecutor.getQueue().clear();
+	}
+
+	public void onTrimMemory(int level) {
+		mMemoryCache.evictAll();
+	}
+
+	/**
+	 * Key of a thumbnail in memory, made without touching the file. A file
+	 * rewritten while its thumbnail is in memory shows the old one until it
+	 * is evicted.
+	 */
+	private static String getMemoryKey(String path, int pageIndex, int size) {
+		return path + ":" + pageIndex + ":" + size;
+	}
+
+	/**
+	 * Key of a thumbnail on disk, it changes whenever the file is rewritten.
+	 * Stats the file, never called on the UI thread.
+	 * @return null if the file doesn't exist
+	 */
+	private static String getDiskKey(String path, int pageIndex, int size) {
+		File file = new File(path);
+		if (!file.isFile()) return null;
+		return path + ":" + file.length() + ":" + file.lastModified() + ":" + pageIndex + ":" + size;
+	}
+
+	private File getDiskFile(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest(key.getBytes("UTF-8"))) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return new File(mDiskCacheDir, hex.toString() + ".thumb");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Bitmap loadFromDisk(String key) {
+		File file = getDiskFile(key);
+		if (!file.isFile()) return null;
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+		// Last modified is the LRU clock
+		if (bitmap != null) file.setLastModified(System.currentTimeMillis());
+		return bitmap;
+	}
+
+	private void saveToDisk(String key, Bitmap bitmap) {
+		File file = getDiskFile(key);
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				// Keep transparency of images, rendered PDF pages are marked opaque
+				if (bitmap.hasAlpha()) bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+				else bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) throw new IOException("Can't rename " + temp);
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Delete the least recently used thumbnails until the cache fits its cap
+	 */
+	private synchronized void trimDiskCache() {
+		File[] files = mDiskCacheDir.listFiles();
+		if (files == null) return;
+		long total = 0;
+		for (File file : files) total += file.length();
+		if (total <= DISK_CACHE_BYTES) return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long left = a.lastModified();
+				long right = b.lastModified();
+				return (left < right) ? -1 : (left > right) ? 1 : 0;
+			}
+		});
+		// Trim well below the cap so this doesn't run for every new thumbnail
+		for (File file : files) {
+			if (total <= DISK_CACHE_BYTES * 3 / 4) break;
+			long length = file.length();
+			if (file.delete()) total -= length;
+		}
+	}
+
+	private Bitmap generate(String path, int pageIndex, int size, CancellationToken token) {
+		if (FileTypeUtil.isPdfFileType(path)) return renderPdfPage(path, pageIndex, size, token);
+		return decodeImage(path, size);
+	}
+
+	private Bitmap renderPdfPage(String path, int pageIndex, int size, CancellationToken token) {
+		PdfDocument doc;
+		try {
+			// Shares the document of a viewer showing the same file
+			doc = PdfDocumentRegistry.acquire(mPdfCore, path, false);
+		} catch (IOException e) {
+			Log.e(TAG, "Can't open " + path);
+			return null;
+		}
+		try {
+			float[] sizes = mPdfCore.getPageSizes(doc);
+			if (pageIndex * 2 + 1 >= sizes.length) return null;
+			float pageWidth = sizes[pageIndex * 2];
+			float pageHeight = sizes[pageIndex * 2 + 1];
+			if (pageWidth <= 0 || pageHeight <= 0) return null;
+
+			float scale = size / Math.max(pageWidth, pageHeight);
+			int width = Math.max(1, Math.round(pageWidth * scale));
+			int height = Math.max(1, Math.round(pageHeight * scale));
+			Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			if (!mPdfCore.renderPageBitmap(doc, bitmap, pageIndex, 0, 0, width, height,
+					PdfiumCore.RENDER_FLAGS_PREVIEW, token)) {
+				return null;
+			}
+			// Rendered pages have no transparency, saved as JPEG rather than PNG
+			bitmap.setHasAlpha(false);
+			return bitmap;
+		} finally {
+			PdfDocumentRegistry.release(doc);
+		}
+	}
+
+	private static Bitmap decodeImage(String path, int size) {
+		Bitmap decoded = ImageDecoder.decode(path, size, size, null);
+		if (decoded == null) return null;
+
+		float scale = (float) size / Math.max(decoded.getWidth(), decoded.getHeight());
+		if (scale >= 1f) return decoded;
+		Bitmap scaled = Bitmap.createScaledBitmap(decoded,
+				Math.max(1, Math.round(decoded.getWidth() * scale)),
+				Math.max(1, Math.round(decoded.getHeight() * scale)), true);
+		if (scaled != decoded) decoded.recycle();
+		return scaled;
+	}
+
+	private class LoadTask implements Runnable, Comparable<LoadTask> {
+		final String key;
+		final String path;
+		final int pageIndex;
+		final int size;
+		final ImageView view;
+		final long sequence;
+		final CancellationToken token = new CancellationToken();
+
+		LoadTask(String key, String path, int pageIndex, int size, ImageView view) {
+			this.key = key;
+			this.path = path;
+			this.pageIndex = pageIndex;
+			this.size = size;
+			this.view = view;
+			synchronized (ThumbnailService.this) {
+				this.sequence = mSequence++;
+			}
+		}
+
+		@Override
+		public void run() {
+			if (token.isCancelled()) return;
+
+			Bitmap bitmap = mMemoryCache.get(key);
+			if (bitmap == null) {
+				String diskKey = getDiskKey(path, pageIndex, size);
+				if (diskKey == null || mFailedKeys.contains(diskKey)) return;
+				bitmap = loadFromDisk(diskKey);
+				if (bitmap == null) {
+					if (token.isCancelled()) return;
+					bitmap = generate(path, pageIndex, size, token);
+					if (bitmap == null) {
+						if (!token.isCancelled()) mFailedKeys.add(diskKey);
+						return;
+					}
+					saveToDisk(diskKey, bitmap);
+					trimDiskCache();
+				}
+			}
+			mMemoryCache.put(key, bitmap);
+
+			final Bitmap result = bitmap;
+			mMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					// The view may have been reused for another file meanwhile
+					if (view.getTag() == LoadTask.this) {
+						view.setImageBitmap(result);
+						view.setTag(null);
+					}
+				}
+			});
+		}
+
+		/** Most recent request first, those are the rows in view */
+		@Override
+		public int compareTo(LoadTask other) {
+			return (sequence > other.sequence) ? -1 : (sequence < other.sequence) ? 1 : 0;
+		}
+	}
+}
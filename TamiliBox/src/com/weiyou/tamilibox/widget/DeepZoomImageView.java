@@ -0,0 +1,329 @@
+package com.weiyou.tamilibox.widget;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.weiyou.tamilibox.util.ImageDecoder;
+
+/**
+ * Pans and zooms pictures too large to be decoded whole at the detail
+ * wanted, such as scanned posters.
+ *
+ * The picture is cut into a pyramid of tiles, level n being subsampled by
+ * 2^n. Only the tiles of the level matching the zoom that intersect the
+ * view are decoded with a BitmapRegionDecoder, on a background queue serving
+ * the latest requests first, and kept in a byte-bounded LRU. A screen sized
+ * preview of the whole picture is drawn under the tiles until they arrive.
+ * Memory is the preview plus the LRU whatever the size of the picture.
+ */
+public class DeepZoomImageView extends View {
+	private static final String TAG = DeepZoomImageView.class.getName();
+
+	private static final int TILE_SIZE = 256;
+	/** Screen pixels per picture pixel at the largest zoom */
+	private static final float MAX_SCALE = 2f;
+
+	private final LruCache<Long, Bitmap> mTileCache;
+	private final ThreadPoolExecutor mExecutor;
+	/** Tiles queued or being decoded */
+	private final Set<Long> mPendingTiles = Collections.synchronizedSet(new HashSet<Long>());
+	private final ScaleGestureDetector mScaleDetector;
+	private final GestureDetector mGestureDetector;
+
+	private volatile BitmapRegionDecoder mDecoder;
+	private Bitmap mPreview;
+	private int mImageWidth;
+	private int mImageHeight;
+
+	/** Screen pixels per picture pixel */
+	private float mScale;
+	private float mMinScale;
+	/** View position of the picture origin */
+	private float mOffsetX;
+	private float mOffsetY;
+	/** Level and tile range in view, read by the decode threads to skip stale requests */
+	private volatile int[] mWantedTiles = null;
+	private long mSequence = 0;
+
+	private final RectF mDstRect = new RectF();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	/**
+	 * @param cacheBytes bound of the decoded tiles kept
+	 */
+	public DeepZoomImageView(Context context, int cacheBytes) {
+		super(context);
+		mTileCache = new LruCache<Long, Bitmap>(cacheBytes) {
+			@Override
+			protected int sizeOf(Long key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+		// Regions of one decoder are decoded one at a time anyway
+		mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+						r.run();
+					}
+				}, "DeepZoomImageView");
+			}
+		});
+
+		mScaleDetector = new ScaleGestureDetector(context,
+				new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+			@Override
+			public boolean onScale(ScaleGestureDetector detector) {
+				zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+				return true;
+			}
+		});
+		mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+			@Override
+			public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+				mOffsetX -= distanceX;
+				mOffsetY -= distanceY;
+				constrain();
+				invalidate();
+				return true;
+			}
+
+			@Override
+			public boolean onDoubleTap(MotionEvent e) {
+				// Between fitting the view and one picture pixel per screen pixel
+				float target = (mScale < 1f) ? 1f : mMinScale;
+				zoomBy(target / mScale, e.getX(), e.getY());
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Open a picture in the background, it shows once its preview is decoded.
+	 * Only JPEG and PNG pictures can be region decoded.
+	 * @param width width of the picture, from ImageDecoder.decodeBounds
+	 * @param height height of the picture
+	 */
+	public void setImage(final String path, final int width, final int height) {
+		final int previewWidth = getResources().getDisplayMetrics().widthPixels;
+		final int previewHeight = getResources().getDisplayMetrics().heightPixels;
+		mExecutor.execute(new Task(Long.MAX_VALUE) {
+			@Override
+			public void run() {
+				final BitmapRegionDecoder decoder;
+				try {
+					decoder = BitmapRegionDecoder.newInstance(path, false);
+				} catch (IOException e) {
+					Log.e(TAG, "Can't region decode " + path);
+					return;
+				}
+				final Bitmap preview = ImageDecoder.decode(path, previewWidth, previewHeight, null);
+				post(new Runnable() {
+					@Override
+					public void run() {
+						if (mExecutor.isShutdown()) {
+							// Detached meanwhile
+							decoder.recycle();
+							return;
+						}
+						mPreview = preview;
+						mImageWidth = width;
+						mImageHeight = height;
+						// Last, the decode thread reads the size once it sees the decoder
+						mDecoder = decoder;
+						resetScale();
+						invalidate();
+					}
+				});
+			}
+		});
+	}
+
+	public void onTrimMemory(int level) {
+		mTileCache.evictAll();
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (mDecoder == null || mScale == 0) return false;
+		mScaleDetector.onTouchEvent(event);
+		if (!mScaleDetector.isInProgress()) mGestureDetector.onTouchEvent(event);
+		return true;
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		resetScale();
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		mExecutor.shutdownNow();
+		BitmapRegionDecoder decoder = mDecoder;
+		mDecoder = null;
+		if (decoder != null) {
+			// Not while a region is being decoded
+			synchronized (decoder) {
+				decoder.recycle();
+			}
+		}
+		mTileCache.evictAll();
+	}
+
+	private void resetScale() {
+		if (mImageWidth == 0 || getWidth() == 0) return;
+		mMinScale = Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+		mScale = mMinScale;
+		constrain();
+	}
+
+	private void zoomBy(float factor, float focusX, float focusY) {
+		float scale = Math.max(mMinScale, Math.min(MAX_SCALE, mScale * factor));
+		factor = scale / mScale;
+		mOffsetX = focusX - (focusX - mOffsetX) * factor;
+		mOffsetY = focusY - (focusY - mOffsetY) * factor;
+		mScale = scale;
+		constrain();
+		invalidate();
+	}
+
+	/** Keep the picture over the view, centered along a side smaller than the view */
+	private void constrain() {
+		float width = mImageWidth * mScale;
+		float height = mImageHeight * mScale;
+		if (width <= getWidth()) mOffsetX = (getWidth() - width) / 2;
+		else mOffsetX = Math.max(getWidth() - width, Math.min(0, mOffsetX));
+		if (height <= getHeight()) mOffsetY = (getHeight() - height) / 2;
+		else mOffsetY = Math.max(getHeight() - height, Math.min(0, mOffsetY));
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mDecoder == null) return;
+
+		if (mPreview != null) {
+			mDstRect.set(mOffsetX, mOffsetY, mOffsetX + mImageWidth * mScale, mOffsetY + mImageHeight * mScale);
+			canvas.drawBitmap(mPreview, null, mDstRect, mPaint);
+		}
+		// The coarsest level still at least as detailed as the screen
+		int level = 0;
+		while (level < 30 && (1 << (level + 1)) * mScale <= 1f) level++;
+		if (mPreview != null && mPreview.getWidth() >= mImageWidth * mScale) {
+			// The preview is as detailed as the tiles would be
+			mWantedTiles = null;
+			return;
+		}
+
+		int tileSource = TILE_SIZE << level;
+		int firstX = Math.max(0, (int) (-mOffsetX / mScale) / tileSource);
+		int firstY = Math.max(0, (int) (-mOffsetY / mScale) / tileSource);
+		int lastX = Math.min((mImageWidth - 1) / tileSource, (int) ((getWidth() - mOffsetX) / mScale) / tileSource);
+		int lastY = Math.min((mImageHeight - 1) / tileSource, (int) ((getHeight() - mOffsetY) / mScale) / tileSource);
+		mWantedTiles = new int[] { level, firstX, firstY, lastX, lastY };
+
+		for (int ty = firstY; ty <= lastY; ty++) {
+			for (int tx = firstX; tx <= lastX; tx++) {
+				long key = tileKey(level, tx, ty);
+				Bitmap tile = mTileCache.get(key);
+				if (tile == null) {
+					requestTile(key, level, tx, ty);
+					continue;
+				}
+				int left = tx * tileSource;
+				int top = ty * tileSource;
+				int right = Math.min(mImageWidth, left + tileSource);
+				int bottom = Math.min(mImageHeight, top + tileSource);
+				mDstRect.set(mOffsetX + left * mScale, mOffsetY + top * mScale,
+						mOffsetX + right * mScale, mOffsetY + bottom * mScale);
+				canvas.drawBitmap(tile, null, mDstRect, mPaint);
+			}
+		}
+	}
+
+	private static long tileKey(int level, int tileX, int tileY) {
+		return ((long) level << 56) | ((long) tileX << 28) | tileY;
+	}
+
+	private void requestTile(final long key, final int level, final int tileX, final int tileY) {
+		if (!mPendingTiles.add(key)) return;
+		mExecutor.execute(new Task(mSequence++) {
+			@Override
+			public void run() {
+				try {
+					if (isWanted(level, tileX, tileY)) decodeTile(key, level, tileX, tileY);
+				} finally {
+					mPendingTiles.remove(key);
+				}
+			}
+		});
+	}
+
+	private boolean isWanted(int level, int tileX, int tileY) {
+		int[] wanted = mWantedTiles;
+		return wanted != null && wanted[0] == level && tileX >= wanted[1] && tileY >= wanted[2]
+				&& tileX <= wanted[3] && tileY <= wanted[4];
+	}
+
+	private void decodeTile(long key, int level, int tileX, int tileY) {
+		BitmapRegionDecoder decoder = mDecoder;
+		if (decoder == null) return;
+		int tileSource = TILE_SIZE << level;
+		Rect region = new Rect(tileX * tileSource, tileY * tileSource,
+				Math.min(mImageWidth, (tileX + 1) * tileSource), Math.min(mImageHeight, (tileY + 1) * tileSource));
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = 1 << level;
+		Bitmap tile;
+		synchronized (decoder) {
+			if (decoder.isRecycled()) return;
+			tile = decoder.decodeRegion(region, options);
+		}
+		if (tile == null) {
+			Log.e(TAG, "Can't decode tile " + level + "/" + tileX + "," + tileY);
+			return;
+		}
+		mTileCache.put(key, tile);
+		postInvalidate();
+	}
+
+	/** Newest first, those are the tiles in view */
+	private abstract static class Task implements Runnable, Comparable<Task> {
+		final long sequence;
+
+		Task(long sequence) {
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			return (sequence > other.sequence) ? -1 : (sequence < other.sequence) ? 1 : 0;
+		}
+	}
+}
@@ -2,9 +2,7 @@ package com.weiyou.tamilibox.widget;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import android.app.ListActivity;
 import android.content.Context;
@@ -25,11 +23,24 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.weiyou.tamilibox.R;
+import com.weiyou.tamilibox.util.DirectoryScanner;
+import com.weiyou.tamilibox.util.FileEntry;
+import com.weiyou.tamilibox.util.MediaIndexer;
+import com.weiyou.tamilibox.util.ThumbnailService;
 
 public class FileDialog extends ListActivity {
-	private List<Map<String, Object>> mData;
+	/** One of the MediaIndexer categories, to list all its files instead of a directory */
+	public static final String EXTRA_MEDIA_CATEGORY = "media_category";
+
+	private final List<FileEntry> mData = new ArrayList<FileEntry>();
+	private MyAdapter mAdapter;
+	private DirectoryScanner.Scan mScan;
+	private int mMediaCategory;
+	private MediaIndexer.Listener mIndexListener;
 	// private String mDir = "/sdcard";
 	private String mDir = Environment.getExternalStorageDirectory().getPath();
+	private ThumbnailService mThumbnails;
+	private int mThumbnailSize;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -39,12 +50,29 @@ public class FileDialog extends ListActivity {
 		Bundle bl = intent.getExtras();
 		String title = bl.getString("explorer_title");
 		Uri uri = intent.getData();
-		mDir = uri.getPath();
+		if (uri != null) mDir = uri.getPath();
+		mMediaCategory = intent.getIntExtra(EXTRA_MEDIA_CATEGORY, 0);
 
 		setTitle(title);
-		mData = getData();
-		MyAdapter adapter = new MyAdapter(this);
-		setListAdapter(adapter);
+		mThumbnails = ThumbnailService.getInstance(this);
+		// Same as the 48dip icon of the list item
+		mThumbnailSize = (int) (48 * getResources().getDisplayMetrics().density);
+		mAdapter = new MyAdapter(this);
+		setListAdapter(mAdapter);
+		if (mMediaCategory != 0) {
+			final MediaIndexer indexer = MediaIndexer.getInstance(this);
+			mIndexListener = new MediaIndexer.Listener() {
+				@Override
+				public void onIndexUpdated() {
+					loadMedia(indexer);
+				}
+			};
+			indexer.addListener(mIndexListener);
+			loadMedia(indexer);
+			indexer.scan();
+		} else {
+			loadData();
+		}
 
 		WindowManager m = getWindowManager();
 		Display d = m.getDefaultDisplay();
@@ -54,44 +82,63 @@ public class FileDialog extends ListActivity {
 		getWindow().setAttributes(p);
 	}
 
-	private List<Map<String, Object>> getData() {
-		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
-		Map<String, Object> map = null;
+	@Override
+	protected void onDestroy() {
+		if (mScan != null) mScan.cancel();
+		if (mIndexListener != null) MediaIndexer.getInstance(this).removeListener(mIndexListener);
+		super.onDestroy();
+	}
+
+	/**
+	 * List the indexed files of mMediaCategory, from the index as it is now
+	 */
+	private void loadMedia(MediaIndexer indexer) {
+		mData.clear();
+		for (MediaIndexer.MediaEntry media : indexer.getFiles(mMediaCategory)) {
+			mData.add(new FileEntry(new File(media.path).getName(), media.path, false));
+		}
+		mAdapter.notifyDataSetChanged();
+	}
+
+	/**
+	 * List mDir in the background, entries show up as they are read
+	 */
+	private void loadData() {
+		if (mScan != null) mScan.cancel();
+		mData.clear();
+
 		File f = new File(mDir);
-		File[] files = f.listFiles();
-
-		if (!mDir.equals("/sdcard")) {
-			map = new HashMap<String, Object>();
-			map.put("title", "Back to ../");
-			map.put("info", f.getParent());
-			map.put("img", R.drawable.ex_folder);
-			list.add(map);
+		if (!mDir.equals("/sdcard") && f.getParent() != null) {
+			mData.add(new FileEntry("Back to ../", f.getParent(), true));
 		}
-		if (files != null) {
-			for (int i = 0; i < files.length; i++) {
-				map = new HashMap<String, Object>();
-				map.put("title", files[i].getName());
-				map.put("info", files[i].getPath());
-				if (files[i].isDirectory())
-					map.put("img", R.drawable.ex_folder);
-				else
-					map.put("img", R.drawable.ex_doc);
-				list.add(map);
+		mAdapter.notifyDataSetChanged();
+		setSelection(0);
+
+		mScan = DirectoryScanner.scan(mDir, new DirectoryScanner.Listener() {
+			@Override
+			public void onEntries(List<FileEntry> entries) {
+				mData.addAll(entries);
+				mAdapter.notifyDataSetChanged();
 			}
-		}
-		return list;
+
+			@Override
+			public void onComplete(boolean error) {
+				mScan = null;
+			}
+		});
 	}
 
 	@Override
 	protected void onListItemClick(ListView l, View v, int position, long id) {
-		Log.d("MyListView4-click", (String) mData.get(position).get("info"));
-		if ((Integer) mData.get(position).get("img") == R.drawable.ex_folder) {
-			mDir = (String) mData.get(position).get("info");
-			mData = getData();
-			MyAdapter adapter = new MyAdapter(this);
-			setListAdapter(adapter);
+		FileEntry entry = mData.get(position);
+		Log.d("MyListView4-click", entry.path);
+		if (entry.isDirectory) {
+			mDir = entry.path;
+			// Thumbnails of the folder being left are not needed anymore
+			mThumbnails.cancelAll();
+			loadData();
 		} else {
-			finishWithResult((String) mData.get(position).get("info"));
+			finishWithResult(entry.path);
 		}
 	}
 
@@ -133,10 +180,13 @@ public class FileDialog extends ListActivity {
 				holder = (ViewHolder) convertView.getTag();
 			}
 
-			holder.img.setBackgroundResource((Integer) mData.get(position).get(
-					"img"));
-			holder.title.setText((String) mData.get(position).get("title"));
-			holder.info.setText((String) mData.get(position).get("info"));
+			FileEntry entry = mData.get(position);
+			holder.img.setBackgroundResource(entry.isDirectory ? R.drawable.ex_folder
+					: R.drawable.ex_doc);
+			// Drawn over the generic icon once it is ready
+			mThumbnails.loadInto(holder.img, entry.path, 0, mThumbnailSize);
+			holder.title.setText(entry.name);
+			holder.info.setText(entry.path);
 			return convertView;
 		}
 	}